@@ -0,0 +1,113 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.web.metrics.LengthFieldConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:
+ * 编解码器基准测试的公共参数：有效数据大小、uri 长度、内存分配器
+ * <p>
+ * 有效数据最大取到 {@link #MAX_FRAME_LENGTH}，超出一帧的部分（长度域、消息头、uri）会被扣除，
+ * 保证数据帧不会被解码器拒绝；扣除后的大小保存在 {@link #effectivePayloadSize}，参数 payloadSize 保持不变，
+ * 报告中的参数和实际测量的大小可以对照
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/7 下午2:10
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dio.netty.leakDetection.level=disabled"})
+public abstract class AbstractCodecBenchmark implements LengthFieldConstants {
+
+    /**
+     * 和代理服务器、代理客户端一致的最大数据帧 3M
+     */
+    public static final int MAX_FRAME_LENGTH = 3 * 1024 * 1024;
+
+    @Param({"64", "1024", "16384", "65536", "1048576", "3145728"})
+    public int payloadSize;
+
+    /**
+     * 传输消息以 streamId 区分用户连接，不再携带 uri（0）；16、128 对应认证等携带 clientKey 的控制消息
+     */
+    @Param({"0", "16", "128"})
+    public int uriLength;
+
+    @Param({"pooled", "unpooled"})
+    public String allocator;
+
+    protected EmbeddedChannel channel;
+
+    protected ByteBufAllocator alloc;
+
+    protected String uri;
+
+    /**
+     * 实际使用的有效数据大小：payloadSize 扣除超出一帧的部分
+     */
+    protected int effectivePayloadSize;
+
+    /**
+     * 编码后的数据帧长度
+     */
+    protected int frameLength;
+
+    protected void setupChannel(ChannelHandler... handlers) {
+        alloc = "pooled".equals(allocator) ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+        channel = new EmbeddedChannel(handlers);
+        channel.config().setAllocator(alloc);
+
+        if (uriLength > 0) {
+            char[] chars = new char[uriLength];
+            Arrays.fill(chars, 'u');
+            uri = new String(chars);
+        }
+        int headerLength = HEADER_SIZE + TYPE_SIZE + STREAM_ID_SIZE + URI_LENGTH_SIZE + uriLength;
+        effectivePayloadSize = Math.min(payloadSize, MAX_FRAME_LENGTH - headerLength);
+        frameLength = headerLength + effectivePayloadSize;
+    }
+
+    /**
+     * 分配并填充随机的有效数据
+     */
+    protected ByteBuf newPayload() {
+        byte[] bytes = new byte[effectivePayloadSize];
+        new Random(effectivePayloadSize).nextBytes(bytes);
+        return alloc.directBuffer(effectivePayloadSize).writeBytes(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownChannel() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 每秒处理的字节数，随 ops/s 一起输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ByteCounter {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
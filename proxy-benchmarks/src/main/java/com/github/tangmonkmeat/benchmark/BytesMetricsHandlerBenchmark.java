@@ -0,0 +1,198 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.web.handler.BytesMetricsHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description:
+ * {@link BytesMetricsHandler} 每条消息的统计开销，所有线程的用户连接都在同一个端口上，竞争同一个计数器
+ * <p>
+ * 对比：
+ * 1 cached：当前实现，channelActive 时缓存端口的 MetricsCollector，计数器为 LongAdder；<br/>
+ * 2 legacy：之前的实现，每次读写都解析本地地址、装箱端口、查找 ConcurrentHashMap，计数器为 AtomicLong；<br/>
+ * 3 none：不统计，作为 pipeline 本身的开销基准。
+ * </p>
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar BytesMetricsHandlerBenchmark，线程数可以用 -t 调整
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/10 下午4:10
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(value = 1, jvmArgsAppend = {"-Dio.netty.leakDetection.level=disabled"})
+public class BytesMetricsHandlerBenchmark {
+
+    /**
+     * 用户连接的本地地址，即代理服务器的端口
+     */
+    private static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress("127.0.0.1", 18081);
+
+    @Param({"cached", "legacy", "none"})
+    public String handler;
+
+    /**
+     * 每个线程一个用户连接，相当于分布在各个 EventLoop 上的用户连接
+     */
+    private EmbeddedChannel channel;
+
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ChannelHandler metricsHandler;
+        switch (handler) {
+            case "legacy":
+                metricsHandler = new LegacyBytesMetricsHandler();
+                break;
+            case "none":
+                metricsHandler = new ChannelDuplexHandler();
+                break;
+            default:
+                metricsHandler = new BytesMetricsHandler();
+                break;
+        }
+        // 出站：tail → metricsHandler → OutboundSink；入站：head → metricsHandler → InboundSink
+        channel = new UserChannel(new OutboundSink(), metricsHandler, new InboundSink());
+        payload = Unpooled.directBuffer(1024).writeZero(1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        payload.release();
+    }
+
+    /**
+     * 用户发来的一条消息
+     */
+    @Benchmark
+    public void channelRead() {
+        channel.pipeline().fireChannelRead(payload);
+    }
+
+    /**
+     * 写给用户的一条消息
+     */
+    @Benchmark
+    public void writeAndFlush() {
+        channel.writeAndFlush(payload, channel.voidPromise());
+    }
+
+    /**
+     * 本地地址是代理服务器端口的 EmbeddedChannel
+     */
+    private static final class UserChannel extends EmbeddedChannel {
+
+        private UserChannel(ChannelHandler... handlers) {
+            super(handlers);
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return LOCAL_ADDRESS;
+        }
+    }
+
+    /**
+     * 丢弃入站消息，消息重复使用，不释放
+     */
+    private static final class InboundSink extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        }
+    }
+
+    /**
+     * 丢弃出站消息，消息重复使用，不释放
+     */
+    private static final class OutboundSink extends ChannelOutboundHandlerAdapter {
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+        }
+    }
+
+    /**
+     * 之前的 BytesMetricsHandler：每次读写都查找端口的计数器
+     */
+    private static final class LegacyBytesMetricsHandler extends ChannelDuplexHandler {
+
+        private static final Map<Integer, LegacyCollector> COLLECTORS = new ConcurrentHashMap<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            LegacyCollector collector = collector(ctx);
+            collector.readBytes.addAndGet(((ByteBuf) msg).readableBytes());
+            collector.readMsgs.addAndGet(1);
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            LegacyCollector collector = collector(ctx);
+            collector.wroteBytes.addAndGet(((ByteBuf) msg).readableBytes());
+            collector.wroteMsgs.addAndGet(1);
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            collector(ctx).flushes.addAndGet(1);
+            ctx.flush();
+        }
+
+        private static LegacyCollector collector(ChannelHandlerContext ctx) {
+            InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
+            LegacyCollector collector = COLLECTORS.get(sa.getPort());
+            if (collector == null) {
+                synchronized (COLLECTORS) {
+                    collector = COLLECTORS.get(sa.getPort());
+                    if (collector == null) {
+                        collector = new LegacyCollector();
+                        COLLECTORS.put(sa.getPort(), collector);
+                    }
+                }
+            }
+            return collector;
+        }
+    }
+
+    private static final class LegacyCollector {
+
+        private final AtomicLong readBytes = new AtomicLong();
+
+        private final AtomicLong wroteBytes = new AtomicLong();
+
+        private final AtomicLong readMsgs = new AtomicLong();
+
+        private final AtomicLong wroteMsgs = new AtomicLong();
+
+        private final AtomicLong flushes = new AtomicLong();
+    }
+}
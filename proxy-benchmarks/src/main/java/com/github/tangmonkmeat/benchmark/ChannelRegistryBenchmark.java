@@ -0,0 +1,187 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
+import io.netty.util.collection.IntObjectHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description:
+ * ProxyChannelManager 登记用户连接的基准测试，模拟大量用户连接的建立和断开（churn）
+ * <p>
+ * 每个线程相当于一个 EventLoop，维持固定数量的在线会话；每次操作断开最旧的会话（remove(key, value)），
+ * 再登记一个新会话（put），然后按 streamId 查找 lookups 次（TYPE_CONNECT、转发）；吞吐量即每秒的会话数。
+ * </p>
+ * 对比：
+ * 1 concurrentIntObjectMap：无锁的 {@link ConcurrentIntObjectMap}，当前实现；<br/>
+ * 2 concurrentHashMap：ConcurrentHashMap&lt;Integer, Object&gt;，key 装箱；<br/>
+ * 3 synchronizedIntObjectHashMap：以 map 自身加锁的 IntObjectHashMap。
+ * <p>
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar ChannelRegistryBenchmark -prof gc，线程数可以用 -t 调整
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/10 下午2:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ChannelRegistryBenchmark {
+
+    /**
+     * 每个线程同时在线的会话数
+     */
+    private static final int LIVE_SESSIONS = 1024;
+
+    @Param({"concurrentIntObjectMap", "concurrentHashMap", "synchronizedIntObjectHashMap"})
+    public String registry;
+
+    /**
+     * 每个会话按 streamId 查找的次数
+     */
+    @Param({"1", "8"})
+    public int lookups;
+
+    private Registry channels;
+
+    /**
+     * 和 UserChannelHandler 一样，所有线程共用一个 streamId 生成器
+     */
+    private final AtomicInteger streamIdProducer = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (registry) {
+            case "concurrentHashMap":
+                channels = new Registry() {
+                    private final ConcurrentHashMap<Integer, Object> map = new ConcurrentHashMap<>();
+
+                    @Override
+                    public void put(int streamId, Object channel) {
+                        map.put(streamId, channel);
+                    }
+
+                    @Override
+                    public Object get(int streamId) {
+                        return map.get(streamId);
+                    }
+
+                    @Override
+                    public boolean remove(int streamId, Object channel) {
+                        return map.remove(streamId, channel);
+                    }
+                };
+                break;
+            case "synchronizedIntObjectHashMap":
+                channels = new Registry() {
+                    private final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+
+                    @Override
+                    public void put(int streamId, Object channel) {
+                        synchronized (map) {
+                            map.put(streamId, channel);
+                        }
+                    }
+
+                    @Override
+                    public Object get(int streamId) {
+                        synchronized (map) {
+                            return map.get(streamId);
+                        }
+                    }
+
+                    @Override
+                    public boolean remove(int streamId, Object channel) {
+                        synchronized (map) {
+                            if (map.get(streamId) != channel) {
+                                return false;
+                            }
+                            map.remove(streamId);
+                            return true;
+                        }
+                    }
+                };
+                break;
+            default:
+                channels = new Registry() {
+                    private final ConcurrentIntObjectMap<Object> map = new ConcurrentIntObjectMap<>();
+
+                    @Override
+                    public void put(int streamId, Object channel) {
+                        map.put(streamId, channel);
+                    }
+
+                    @Override
+                    public Object get(int streamId) {
+                        return map.get(streamId);
+                    }
+
+                    @Override
+                    public boolean remove(int streamId, Object channel) {
+                        return map.remove(streamId, channel);
+                    }
+                };
+                break;
+        }
+    }
+
+    @Benchmark
+    public Object churn(Sessions sessions) {
+        int slot = sessions.cursor++ & (LIVE_SESSIONS - 1);
+        Object channel = sessions.channels[slot];
+        int oldStreamId = sessions.streamIds[slot];
+        // 断开最旧的会话
+        if (oldStreamId != 0) {
+            channels.remove(oldStreamId, channel);
+        }
+        // 登记新会话，然后按 streamId 查找
+        int streamId = streamIdProducer.incrementAndGet();
+        sessions.streamIds[slot] = streamId;
+        channels.put(streamId, channel);
+        Object found = null;
+        for (int i = 0; i < lookups; i++) {
+            found = channels.get(streamId);
+        }
+        return found;
+    }
+
+    /**
+     * 每个线程（EventLoop）的在线会话
+     */
+    @State(Scope.Thread)
+    public static class Sessions {
+
+        private final int[] streamIds = new int[LIVE_SESSIONS];
+
+        private final Object[] channels = new Object[LIVE_SESSIONS];
+
+        private int cursor;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            for (int i = 0; i < LIVE_SESSIONS; i++) {
+                channels[i] = new Object();
+            }
+        }
+    }
+
+    /**
+     * 被测试的登记表
+     */
+    private interface Registry {
+
+        void put(int streamId, Object channel);
+
+        Object get(int streamId);
+
+        boolean remove(int streamId, Object channel);
+    }
+}
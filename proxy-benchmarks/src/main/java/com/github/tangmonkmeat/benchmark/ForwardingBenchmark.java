@@ -0,0 +1,147 @@
+package com.github.tangmonkmeat.benchmark;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.concurrent.EventExecutor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description:
+ * 转发时跨线程写和同一线程直接写的开销对比，对应用户连接（真实服务器连接）和隧道是否在同一个 EventLoop 上
+ * <p>
+ * 转发任务在源连接的 EventLoop 上执行，把 writes 条 messageBytes 字节的数据写给隧道，然后 flush：<br/>
+ * 1 same：隧道和源连接在同一个 EventLoop，write 直接进入 pipeline；<br/>
+ * 2 cross：隧道在另一个 EventLoop，每次 write、flush 都封装为任务，经 MPSC 队列交给隧道的 EventLoop 执行。
+ * </p>
+ * 隧道使用 local transport，对端在单独的线程组中统计收到的字节数，两种情况下接收端的开销相同；
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar ForwardingBenchmark
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/15 上午10:20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dio.netty.leakDetection.level=disabled"})
+public class ForwardingBenchmark {
+
+    private static final LocalAddress ADDRESS = new LocalAddress("forwarding-benchmark");
+
+    @Param({"same", "cross"})
+    public String affinity;
+
+    /**
+     * 一次转发写给隧道的消息数，相当于一次读循环读到的 ByteBuf 个数
+     */
+    @Param({"1", "16"})
+    public int writes;
+
+    @Param({"1024"})
+    public int messageBytes;
+
+    /**
+     * 源连接和隧道所在的线程组
+     */
+    private EventLoopGroup forwardGroup;
+
+    /**
+     * 隧道对端所在的线程组
+     */
+    private EventLoopGroup sinkGroup;
+
+    private Channel serverChannel;
+
+    private Channel tunnel;
+
+    /**
+     * 执行转发任务的 EventLoop，即源连接所在的 EventLoop
+     */
+    private EventLoop sourceLoop;
+
+    private ByteBuf message;
+
+    /**
+     * 隧道对端收到的字节数
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * 已经转发的字节数，只在基准测试线程上访问
+     */
+    private long forwarded;
+
+    private Runnable forwardTask;
+
+    @Setup
+    public void setup() throws Exception {
+        forwardGroup = new DefaultEventLoopGroup(2);
+        sinkGroup = new DefaultEventLoopGroup(1);
+        serverChannel = new ServerBootstrap().group(sinkGroup).channel(LocalServerChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                        ByteBuf data = (ByteBuf) msg;
+                        received.addAndGet(data.readableBytes());
+                        data.release();
+                    }
+                })
+                .bind(ADDRESS).sync().channel();
+
+        Iterator<EventExecutor> loops = forwardGroup.iterator();
+        EventLoop tunnelLoop = (EventLoop) loops.next();
+        EventLoop otherLoop = (EventLoop) loops.next();
+        tunnel = new Bootstrap().group(tunnelLoop).channel(LocalChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(ADDRESS).sync().channel();
+        sourceLoop = "same".equals(affinity) ? tunnelLoop : otherLoop;
+
+        message = Unpooled.directBuffer(messageBytes).writeZero(messageBytes);
+        forwardTask = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writes; i++) {
+                    tunnel.write(message.retainedDuplicate(), tunnel.voidPromise());
+                }
+                tunnel.flush();
+            }
+        };
+    }
+
+    @Benchmark
+    public long forward() {
+        forwarded += (long) writes * messageBytes;
+        sourceLoop.execute(forwardTask);
+        // 等待对端收到全部数据，包括跨线程写在隧道 EventLoop 上排队的时间
+        while (received.get() < forwarded) {
+            Thread.yield();
+        }
+        return forwarded;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        tunnel.close().sync();
+        serverChannel.close().sync();
+        forwardGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        sinkGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        message.release();
+    }
+}
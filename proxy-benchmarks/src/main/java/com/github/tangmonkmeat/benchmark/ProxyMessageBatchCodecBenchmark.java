@@ -0,0 +1,153 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageBatchCodec;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageDecoder;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:
+ * {@link ProxyMessageBatchCodec} 基准测试：messages 个逻辑流各写一条 payloadSize 字节的小消息，
+ * 对比开启（batched=true）和关闭合并时隧道上的字节数，以及编码、解码的吞吐量；
+ * 每次操作处理一轮 messages 条消息，计数器中 wireBytes / payloadBytes 即为每字节数据的开销；
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar ProxyMessageBatchCodecBenchmark
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/14 下午4:10
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dio.netty.leakDetection.level=disabled"})
+public class ProxyMessageBatchCodecBenchmark {
+
+    /**
+     * 和代理服务器、代理客户端的默认配置一致
+     */
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    private static final int MAX_MESSAGE_BYTES = 1024;
+
+    @Param({"16", "64", "256", "1024"})
+    public int payloadSize;
+
+    /**
+     * 一轮中写入隧道的逻辑流个数，每个逻辑流一条消息
+     */
+    @Param({"1", "16", "64"})
+    public int messages;
+
+    @Param({"true", "false"})
+    public boolean batched;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+
+    private EmbeddedChannel encoder;
+
+    private EmbeddedChannel decoder;
+
+    private ByteBuf payload;
+
+    /**
+     * 预先编码好的一轮消息，合并成一块连续内存，和从 socket 读入的数据一致
+     */
+    private ByteBuf encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // 出站先经过批量编解码器，再经过编码器，和隧道的 pipeline 一致
+        encoder = new EmbeddedChannel(new ProxyMessageEncoder(),
+                new ProxyMessageBatchCodec(MAX_BATCH_BYTES, MAX_MESSAGE_BYTES, 0, batched, null));
+        encoder.config().setAllocator(alloc);
+        decoder = new EmbeddedChannel(new ProxyMessageDecoder(AbstractCodecBenchmark.MAX_FRAME_LENGTH, 0, 4, 0, 0),
+                new ProxyMessageBatchCodec(MAX_BATCH_BYTES, MAX_MESSAGE_BYTES, 0, false, null));
+        decoder.config().setAllocator(alloc);
+
+        byte[] bytes = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(bytes);
+        payload = alloc.directBuffer(payloadSize).writeBytes(bytes);
+
+        encoded = alloc.directBuffer();
+        writeRound();
+        ByteBuf frame;
+        while ((frame = encoder.readOutbound()) != null) {
+            encoded.writeBytes(frame);
+            frame.release();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        payload.release();
+        encoded.release();
+        encoder.finishAndReleaseAll();
+        decoder.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int encode(Counters counters) {
+        writeRound();
+        int wireBytes = 0;
+        ByteBuf frame;
+        while ((frame = encoder.readOutbound()) != null) {
+            wireBytes += frame.readableBytes();
+            frame.release();
+        }
+        counters.wireBytes += wireBytes;
+        counters.payloadBytes += (long) messages * payloadSize;
+        return wireBytes;
+    }
+
+    @Benchmark
+    public int decode(Counters counters) {
+        decoder.writeInbound(encoded.retainedDuplicate());
+        int count = 0;
+        ProxyMessage msg;
+        while ((msg = decoder.readInbound()) != null) {
+            count++;
+            msg.release();
+        }
+        counters.wireBytes += encoded.readableBytes();
+        counters.payloadBytes += (long) messages * payloadSize;
+        return count;
+    }
+
+    /**
+     * 每个逻辑流写入一条消息并 flush，和用户连接读入数据后的转发一致；随后执行推迟的 flush
+     */
+    private void writeRound() {
+        for (int i = 0; i < messages; i++) {
+            encoder.writeAndFlush(new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, i + 1, null, payload.retainedDuplicate()));
+        }
+        encoder.runPendingTasks();
+    }
+
+    /**
+     * 每秒隧道上的字节数和其中有效数据的字节数，随 ops/s 一起输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long wireBytes;
+
+        public long payloadBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            wireBytes = 0;
+            payloadBytes = 0;
+        }
+    }
+}
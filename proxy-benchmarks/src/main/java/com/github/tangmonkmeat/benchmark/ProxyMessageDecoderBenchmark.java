@@ -0,0 +1,58 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageDecoder;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Description:
+ * {@link ProxyMessageDecoder} 基准测试，经过 EmbeddedChannel 的完整入站流程；
+ * 输入是 {@link ProxyMessageEncoder} 预先编码好的一个完整数据帧；
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar ProxyMessageDecoderBenchmark -prof gc
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/7 下午2:45
+ */
+public class ProxyMessageDecoderBenchmark extends AbstractCodecBenchmark {
+
+    /**
+     * 预先编码好的数据帧
+     */
+    private ByteBuf frame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        setupChannel(new ProxyMessageDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 0));
+
+        EmbeddedChannel encoder = new EmbeddedChannel(new ProxyMessageEncoder());
+        encoder.config().setAllocator(alloc);
+        encoder.writeOutbound(new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, 1, uri, newPayload()));
+        ByteBuf encoded = encoder.readOutbound();
+        // 合并成一块连续内存，和从 socket 读入的数据一致
+        frame = alloc.directBuffer(frameLength).writeBytes(encoded);
+        encoded.release();
+        encoder.finishAndReleaseAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public int decode(ByteCounter counter) {
+        channel.writeInbound(frame.retainedDuplicate());
+        ProxyMessage msg = channel.readInbound();
+        int length = msg.getData() == null ? 0 : msg.getData().readableBytes();
+        msg.release();
+        counter.bytes += frameLength;
+        return length;
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.tangmonkmeat.benchmark;
+
+import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageEncoder;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Description:
+ * {@link ProxyMessageEncoder} 基准测试，经过 EmbeddedChannel 的完整出站流程；
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar ProxyMessageEncoderBenchmark -prof gc
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/7 下午2:30
+ */
+public class ProxyMessageEncoderBenchmark extends AbstractCodecBenchmark {
+
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        setupChannel(new ProxyMessageEncoder());
+        payload = newPayload();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        payload.release();
+    }
+
+    @Benchmark
+    public int encode(ByteCounter counter) {
+        // 和转发时一样，传输数据是读入 ByteBuf 的 retain 视图
+        channel.writeOutbound(new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, 1, uri, payload.retainedDuplicate()));
+        ByteBuf frame = channel.readOutbound();
+        int length = frame.readableBytes();
+        frame.release();
+        counter.bytes += length;
+        return length;
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.tangmonkmeat.benchmark;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:
+ * 隧道 TLS 的握手和加解密开销，JDK 引擎和 OpenSSL 引擎（netty-tcnative）对比
+ * <p>
+ * 两个 SSLEngine 在内存中直接交换数据，不经过 socket，只统计 TLS 本身的开销：<br/>
+ * 1 fullHandshake：完整握手，相当于没有可以恢复的会话时新建隧道；<br/>
+ * 2 resumedHandshake：按代理服务器地址恢复会话，相当于连接池补充隧道；<br/>
+ * 3 transfer：已经建立的隧道上，代理客户端加密、代理服务器解密 64K 数据。
+ * </p>
+ * 证书由 keytool 在启动时生成（RSA 2048）。openssl 需要把 netty-tcnative-boringssl-static 加入类路径，否则该参数组合启动失败；
+ * 运行：java -jar proxy-benchmarks/target/benchmarks.jar TlsBenchmark
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/13 下午5:10
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dio.netty.leakDetection.level=disabled"})
+public class TlsBenchmark {
+
+    private static final String PEER_HOST = "127.0.0.1";
+
+    private static final int PEER_PORT = 4901;
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    /**
+     * transfer 每次加解密的数据量
+     */
+    private static final int TRANSFER_BYTES = 64 * 1024;
+
+    /**
+     * 一次 wrap 的明文大小，即一个 TLS 记录
+     */
+    private static final int RECORD_BYTES = 16 * 1024;
+
+    /**
+     * 握手时两端最多交换的轮数
+     */
+    private static final int MAX_HANDSHAKE_ROUNDS = 64;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Param({"jdk", "openssl"})
+    public String provider;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    public String protocol;
+
+    private SslContext serverContext;
+
+    private SslContext clientContext;
+
+    /**
+     * 代理客户端 → 代理服务器的密文
+     */
+    private ByteBuffer clientToServer;
+
+    /**
+     * 代理服务器 → 代理客户端的密文
+     */
+    private ByteBuffer serverToClient;
+
+    private ByteBuffer appIn;
+
+    private ByteBuffer appOut;
+
+    /**
+     * transfer 使用的隧道
+     */
+    private SSLEngine transferClient;
+
+    private SSLEngine transferServer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SslProvider sslProvider = "openssl".equals(provider) ? SslProvider.OPENSSL : SslProvider.JDK;
+        if (sslProvider == SslProvider.OPENSSL && !OpenSsl.isAvailable()) {
+            throw new IllegalStateException("openssl is not available, add netty-tcnative-boringssl-static to the classpath", OpenSsl.unavailabilityCause());
+        }
+        KeyStore keyStore = generateKeyStore();
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate("tunnel");
+
+        serverContext = SslContextBuilder.forServer(keyManagerFactory).sslProvider(sslProvider).protocols(protocol).build();
+        clientContext = SslContextBuilder.forClient().sslProvider(sslProvider).protocols(protocol).trustManager(certificate).build();
+
+        int packetSize = serverContext.newEngine(ByteBufAllocator.DEFAULT).getSession().getPacketBufferSize();
+        clientToServer = ByteBuffer.allocate(packetSize * 8);
+        serverToClient = ByteBuffer.allocate(packetSize * 8);
+        appIn = ByteBuffer.allocate(packetSize * 8);
+        appOut = ByteBuffer.allocate(RECORD_BYTES);
+
+        // 第一次握手之后，会话缓存中才有可以恢复的会话
+        handshake(newClientEngine(true), newServerEngine());
+        transferClient = newClientEngine(true);
+        transferServer = newServerEngine();
+        handshake(transferClient, transferServer);
+    }
+
+    @Benchmark
+    public SSLEngine fullHandshake() throws SSLException {
+        SSLEngine client = newClientEngine(false);
+        handshake(client, newServerEngine());
+        return client;
+    }
+
+    @Benchmark
+    public SSLEngine resumedHandshake() throws SSLException {
+        SSLEngine client = newClientEngine(true);
+        handshake(client, newServerEngine());
+        return client;
+    }
+
+    @Benchmark
+    public int transfer() throws SSLException {
+        int received = 0;
+        for (int sent = 0; sent < TRANSFER_BYTES; sent += RECORD_BYTES) {
+            appOut.clear();
+            transferClient.wrap(appOut, clientToServer);
+            clientToServer.flip();
+            while (clientToServer.hasRemaining()) {
+                received += transferServer.unwrap(clientToServer, appIn).bytesProduced();
+                appIn.clear();
+            }
+            clientToServer.clear();
+        }
+        return received;
+    }
+
+    /**
+     * @param resumable 是否指定代理服务器地址；不指定时引擎不会查找会话缓存，总是完整握手
+     */
+    private SSLEngine newClientEngine(boolean resumable) {
+        return resumable ? clientContext.newEngine(ByteBufAllocator.DEFAULT, PEER_HOST, PEER_PORT)
+                : clientContext.newEngine(ByteBufAllocator.DEFAULT);
+    }
+
+    private SSLEngine newServerEngine() {
+        return serverContext.newEngine(ByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * 两端交替 wrap / unwrap，直到握手完成、握手后的消息（例如 TLSv1.3 的会话票据）也处理完
+     */
+    private void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        clientToServer.clear();
+        serverToClient.clear();
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < MAX_HANDSHAKE_ROUNDS; i++) {
+            boolean progress = step(client, serverToClient, clientToServer);
+            progress |= step(server, clientToServer, serverToClient);
+            if (!progress && isHandshakeDone(client) && isHandshakeDone(server)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("handshake is not finished after " + MAX_HANDSHAKE_ROUNDS + " rounds");
+    }
+
+    /**
+     * 一端处理一轮：执行委托任务、需要时写出握手消息、读入对端发来的数据
+     *
+     * @return 是否有进展
+     */
+    private boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out) throws SSLException {
+        boolean progress = false;
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+            progress = true;
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            SSLEngineResult result = engine.wrap(EMPTY, out);
+            progress |= result.bytesProduced() > 0 || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+        if (in.position() > 0) {
+            in.flip();
+            SSLEngineResult result = engine.unwrap(in, appIn);
+            in.compact();
+            appIn.clear();
+            progress |= result.bytesConsumed() > 0;
+        }
+        return progress;
+    }
+
+    private static boolean isHandshakeDone(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * 使用 keytool 生成自签名证书，netty 的 SelfSignedCertificate 在新版本 JDK 上需要 bouncycastle
+     */
+    private static KeyStore generateKeyStore() throws Exception {
+        File file = File.createTempFile("tls-benchmark", ".p12");
+        if (!file.delete()) {
+            throw new IllegalStateException("delete " + file + " failed");
+        }
+        try {
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "tunnel", "-keyalg", "RSA", "-keysize", "2048",
+                    "-dname", "CN=" + PEER_HOST, "-validity", "1", "-storetype", "PKCS12", "-keystore", file.getPath(),
+                    "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                    .redirectErrorStream(true).start();
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("keytool exit " + process.exitValue());
+            }
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(file)) {
+                keyStore.load(in, PASSWORD);
+            }
+            return keyStore;
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.tangmonkmeat.benchmark.tunnel;
+
+import com.github.tangmonkmeat.common.util.TransportUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description:
+ * 端到端基准测试的用户端，建立 N 个用户连接到代理服务器的用户端口
+ * <p>
+ * 1 echo：每个连接发送一条消息，收到完整的回显后再发送下一条（闭环），记录每条消息的往返延迟；<br/>
+ * 2 sink：每个连接在可写时持续发送，吞吐量由真实服务器统计。
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/8 上午10:40
+ */
+public class LoadGenerator {
+
+    /**
+     * 延迟的记录范围：1us ~ 60s
+     */
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final int connections;
+
+    private final int messageSize;
+
+    private final boolean echo;
+
+    private final EventLoopGroup group = TransportUtil.newEventLoopGroup();
+
+    private final List<Channel> channels = new ArrayList<>();
+
+    /**
+     * 每条消息的往返延迟，单位纳秒
+     */
+    private final Recorder latency = new Recorder(1000, HIGHEST_TRACKABLE_NANOS, 3);
+
+    private final LongAdder messages = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final ByteBuf payload;
+
+    private volatile boolean running = true;
+
+    public LoadGenerator(int connections, int messageSize, boolean echo) {
+        this.connections = connections;
+        this.messageSize = messageSize;
+        this.echo = echo;
+        byte[] bytes = new byte[messageSize];
+        new Random(messageSize).nextBytes(bytes);
+        this.payload = PooledByteBufAllocator.DEFAULT.directBuffer(messageSize).writeBytes(bytes);
+    }
+
+    /**
+     * 建立所有用户连接，连接成功后立即开始发送
+     *
+     * @param port 代理服务器的用户端口
+     */
+    public void start(int port) throws InterruptedException {
+        Bootstrap bootstrap = new Bootstrap().group(group)
+                .channel(TransportUtil.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(echo ? new EchoUserHandler() : new SinkUserHandler());
+                    }
+                });
+        for (int i = 0; i < connections; i++) {
+            channels.add(bootstrap.connect("127.0.0.1", port).sync().channel());
+        }
+    }
+
+    /**
+     * 预热结束，清空之前的统计数据
+     */
+    public void reset() {
+        latency.reset();
+        messages.reset();
+        errors.reset();
+    }
+
+    /**
+     * @return 上次 reset 之后的延迟分布
+     */
+    public Histogram getLatency() {
+        return latency.getIntervalHistogram();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public void stop() {
+        running = false;
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        group.shutdownGracefully();
+        payload.release();
+    }
+
+    /**
+     * 闭环发送：收到完整的回显后再发送下一条消息
+     */
+    private class EchoUserHandler extends ChannelInboundHandlerAdapter {
+
+        private int received;
+
+        private long startNanos;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            send(ctx);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf buf = (ByteBuf) msg;
+            received += buf.readableBytes();
+            buf.release();
+            if (received < messageSize) {
+                return;
+            }
+            latency.recordValue(Math.min(System.nanoTime() - startNanos, HIGHEST_TRACKABLE_NANOS));
+            messages.increment();
+            if (running) {
+                send(ctx);
+            }
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            received = 0;
+            startNanos = System.nanoTime();
+            ctx.writeAndFlush(payload.retainedDuplicate());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (running) {
+                errors.increment();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 持续发送，直到出站缓冲区达到高水位
+     */
+    private class SinkUserHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            fill(ctx);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            fill(ctx);
+            super.channelWritabilityChanged(ctx);
+        }
+
+        private void fill(ChannelHandlerContext ctx) {
+            Channel channel = ctx.channel();
+            while (running && channel.isWritable()) {
+                ctx.write(payload.retainedDuplicate());
+                messages.increment();
+            }
+            ctx.flush();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ((ByteBuf) msg).release();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (running) {
+                errors.increment();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+}
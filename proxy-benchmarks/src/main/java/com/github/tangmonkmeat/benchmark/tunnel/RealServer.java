@@ -0,0 +1,98 @@
+package com.github.tangmonkmeat.benchmark.tunnel;
+
+import com.github.tangmonkmeat.common.util.TransportUtil;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description:
+ * 端到端基准测试的真实服务器（代理客户端背后的内网服务），只监听 127.0.0.1
+ * <p>
+ * 1 echo：原样返回读到的数据，用于测量往返延迟；<br/>
+ * 2 sink：丢弃读到的数据，只统计字节数，用于测量单向吞吐量。
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/8 上午10:20
+ */
+public class RealServer {
+
+    private final boolean echo;
+
+    private final EventLoopGroup bossGroup = TransportUtil.newEventLoopGroup(1);
+
+    private final EventLoopGroup workerGroup = TransportUtil.newEventLoopGroup();
+
+    /**
+     * 读到的总字节数
+     */
+    private final LongAdder receivedBytes = new LongAdder();
+
+    public RealServer(boolean echo) {
+        this.echo = echo;
+    }
+
+    public void start(int port) throws InterruptedException {
+        new ServerBootstrap().group(bossGroup, workerGroup)
+                .channel(TransportUtil.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new RealServerHandler());
+                    }
+                })
+                .bind("127.0.0.1", port).sync();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public void resetReceivedBytes() {
+        receivedBytes.reset();
+    }
+
+    public void stop() {
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    private class RealServerHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            receivedBytes.add(((ByteBuf) msg).readableBytes());
+            if (echo) {
+                ctx.write(msg);
+            } else {
+                ((ByteBuf) msg).release();
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            if (echo) {
+                ctx.flush();
+            }
+        }
+
+        /**
+         * 写不出去时停止读取，避免回写的数据堆积
+         */
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            ctx.channel().config().setOption(ChannelOption.AUTO_READ, ctx.channel().isWritable());
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+}
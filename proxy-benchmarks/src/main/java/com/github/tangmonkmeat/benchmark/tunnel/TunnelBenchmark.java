@@ -0,0 +1,186 @@
+package com.github.tangmonkmeat.benchmark.tunnel;
+
+import com.github.tangmonkmeat.common.Config;
+import com.github.tangmonkmeat.common.util.JsonUtil;
+import com.github.tangmonkmeat.common.util.TransportUtil;
+import com.github.tangmonkmeat.config.ProxyConfig;
+import com.github.tangmonkmeat.core.ClientChannelManager;
+import com.github.tangmonkmeat.core.ProxyChannelManager;
+import com.github.tangmonkmeat.core.ProxyClientContainer;
+import com.github.tangmonkmeat.core.ProxyServerContainer;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Description:
+ * 隧道端到端基准测试：在同一个进程内启动代理服务器、代理客户端、真实服务器和用户端，只使用 127.0.0.1；
+ * 测量 用户连接 → UserChannelHandler → 隧道 → RealServerChannelHandler → 真实服务器 整条链路的吞吐量和延迟
+ * <p>
+ * 运行：java -cp proxy-benchmarks/target/benchmarks.jar com.github.tangmonkmeat.benchmark.tunnel.TunnelBenchmark
+ *      mode=echo connections=32 size=1024 warmup=5 duration=20 transport=epoll output=result.json
+ * </p>
+ * transport（auto / epoll / io_uring / nio）覆盖配置中的 transport.type，代理服务器、代理客户端、真实服务器和用户端都使用同一种传输层；
+ * 传输层在进程启动时确定，对比 NIO 和 native 传输需要分别运行，结果中的 transport 是实际使用的传输层
+ * 隧道配置（多路复用、传输层等）读取 proxy-benchmarks 的 config.properties，
+ * 可以把自定义的 config.properties 所在目录放到类路径的最前面来覆盖
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/8 上午11:20
+ */
+public class TunnelBenchmark {
+
+    /**
+     * 等待隧道建立的超时时间，单位毫秒
+     */
+    private static final long READY_TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        // 必须在加载 TransportUtil 之前设置
+        if (options.containsKey("transport")) {
+            System.setProperty("transport.type", options.get("transport"));
+        }
+        String mode = option(options, "mode", "echo");
+        int connections = Integer.parseInt(option(options, "connections", "32"));
+        int size = Integer.parseInt(option(options, "size", "1024"));
+        int warmup = Integer.parseInt(option(options, "warmup", "5"));
+        int duration = Integer.parseInt(option(options, "duration", "20"));
+        int userPort = Integer.parseInt(option(options, "userPort", "18081"));
+        int realServerPort = Integer.parseInt(option(options, "realServerPort", "18080"));
+        String output = options.get("output");
+        boolean echo = !"sink".equals(mode);
+
+        // 代理服务器的端口映射：userPort → 127.0.0.1:realServerPort
+        System.setProperty("proxy.config.file", writeProxyConfig(userPort, realServerPort).getPath());
+
+        RealServer realServer = new RealServer(echo);
+        realServer.start(realServerPort);
+        ProxyServerContainer serverContainer = new ProxyServerContainer();
+        serverContainer.start();
+        ProxyClientContainer clientContainer = new ProxyClientContainer();
+        clientContainer.start();
+        awaitTunnelReady(userPort);
+
+        LoadGenerator loadGenerator = new LoadGenerator(connections, size, echo);
+        loadGenerator.start(userPort);
+
+        // 预热，然后清空统计数据开始测量
+        Thread.sleep(warmup * 1000L);
+        loadGenerator.reset();
+        realServer.resetReceivedBytes();
+        long begin = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+
+        long elapsedNanos = System.nanoTime() - begin;
+        long messages = loadGenerator.getMessages();
+        long receivedBytes = realServer.getReceivedBytes();
+        Histogram histogram = loadGenerator.getLatency();
+        long errors = loadGenerator.getErrors();
+        loadGenerator.stop();
+
+        double seconds = elapsedNanos / 1e9;
+        TunnelBenchmarkResult result = new TunnelBenchmarkResult();
+        result.setMode(echo ? "echo" : "sink");
+        result.setTransport(TransportUtil.getTransportName());
+        result.setMux(ClientChannelManager.isMuxEnabled());
+        result.setConnections(connections);
+        result.setMessageSize(size);
+        result.setDurationMillis(elapsedNanos / 1000000);
+        result.setMessages(messages);
+        result.setMessagesPerSecond(messages / seconds);
+        result.setBytesPerSecond(receivedBytes / seconds);
+        result.setErrors(errors);
+        if (echo) {
+            result.setLatencyMicros(toLatency(histogram));
+        }
+
+        String json = JsonUtil.object2Json(result);
+        System.out.println(json);
+        if (output != null) {
+            try (OutputStream out = new FileOutputStream(output)) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        clientContainer.stop();
+        serverContainer.stop();
+        realServer.stop();
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    /**
+     * 生成临时的代理服务器端口映射配置 config.json
+     */
+    private static File writeProxyConfig(int userPort, int realServerPort) throws Exception {
+        ProxyConfig.ClientProxyMapping mapping = new ProxyConfig.ClientProxyMapping();
+        mapping.setName("benchmark-real-server");
+        mapping.setInetPort(userPort);
+        mapping.setLan("127.0.0.1:" + realServerPort);
+
+        ProxyConfig.Client client = new ProxyConfig.Client();
+        client.setName("benchmark-client");
+        client.setClientKey(Config.getInstance().getStringValue("client.key"));
+        client.setStatus(0);
+        client.setProxyMappings(Collections.singletonList(mapping));
+
+        File file = File.createTempFile("proxy-benchmark-", ".json");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(JsonUtil.object2Json(Collections.singletonList(client)).getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    /**
+     * 等待代理客户端认证成功、用户端口开始监听；多路复用模式还需要等待隧道建立
+     */
+    private static void awaitTunnelReady(int userPort) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        while (ProxyChannelManager.getBindChannels(userPort) == null
+                || (ClientChannelManager.isMuxEnabled() && ClientChannelManager.selectMuxChannel(0, -1) == null)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("tunnel is not ready after " + READY_TIMEOUT_MILLIS + "ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static TunnelBenchmarkResult.Latency toLatency(Histogram histogram) {
+        TunnelBenchmarkResult.Latency latency = new TunnelBenchmarkResult.Latency();
+        latency.setMean(histogram.getMean() / 1000);
+        latency.setP50(histogram.getValueAtPercentile(50) / 1000.0);
+        latency.setP90(histogram.getValueAtPercentile(90) / 1000.0);
+        latency.setP99(histogram.getValueAtPercentile(99) / 1000.0);
+        latency.setP999(histogram.getValueAtPercentile(99.9) / 1000.0);
+        latency.setMax(histogram.getMaxValue() / 1000.0);
+        return latency;
+    }
+
+    /**
+     * 解析 key=value 形式的参数
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("argument must be key=value: " + arg);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+}
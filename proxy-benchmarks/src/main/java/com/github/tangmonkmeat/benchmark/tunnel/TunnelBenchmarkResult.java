@@ -0,0 +1,223 @@
+package com.github.tangmonkmeat.benchmark.tunnel;
+
+import java.io.Serializable;
+
+/**
+ * Description:
+ * 端到端基准测试的结果，以 json 输出，便于对比多次测试
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/8 上午11:05
+ */
+public class TunnelBenchmarkResult implements Serializable {
+
+    /**
+     * 测试模式：echo / sink
+     */
+    private String mode;
+
+    /**
+     * 网络传输层：epoll / io_uring / nio
+     */
+    private String transport;
+
+    /**
+     * 是否使用多路复用隧道
+     */
+    private boolean mux;
+
+    /**
+     * 并发的用户连接数
+     */
+    private int connections;
+
+    /**
+     * 每条消息的字节数
+     */
+    private int messageSize;
+
+    /**
+     * 实际测量的时长，单位毫秒
+     */
+    private long durationMillis;
+
+    /**
+     * 测量期间完成的消息数（sink 模式为发送的消息数）
+     */
+    private long messages;
+
+    /**
+     * 每秒完成的消息数
+     */
+    private double messagesPerSecond;
+
+    /**
+     * 每秒经过隧道的字节数（单向）
+     */
+    private double bytesPerSecond;
+
+    /**
+     * 往返延迟，单位微秒；sink 模式下不统计
+     */
+    private Latency latencyMicros;
+
+    /**
+     * 测量期间意外断开的用户连接数
+     */
+    private long errors;
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public boolean isMux() {
+        return mux;
+    }
+
+    public void setMux(boolean mux) {
+        this.mux = mux;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public void setMessageSize(int messageSize) {
+        this.messageSize = messageSize;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public void setMessages(long messages) {
+        this.messages = messages;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public void setMessagesPerSecond(double messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public Latency getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public void setLatencyMicros(Latency latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public void setErrors(long errors) {
+        this.errors = errors;
+    }
+
+    /**
+     * 延迟分布
+     */
+    public static class Latency implements Serializable {
+
+        private double mean;
+
+        private double p50;
+
+        private double p90;
+
+        private double p99;
+
+        private double p999;
+
+        private double max;
+
+        public double getMean() {
+            return mean;
+        }
+
+        public void setMean(double mean) {
+            this.mean = mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public void setP50(double p50) {
+            this.p50 = p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public void setP90(double p90) {
+            this.p90 = p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public void setP99(double p99) {
+            this.p99 = p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public void setP999(double p999) {
+            this.p999 = p999;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public void setMax(double max) {
+            this.max = max;
+        }
+    }
+}
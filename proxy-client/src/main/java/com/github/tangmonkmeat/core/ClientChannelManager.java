@@ -1,20 +1,26 @@
 package com.github.tangmonkmeat.core;
 
 import com.github.tangmonkmeat.common.Config;
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
 import com.github.tangmonkmeat.listener.ProxyChannelBorrowListener;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.FlushConsolidator;
+import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageBatchCodec;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Description:
@@ -31,21 +37,38 @@ public class ClientChannelManager {
     private static final Logger logger = LoggerFactory.getLogger(ClientChannelManager.class);
 
     /**
-     * 和代理服务器的连接池的Channel的最大数量
+     * 代理配置
      */
-    private static final int MAX_POOL_SIZE = 100;
+    private static final Config CONFIG = Config.getInstance();
 
     /**
      * 和代理服务器的Channel的连接池
      */
-    private static final ConcurrentLinkedQueue<Channel> PROXY_CHANNEL_POOL = new ConcurrentLinkedQueue<Channel>();
+    private static final ProxyChannelPool PROXY_CHANNEL_POOL = new ProxyChannelPool(CONFIG);
+
+    /**
+     * 和真实服务器的Channel的连接池
+     */
+    private static final RealServerChannelPool REAL_SERVER_CHANNEL_POOL = new RealServerChannelPool(CONFIG);
 
     /**
      * 和真实服务器的 Channel 集合
-     * key：userId
+     * key：streamId
      * value：Channel
      */
-    private static final Map<String, Channel> REAL_SERVER_CHANNELS = new ConcurrentHashMap<>();
+    private static final ConcurrentIntObjectMap<Channel> REAL_SERVER_CHANNELS = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 建立隧道期间，经控制连接提前到达的用户数据
+     * key：streamId
+     * value：EarlyData
+     */
+    private static final ConcurrentIntObjectMap<EarlyData> EARLY_DATA = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 多路复用隧道，每条隧道承载多个用户连接（逻辑流）
+     */
+    private static final List<Channel> MUX_CHANNELS = new CopyOnWriteArrayList<>();
 
     /**
      * 获取 代理服务器端注册的隧道映射关系的channel
@@ -53,9 +76,39 @@ public class ClientChannelManager {
     private static volatile Channel cmdChannel;
 
     /**
-     * 代理配置
+     * 代理服务器认证成功后分配的客户端编号，建立独占隧道时代替 clientKey
      */
-    private static final Config CONFIG = Config.getInstance();
+    private static volatile int clientIndex;
+
+    /**
+     * 是否向代理服务器发送批量数据帧：开启了 client.batch.enable，并且代理服务器认证时通告支持
+     */
+    private static volatile boolean batchEnabled;
+
+    /**
+     * 是否按代理服务器通告的 EventLoop 选择隧道：开启了 client.loopAffinity.enable，并且代理服务器认证时通告支持
+     */
+    private static volatile boolean loopAffinityEnabled;
+
+    /**
+     * 独占隧道是否请求切换为原始字节流：开启了 client.rawTunnel.enable，并且代理服务器认证时通告支持
+     */
+    private static volatile boolean rawTunnelEnabled;
+
+    /**
+     * 当前会话的令牌，代理服务器认证时分配；0 表示没有可以恢复的会话
+     */
+    private static volatile long sessionToken;
+
+    /**
+     * 代理服务器认证时分配的隧道令牌，建立独占隧道、注册多路复用隧道时携带
+     */
+    private static volatile byte[] tunnelToken = new byte[ProxyMessage.TUNNEL_TOKEN_LENGTH];
+
+    /**
+     * 控制连接断开后，会话是否正在等待恢复，在 ClientChannelManager.class 上同步访问
+     */
+    private static boolean sessionSuspended;
 
     public static Channel getCmdChannel() {
         return cmdChannel;
@@ -65,41 +118,37 @@ public class ClientChannelManager {
         ClientChannelManager.cmdChannel = cmdChannel;
     }
 
+    public static int getClientIndex() {
+        return clientIndex;
+    }
+
+    public static void setClientIndex(int clientIndex) {
+        ClientChannelManager.clientIndex = clientIndex;
+    }
+
     /**
      * 代理客户端和真实服务器建立通道后调用此方法；
      * 开启 代理客户端和代理服务端 映射隧道；
      * 然后，绑定 真实服务器和代理服务器的 的映射关系
      *
      * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号，未知时为 -1
+     * @param loop 真实服务器连接所在的 EventLoop，优先借出同一个 EventLoop 上的隧道；为 null 时不区分
      * @param listener 建立隧道的监听器
      */
-    public static void borrowProxyChanel(Bootstrap proxyServerBootstrap, final ProxyChannelBorrowListener listener){
-        // 返回并移除队列队头的channel
-        Channel channel = PROXY_CHANNEL_POOL.poll();
-        // 如果有可用的channel
-        if (channel != null){
-            // 绑定 隧道映射关系
-            // 真实服务器<--->代理客户端；代理客户端<--->代理服务器
-            listener.success(channel);
-            return;
-        }
+    public static void borrowProxyChanel(Bootstrap proxyServerBootstrap, int peerLoop, EventLoop loop, final ProxyChannelBorrowListener listener){
+        // 优先借出连接池中可用的channel，没有时建立隧道
+        PROXY_CHANNEL_POOL.borrow(proxyServerBootstrap, peerLoop, loop, listener);
+    }
 
-        // 建立隧道
-        proxyServerBootstrap.connect(CONFIG.getStringValue("server.host"),CONFIG.getIntValue("server.port"))
-                .addListener(new ChannelFutureListener() {
-                    @Override
-                    public void operationComplete(ChannelFuture future) throws Exception {
-                        // 连接成功
-                        if (future.isSuccess()){
-                            // 绑定关系
-                            listener.success(future.channel());
-                        }else {
-                            logger.warn("connect proxy server failed", future.cause());
-                            // 通知代理服务器关闭此代理服务（关闭端口监听）
-                            listener.error(future.cause());
-                        }
-                    }
-                });
+    /**
+     * 连接真实服务器之前，预先选择逻辑流使用的 EventLoop：连接池中将要借出的隧道所在的 EventLoop
+     *
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号
+     * @return EventLoop；连接池为空时返回 null，由启动器分配
+     */
+    public static EventLoop selectProxyChannelLoop(int peerLoop){
+        return PROXY_CHANNEL_POOL.selectLoop(peerLoop);
     }
 
     /**
@@ -108,17 +157,7 @@ public class ClientChannelManager {
      * @param proxyChannel proxyChannel
      */
     public static void returnProxyChannel(Channel proxyChannel){
-        // 如果超过最大的连接数量，直接close
-        if (PROXY_CHANNEL_POOL.size() > MAX_POOL_SIZE){
-            proxyChannel.close();
-        }else {
-            proxyChannel.config().setOption(ChannelOption.AUTO_READ,true);
-            // 解除proxyChannel和真实服务器的关系
-            proxyChannel.attr(Constants.NEXT_CHANNEL).set(null);
-            // 添加到连接池队尾
-            PROXY_CHANNEL_POOL.offer(proxyChannel);
-            logger.debug("return ProxyChanel to the pool, channel is {}, pool current size is {} ", proxyChannel, PROXY_CHANNEL_POOL.size());
-        }
+        PROXY_CHANNEL_POOL.giveBack(proxyChannel);
     }
 
     /**
@@ -131,53 +170,123 @@ public class ClientChannelManager {
     }
 
     /**
-     * 设置 代理客户端和真实服务器的channel的唯一标示
+     * 控制连接认证成功后，预热连接池，并开始按照借出速率调整连接池
      *
-     * @param realServerChannel 代理客户端和真实服务器的channel
-     * @param userId 唯一标识
+     * @param cmdChannel 控制连接
+     * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
      */
-    public static void setRealServerChannelUserId(Channel realServerChannel,String userId){
-        realServerChannel.attr(Constants.USER_ID).set(userId);
+    public static void startProxyChannelPool(Channel cmdChannel, Bootstrap proxyServerBootstrap){
+        PROXY_CHANNEL_POOL.start(cmdChannel, proxyServerBootstrap);
     }
 
     /**
-     * 获取 代理客户端和真实服务器的channel的唯一标示
+     * 控制连接断开后，停止调整连接池，关闭所有空闲的连接
+     */
+    public static void stopProxyChannelPool(){
+        PROXY_CHANNEL_POOL.stop();
+    }
+
+    /**
+     * @return 连接池，用于查询命中率等统计数据
+     */
+    public static ProxyChannelPool getProxyChannelPool(){
+        return PROXY_CHANNEL_POOL;
+    }
+
+    /**
+     * 连接真实服务器；配置为可以复用的地址，优先借出空闲的连接
      *
-     * @param realServerChannel 代理客户端和真实服务器的channel
-     * @return channel的唯一标示
+     * @param realServerBootstrap 建立代理客户端和真实服务器连接的启动器
+     * @param lan 真实服务器地址 ip:port
+     * @param loop 连接所在的 EventLoop，即承载逻辑流的隧道所在的 EventLoop；为 null 时由启动器分配
+     * @return 连接结果
      */
-    public static String getRealServerChannelUserId(Channel realServerChannel){
-        return realServerChannel.attr(Constants.USER_ID).get();
+    public static ChannelFuture connectRealServer(Bootstrap realServerBootstrap, String lan, EventLoop loop){
+        return REAL_SERVER_CHANNEL_POOL.connect(realServerBootstrap, lan, loop);
     }
 
     /**
-     * 根据指定 的 channel 唯一标示 userId 获取 channel
+     * 用户断开后释放真实服务器连接：可以复用、并且确认处在空闲边界的放回连接池，否则关闭
      *
-     * @param userId realServerChannel 唯一标识
+     * @param realServerChannel 真实服务器连接
+     * @param aborted 用户连接是否异常中断，中断时直接关闭
+     */
+    public static void releaseRealServerChannel(Channel realServerChannel, boolean aborted){
+        REAL_SERVER_CHANNEL_POOL.release(realServerChannel, aborted);
+    }
+
+    /**
+     * 真实服务器连接断开后，移出连接池
+     *
+     * @param realServerChannel 真实服务器连接
+     */
+    public static void removeIdleRealServerChannel(Channel realServerChannel){
+        REAL_SERVER_CHANNEL_POOL.remove(realServerChannel);
+    }
+
+    /**
+     * 收到连接请求时登记，之后经控制连接到达的该逻辑流的数据暂存，连接真实服务器后写入
+     *
+     * @param streamId 逻辑流标识
+     */
+    public static void registerEarlyData(int streamId) {
+        EARLY_DATA.put(streamId, new EarlyData());
+    }
+
+    /**
+     * 暂存经控制连接提前到达的数据；已经连接真实服务器（或者失败）的逻辑流，数据直接丢弃
+     *
+     * @param streamId 逻辑流标识
+     * @param data 数据，调用后不再由调用者释放
+     */
+    public static void offerEarlyData(int streamId, ByteBuf data) {
+        EarlyData earlyData = EARLY_DATA.get(streamId);
+        if (earlyData == null) {
+            data.release();
+            return;
+        }
+        earlyData.offer(data);
+    }
+
+    /**
+     * 取出并移除暂存的数据
+     *
+     * @param streamId 逻辑流标识
+     * @return 暂存的数据，由调用者负责写出或者释放；没有数据时返回 null
+     */
+    public static ByteBuf takeEarlyData(int streamId) {
+        EarlyData earlyData = EARLY_DATA.remove(streamId);
+        return earlyData == null ? null : earlyData.take();
+    }
+
+    /**
+     * 根据指定 的 逻辑流标识 streamId 获取 channel
+     *
+     * @param streamId realServerChannel 对应的逻辑流标识
      * @return realServerChannel
      */
-    public static Channel getRealServerChannel(String userId) {
-        return REAL_SERVER_CHANNELS.get(userId);
+    public static Channel getRealServerChannel(int streamId) {
+        return REAL_SERVER_CHANNELS.get(streamId);
     }
 
     /**
      * 添加 channel
      *
-     * @param userId channel 唯一标示
+     * @param streamId realServerChannel 对应的逻辑流标识
      * @param realServerChannel realServerChannel
      */
-    public static void addRealServerChannel(String userId, Channel realServerChannel) {
-        REAL_SERVER_CHANNELS.put(userId, realServerChannel);
+    public static void addRealServerChannel(int streamId, Channel realServerChannel) {
+        REAL_SERVER_CHANNELS.put(streamId, realServerChannel);
     }
 
     /**
      * 移除指定的 realServerChannel，并返回
      *
-     * @param userId realServerChannel 唯一标识
+     * @param streamId realServerChannel 对应的逻辑流标识
      * @return realServerChannel
      */
-    public static Channel removeRealServerChannel(String userId) {
-        return REAL_SERVER_CHANNELS.remove(userId);
+    public static Channel removeRealServerChannel(int streamId) {
+        return REAL_SERVER_CHANNELS.remove(streamId);
     }
 
     /**
@@ -187,15 +296,354 @@ public class ClientChannelManager {
     public static void clearRealServerChannels() {
         logger.warn("channel closed, clear real server channels");
 
-        for (Map.Entry<String, Channel> stringChannelEntry : REAL_SERVER_CHANNELS.entrySet()) {
-            Channel realServerChannel = stringChannelEntry.getValue();
+        // 清空连接池
+        for (Channel realServerChannel : REAL_SERVER_CHANNELS.removeAll()) {
             if (realServerChannel.isActive()) {
                 // 通知真实服务端关闭socket
                 realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
             }
         }
-        // 清空连接池
-        REAL_SERVER_CHANNELS.clear();
+    }
+
+    /**
+     * @return 当前会话的令牌，重连时携带；0 表示没有可以恢复的会话
+     */
+    public static long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * @return 认证时得到的隧道令牌，不能修改
+     */
+    public static byte[] getTunnelToken() {
+        return tunnelToken;
+    }
+
+    public static void setTunnelToken(byte[] tunnelToken) {
+        ClientChannelManager.tunnelToken = tunnelToken;
+    }
+
+    /**
+     * 控制连接断开后，会话保留的秒数
+     *
+     * @return client.session.graceSeconds，0 表示不恢复会话
+     */
+    public static int getSessionGraceSeconds() {
+        return CONFIG.getIntValue("client.session.graceSeconds", 30);
+    }
+
+    /**
+     * 控制连接断开后调用：有可以恢复的会话时，保留多路复用隧道和真实服务器连接，等待重连后恢复，
+     * 宽限期（client.session.graceSeconds）结束仍然没有恢复时关闭；否则立即关闭所有隧道和真实服务器连接。
+     * 等待期间重连失败、控制连接再次断开时，宽限期不重新计算
+     *
+     * @param executor 执行宽限期检查的 EventExecutor
+     */
+    public static synchronized void suspendSession(EventExecutor executor) {
+        if (sessionSuspended) {
+            return;
+        }
+        if (sessionToken == 0 || getSessionGraceSeconds() <= 0) {
+            closeSession();
+            return;
+        }
+        sessionSuspended = true;
+        final long token = sessionToken;
+        logger.warn("cmd channel closed, keep session {}s", getSessionGraceSeconds());
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireSession(token);
+            }
+        }, getSessionGraceSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * 宽限期结束仍然没有恢复会话，关闭所有隧道和真实服务器连接
+     *
+     * @param token 控制连接断开时的会话令牌；会话已经恢复、或者重新认证后令牌不同时忽略
+     */
+    private static synchronized void expireSession(long token) {
+        if (!sessionSuspended || sessionToken != token) {
+            return;
+        }
+        logger.warn("session is not resumed in {}s", getSessionGraceSeconds());
+        sessionSuspended = false;
+        sessionToken = 0;
+        closeSession();
+    }
+
+    /**
+     * 认证成功后调用：代理服务器恢复了会话时，保留的隧道和真实服务器连接继续使用；
+     * 没有恢复（会话已经过期）时关闭，代理服务器上对应的用户连接已经关闭
+     *
+     * @param token 代理服务器分配的新令牌，不支持会话恢复时为 0
+     * @param resumed 代理服务器是否恢复了原来的会话
+     * @return 是否恢复了会话
+     */
+    public static synchronized boolean resumeSession(long token, boolean resumed) {
+        boolean suspended = sessionSuspended;
+        sessionSuspended = false;
+        sessionToken = token;
+        if (suspended && !resumed) {
+            closeSession();
+        }
+        return suspended && resumed;
+    }
+
+    /**
+     * 关闭所有多路复用隧道，通知所有的真实服务器 close socket；控制连接在线时，多路复用隧道随后重新建立
+     */
+    private static void closeSession() {
+        closeMuxChannels();
+        clearRealServerChannels();
+    }
+
+    /**
+     * 是否开启多路复用隧道
+     *
+     * @return client.mux.enable
+     */
+    public static boolean isMuxEnabled() {
+        return CONFIG.getBooleanValue("client.mux.enable", false);
+    }
+
+    /**
+     * 多路复用隧道上，每个逻辑流通告给代理服务器的接收窗口（字节）
+     *
+     * @return client.mux.windowSize
+     */
+    public static int getMuxWindowSize() {
+        return CONFIG.getIntValue("client.mux.windowSize", 256 * 1024);
+    }
+
+    /**
+     * 创建转发时使用的 flush 合并器，配置 client.flush.consolidate、client.flush.maxPendingWrites
+     *
+     * @return FlushConsolidator
+     */
+    public static FlushConsolidator newFlushConsolidator() {
+        return new FlushConsolidator(CONFIG.getBooleanValue("client.flush.consolidate", false),
+                CONFIG.getIntValue("client.flush.maxPendingWrites", 16), null);
+    }
+
+    /**
+     * 创建隧道的批量编解码器，配置 client.batch.maxBytes、client.batch.maxMessageBytes、client.batch.delayMicros
+     *
+     * @return ProxyMessageBatchCodec，代理服务器通告支持之前只解码、不合并
+     */
+    public static ProxyMessageBatchCodec newBatchCodec() {
+        return new ProxyMessageBatchCodec(CONFIG.getIntValue("client.batch.maxBytes", 16 * 1024),
+                CONFIG.getIntValue("client.batch.maxMessageBytes", 1024),
+                CONFIG.getIntValue("client.batch.delayMicros", 0), batchEnabled, null);
+    }
+
+    /**
+     * @return 认证时通告给代理服务器的扩展
+     */
+    public static int getFeatures() {
+        return ProxyMessageBatchCodec.FEATURE_BATCH
+                | (CONFIG.getBooleanValue("client.loopAffinity.enable", true) ? ProxyMessage.FEATURE_LOOP_HINT : 0)
+                | (getSessionGraceSeconds() > 0 ? ProxyMessage.FEATURE_SESSION_RESUME : 0)
+                | (CONFIG.getBooleanValue("client.rawTunnel.enable", true) ? ProxyMessage.FEATURE_RAW_TUNNEL : 0);
+    }
+
+    /**
+     * @return 是否按代理服务器通告的 EventLoop 选择隧道；开启时 TYPE_CONNECT 的 data 前携带用户连接所在的 EventLoop 编号
+     */
+    public static boolean isLoopAffinityEnabled() {
+        return loopAffinityEnabled;
+    }
+
+    /**
+     * @return 独占隧道连上真实服务器后是否请求切换为原始字节流；逻辑流压缩时不切换
+     */
+    public static boolean isRawTunnelEnabled() {
+        return rawTunnelEnabled;
+    }
+
+    /**
+     * 认证成功后，根据代理服务器通告的扩展开启或者关闭批量数据帧、EventLoop 对齐、原始字节流隧道；
+     * 已经建立的控制连接、多路复用隧道立即生效，之后建立的隧道在创建时生效
+     *
+     * @param features 代理服务器支持的扩展
+     */
+    public static void setServerFeatures(int features) {
+        loopAffinityEnabled = (getFeatures() & features & ProxyMessage.FEATURE_LOOP_HINT) != 0;
+        rawTunnelEnabled = (getFeatures() & features & ProxyMessage.FEATURE_RAW_TUNNEL) != 0;
+        batchEnabled = CONFIG.getBooleanValue("client.batch.enable", true)
+                && (features & ProxyMessageBatchCodec.FEATURE_BATCH) != 0;
+        Channel channel = cmdChannel;
+        if (channel != null) {
+            ProxyMessageBatchCodec.setEnabled(channel, batchEnabled);
+        }
+        for (Channel muxChannel : MUX_CHANNELS) {
+            ProxyMessageBatchCodec.setEnabled(muxChannel, batchEnabled);
+        }
+    }
+
+    /**
+     * 控制连接认证成功后，把多路复用隧道补足到配置数量（client.mux.connections）；
+     * 恢复会话时保留的隧道继续使用，只补充等待期间断开的隧道
+     *
+     * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
+     */
+    public static void openMuxChannels(Bootstrap proxyServerBootstrap) {
+        int connections = CONFIG.getIntValue("client.mux.connections", 1);
+        for (int i = MUX_CHANNELS.size(); i < connections; i++) {
+            openMuxChannel(proxyServerBootstrap);
+        }
+    }
+
+    /**
+     * 建立一条多路复用隧道，并向代理服务器注册
+     *
+     * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
+     */
+    public static void openMuxChannel(Bootstrap proxyServerBootstrap) {
+        proxyServerBootstrap.connect(CONFIG.getStringValue("server.host"),CONFIG.getIntValue("server.port"))
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (future.isSuccess()){
+                            Channel muxChannel = future.channel();
+                            muxChannel.attr(Constants.MUX_STREAMS).set(new ConcurrentIntObjectMap<Channel>());
+                            MUX_CHANNELS.add(muxChannel);
+                            // data 为支持的扩展 + 认证时得到的隧道令牌
+                            muxChannel.writeAndFlush(new ProxyMessage(ProxyMessage.C_TYPE_MUX_BIND, CONFIG.getStringValue("client.key", ""),
+                                    Unpooled.buffer(1 + ProxyMessage.TUNNEL_TOKEN_LENGTH)
+                                            .writeByte(ProxyMessageBatchCodec.FEATURE_BATCH).writeBytes(getTunnelToken())));
+                            logger.info("open mux channel success, {}", muxChannel);
+                        }else {
+                            logger.warn("open mux channel failed", future.cause());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * 根据 streamId 选择一条可用的多路复用隧道；
+     * 优先选择在代理服务器上和用户连接处于同一个 EventLoop 的隧道，两端的转发都不跨线程
+     *
+     * @param streamId 逻辑流标识
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号，未知时为 -1
+     * @return 多路复用隧道；没有可用的隧道返回 null
+     */
+    public static Channel selectMuxChannel(int streamId, int peerLoop) {
+        Object[] channels = MUX_CHANNELS.toArray();
+        if (peerLoop >= 0) {
+            for (int i = 0; i < channels.length; i++) {
+                Channel muxChannel = (Channel) channels[((streamId + i) & Integer.MAX_VALUE) % channels.length];
+                Integer loop = muxChannel.attr(Constants.PEER_LOOP).get();
+                if (loop != null && loop == peerLoop && muxChannel.isActive()) {
+                    return muxChannel;
+                }
+            }
+        }
+        for (int i = 0; i < channels.length; i++) {
+            // streamId 溢出回绕后为负数，取模前去掉符号位
+            Channel muxChannel = (Channel) channels[((streamId + i) & Integer.MAX_VALUE) % channels.length];
+            if (muxChannel.isActive()) {
+                return muxChannel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 移除多路复用隧道
+     *
+     * @param muxChannel 多路复用隧道
+     * @return 是否还登记着；已经随会话一起关闭的隧道返回 false
+     */
+    public static boolean removeMuxChannel(Channel muxChannel) {
+        return MUX_CHANNELS.remove(muxChannel);
+    }
+
+    /**
+     * 关闭所有的多路复用隧道
+     */
+    public static void closeMuxChannels() {
+        for (Channel muxChannel : MUX_CHANNELS) {
+            muxChannel.close();
+        }
+        MUX_CHANNELS.clear();
+    }
+
+    /**
+     * 是否是多路复用隧道
+     *
+     * @param proxyChannel 代理客户端和代理服务器的channel
+     * @return 是否是多路复用隧道
+     */
+    public static boolean isMuxChannel(Channel proxyChannel) {
+        return proxyChannel.attr(Constants.MUX_STREAMS).get() != null;
+    }
+
+    /**
+     * 在多路复用隧道上登记逻辑流，绑定隧道和真实服务器连接的关系
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @param realServerChannel 真实服务器连接
+     */
+    public static void addMuxStream(Channel muxChannel, int streamId, Channel realServerChannel) {
+        realServerChannel.attr(Constants.STREAM_ID).set(streamId);
+        realServerChannel.attr(Constants.NEXT_CHANNEL).set(muxChannel);
+        muxChannel.attr(Constants.MUX_STREAMS).get().put(streamId, realServerChannel);
+    }
+
+    /**
+     * 获取多路复用隧道上的逻辑流对应的真实服务器连接
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @return 真实服务器连接；逻辑流不存在返回 null
+     */
+    public static Channel getMuxStream(Channel muxChannel, int streamId) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().get(streamId);
+    }
+
+    /**
+     * 移除多路复用隧道上的逻辑流
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @return 被移除的真实服务器连接；如果逻辑流已经被移除，返回 null
+     */
+    public static Channel removeMuxStream(Channel muxChannel, int streamId) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().remove(streamId);
+    }
+
+    /**
+     * 获取多路复用隧道上的所有逻辑流
+     *
+     * @param muxChannel 多路复用隧道
+     * @return 所有逻辑流的真实服务器连接（快照）
+     */
+    public static List<Channel> getMuxStreams(Channel muxChannel) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().values();
+    }
+
+    /**
+     * 移除多路复用隧道上的所有逻辑流，隧道断开时调用
+     *
+     * @param muxChannel 多路复用隧道
+     * @return 被移除的所有真实服务器连接
+     */
+    public static List<Channel> removeMuxStreams(Channel muxChannel) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().removeAll();
+    }
+
+    /**
+     * 获取真实服务器连接对应的逻辑流标识
+     *
+     * @param realServerChannel 真实服务器连接
+     * @return 逻辑流标识；还没有绑定时为 0
+     */
+    public static int getRealServerChannelStreamId(Channel realServerChannel) {
+        Integer streamId = realServerChannel.attr(Constants.STREAM_ID).get();
+        return streamId == null ? 0 : streamId;
     }
 
 }
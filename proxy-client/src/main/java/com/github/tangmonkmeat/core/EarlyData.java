@@ -0,0 +1,55 @@
+package com.github.tangmonkmeat.core;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Description:
+ * 一个用户连接在建立隧道期间，经控制连接提前到达的数据
+ * <p>
+ * 控制连接的 EventLoop 放入，连接真实服务器成功或者失败后取出；取出之后再到达的数据丢弃，
+ * 代理服务器根据 TYPE_CONNECT 上报的字节数，经隧道重发
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/13 下午2:40
+ */
+public class EarlyData {
+
+    private CompositeByteBuf data;
+
+    /**
+     * 是否已经取出
+     */
+    private boolean taken;
+
+    /**
+     * 暂存提前到达的数据
+     *
+     * @param buf 数据，调用后由此对象负责释放
+     */
+    public synchronized void offer(ByteBuf buf) {
+        if (taken) {
+            buf.release();
+            return;
+        }
+        if (data == null) {
+            data = Unpooled.compositeBuffer();
+        }
+        data.addComponent(true, buf);
+    }
+
+    /**
+     * 取出暂存的数据，之后到达的数据丢弃
+     *
+     * @return 暂存的数据，由调用者负责释放；没有数据时返回 null
+     */
+    public synchronized ByteBuf take() {
+        taken = true;
+        ByteBuf buf = data;
+        data = null;
+        return buf;
+    }
+}
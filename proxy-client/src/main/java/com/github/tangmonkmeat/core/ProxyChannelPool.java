@@ -0,0 +1,454 @@
+package com.github.tangmonkmeat.core;
+
+import com.github.tangmonkmeat.common.Config;
+import com.github.tangmonkmeat.listener.ProxyChannelBorrowListener;
+import com.github.tangmonkmeat.web.metrics.Constants;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description:
+ * 代理客户端和代理服务器之间的独占隧道连接池
+ * <p>
+ * 1 预热：认证成功后，预先建立 client.pool.minIdle 个连接，第一批用户不需要等待建立隧道；<br/>
+ * 2 自适应：维护任务每秒统计一次借出速率（指数加权平均），空闲连接的目标数量为一秒的借出量，
+ * 不小于 minIdle，不超过 maxIdle；连接池未命中时立即补充，不等待下一次维护；<br/>
+ * 3 回收：空闲超过 client.pool.idleTimeout 秒、且超出目标数量的连接被关闭；<br/>
+ * 4 借出前检查连接是否仍然可用，已经断开的连接直接丢弃。
+ * </p>
+ * <p>
+ * 后进先出：最近归还的连接先借出，队尾就是空闲最久的连接，回收时只检查队尾；
+ * 空闲连接数使用单独的计数器，不再调用 O(n) 的 size()
+ * </p>
+ * <p>
+ * EventLoop 对齐：借出时在队头的 {@link #SCAN_LIMIT} 个空闲连接中，优先选择和真实服务器连接同一个 EventLoop、
+ * 并且在代理服务器上和用户连接同一个 EventLoop（{@link Constants#PEER_LOOP}）的连接；未命中时新连接建立在真实服务器连接的 EventLoop 上
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 下午4:30
+ */
+public class ProxyChannelPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProxyChannelPool.class);
+
+    /**
+     * 维护任务的执行间隔，单位毫秒
+     */
+    private static final long MAINTAIN_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 每隔多少次维护输出一次命中率
+     */
+    private static final int STATS_LOG_INTERVAL = 60;
+
+    /**
+     * 借出速率指数加权平均的权重
+     */
+    private static final double RATE_ALPHA = 0.3;
+
+    /**
+     * 按 EventLoop 选择空闲连接时，最多检查的连接数
+     */
+    private static final int SCAN_LIMIT = 32;
+
+    /**
+     * 连接放入连接池的时间，System.nanoTime()
+     */
+    private static final AttributeKey<Long> POOLED_AT = AttributeKey.newInstance("proxy_channel_pooled_at");
+
+    /**
+     * 空闲的连接，队头是最近归还的连接
+     */
+    private final ConcurrentLinkedDeque<Channel> idleChannels = new ConcurrentLinkedDeque<>();
+
+    /**
+     * 空闲的连接数
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * 正在建立的补充连接数
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * 上次维护以来的借出次数
+     */
+    private final AtomicInteger borrowsSinceMaintain = new AtomicInteger();
+
+    /**
+     * 命中：直接借出空闲连接的次数
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * 未命中：借出时现建连接的次数
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * 空闲超时被关闭的连接数
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 借出前检查发现已经断开的连接数
+     */
+    private final LongAdder discards = new LongAdder();
+
+    private final int minIdle;
+
+    private final int maxIdle;
+
+    private final long idleTimeoutNanos;
+
+    private final String serverHost;
+
+    private final int serverPort;
+
+    /**
+     * 空闲连接的目标数量
+     */
+    private volatile int targetIdle;
+
+    /**
+     * 借出速率，每秒，只在维护任务中访问
+     */
+    private double borrowRate;
+
+    /**
+     * 维护次数，只在维护任务中访问
+     */
+    private long maintains;
+
+    /**
+     * 建立补充连接的启动器，认证成功后设置
+     */
+    private volatile Bootstrap bootstrap;
+
+    private ScheduledFuture<?> maintainFuture;
+
+    public ProxyChannelPool(Config config) {
+        this.maxIdle = config.getIntValue("client.pool.maxIdle", 100);
+        // 多路复用模式下，独占隧道只在多路复用隧道不可用时使用，不预热
+        this.minIdle = config.getBooleanValue("client.mux.enable", false)
+                ? 0 : Math.min(config.getIntValue("client.pool.minIdle", 4), maxIdle);
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIntValue("client.pool.idleTimeout", 300));
+        this.serverHost = config.getStringValue("server.host");
+        this.serverPort = config.getIntValue("server.port");
+        this.targetIdle = minIdle;
+    }
+
+    /**
+     * 控制连接认证成功后调用：预热连接，并在控制连接的 EventLoop 上启动维护任务
+     *
+     * @param cmdChannel 控制连接
+     * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
+     */
+    public synchronized void start(Channel cmdChannel, Bootstrap proxyServerBootstrap) {
+        stop();
+        this.bootstrap = proxyServerBootstrap;
+        borrowRate = 0;
+        targetIdle = minIdle;
+        refill();
+        maintainFuture = cmdChannel.eventLoop().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, MAINTAIN_INTERVAL_MILLIS, MAINTAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 控制连接断开后调用：停止维护任务，关闭所有空闲连接
+     */
+    public synchronized void stop() {
+        if (maintainFuture != null) {
+            maintainFuture.cancel(false);
+            maintainFuture = null;
+        }
+        bootstrap = null;
+        Channel channel;
+        while ((channel = pollIdle()) != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * 连接真实服务器之前，预先选择逻辑流使用的 EventLoop
+     *
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号
+     * @return 和用户连接同一个 EventLoop 的空闲连接所在的 EventLoop，没有时为最近归还的连接所在的 EventLoop；
+     * 没有空闲连接时返回 null
+     */
+    public EventLoop selectLoop(int peerLoop) {
+        Channel first = null;
+        int scanned = 0;
+        for (Channel channel : idleChannels) {
+            if (++scanned > SCAN_LIMIT) {
+                break;
+            }
+            if (!channel.isActive()) {
+                continue;
+            }
+            if (isPeerLoop(channel, peerLoop)) {
+                return channel.eventLoop();
+            }
+            if (first == null) {
+                first = channel;
+            }
+        }
+        return first == null ? null : first.eventLoop();
+    }
+
+    /**
+     * 借出一条连接；没有可用的空闲连接时，建立新的连接
+     *
+     * @param proxyServerBootstrap 建立代理客户端和代理服务器连接的启动器
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号，未知时为 -1
+     * @param loop 真实服务器连接所在的 EventLoop，为 null 时不区分
+     * @param listener 建立隧道的监听器
+     */
+    public void borrow(Bootstrap proxyServerBootstrap, int peerLoop, EventLoop loop, final ProxyChannelBorrowListener listener) {
+        borrowsSinceMaintain.incrementAndGet();
+        Channel channel = loop == null ? null : pollIdle(peerLoop, loop);
+        if (channel != null) {
+            hits.increment();
+            listener.success(channel);
+            return;
+        }
+        while ((channel = pollIdle()) != null) {
+            // 借出前检查连接是否可用
+            if (channel.isActive()) {
+                hits.increment();
+                listener.success(channel);
+                return;
+            }
+            discards.increment();
+        }
+
+        misses.increment();
+        // 需求超过了空闲连接数，提前补充，不等待下一次维护
+        refill();
+        // 新连接建立在真实服务器连接的 EventLoop 上
+        Bootstrap b = loop == null ? proxyServerBootstrap : proxyServerBootstrap.clone(loop);
+        b.connect(serverHost, serverPort).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                // 连接成功
+                if (future.isSuccess()) {
+                    // 绑定关系
+                    listener.success(future.channel());
+                } else {
+                    logger.warn("connect proxy server failed", future.cause());
+                    // 通知代理服务器关闭此代理服务（关闭端口监听）
+                    listener.error(future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * 归还连接；空闲连接数达到上限时直接关闭
+     *
+     * @param proxyChannel 代理客户端和代理服务器的连接
+     */
+    public void giveBack(Channel proxyChannel) {
+        if (!proxyChannel.isActive() || idleCount.get() >= maxIdle) {
+            proxyChannel.close();
+            return;
+        }
+        proxyChannel.config().setOption(ChannelOption.AUTO_READ, true);
+        // 解除proxyChannel和真实服务器的关系
+        proxyChannel.attr(Constants.NEXT_CHANNEL).set(null);
+        offerIdle(proxyChannel);
+        logger.debug("return ProxyChanel to the pool, channel is {}, pool current size is {} ", proxyChannel, idleCount.get());
+    }
+
+    /**
+     * 移除连接池中指定的连接，连接断开时调用
+     *
+     * @param proxyChannel 代理客户端和代理服务器的连接
+     */
+    public void remove(Channel proxyChannel) {
+        if (idleChannels.remove(proxyChannel)) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 更新借出速率和目标数量，回收空闲超时的连接，补充连接
+     */
+    private void maintain() {
+        int borrows = borrowsSinceMaintain.getAndSet(0);
+        borrowRate = borrowRate * (1 - RATE_ALPHA) + borrows * RATE_ALPHA * 1000 / MAINTAIN_INTERVAL_MILLIS;
+        targetIdle = (int) Math.min(maxIdle, Math.max(minIdle, Math.ceil(borrowRate)));
+
+        long now = System.nanoTime();
+        // 队尾是空闲最久的连接
+        while (idleCount.get() > targetIdle) {
+            Channel channel = idleChannels.peekLast();
+            if (channel == null || now - pooledAt(channel) < idleTimeoutNanos) {
+                break;
+            }
+            if (idleChannels.removeLastOccurrence(channel)) {
+                idleCount.decrementAndGet();
+                evictions.increment();
+                channel.close();
+            }
+        }
+        refill();
+
+        if (++maintains % STATS_LOG_INTERVAL == 0 && hits.sum() + misses.sum() > 0) {
+            logger.info("proxy channel pool: idle {}, target {}, borrowRate {}/s, hits {}, misses {}, hitRate {}%, evictions {}, discards {}",
+                    idleCount.get(), targetIdle, String.format("%.2f", borrowRate), hits.sum(), misses.sum(),
+                    String.format("%.1f", getHitRate() * 100), evictions.sum(), discards.sum());
+        }
+    }
+
+    /**
+     * 建立连接，补足到目标数量
+     */
+    private void refill() {
+        final Bootstrap b = bootstrap;
+        if (b == null) {
+            return;
+        }
+        for (;;) {
+            int pending = pendingCount.get();
+            if (idleCount.get() + pending >= targetIdle) {
+                return;
+            }
+            if (!pendingCount.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            b.connect(serverHost, serverPort).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    pendingCount.decrementAndGet();
+                    if (!future.isSuccess()) {
+                        logger.warn("pre-connect proxy server failed, {}", future.cause().toString());
+                        return;
+                    }
+                    // 连接池已经停止，或者已经有足够的空闲连接
+                    if (bootstrap != b || idleCount.get() >= maxIdle) {
+                        future.channel().close();
+                        return;
+                    }
+                    offerIdle(future.channel());
+                }
+            });
+        }
+    }
+
+    private void offerIdle(Channel channel) {
+        channel.attr(POOLED_AT).set(System.nanoTime());
+        idleChannels.offerFirst(channel);
+        idleCount.incrementAndGet();
+    }
+
+    private Channel pollIdle() {
+        Channel channel = idleChannels.pollFirst();
+        if (channel != null) {
+            idleCount.decrementAndGet();
+        }
+        return channel;
+    }
+
+    /**
+     * 在队头的 {@link #SCAN_LIMIT} 个空闲连接中，选择和真实服务器连接同一个 EventLoop 的连接，
+     * 其中在代理服务器上和用户连接同一个 EventLoop 的优先；已经断开的连接顺便移除
+     *
+     * @return 连接；没有同一个 EventLoop 上的连接时返回 null
+     */
+    private Channel pollIdle(int peerLoop, EventLoop loop) {
+        for (;;) {
+            Channel candidate = null;
+            int scanned = 0;
+            for (Channel channel : idleChannels) {
+                if (++scanned > SCAN_LIMIT) {
+                    break;
+                }
+                if (!channel.isActive()) {
+                    if (idleChannels.removeFirstOccurrence(channel)) {
+                        idleCount.decrementAndGet();
+                        discards.increment();
+                    }
+                    continue;
+                }
+                if (channel.eventLoop() != loop) {
+                    continue;
+                }
+                if (isPeerLoop(channel, peerLoop)) {
+                    candidate = channel;
+                    break;
+                }
+                if (candidate == null) {
+                    candidate = channel;
+                }
+            }
+            if (candidate == null) {
+                return null;
+            }
+            // 其他线程同时借出了这条连接，重新选择
+            if (idleChannels.removeFirstOccurrence(candidate)) {
+                idleCount.decrementAndGet();
+                return candidate;
+            }
+        }
+    }
+
+    private static boolean isPeerLoop(Channel channel, int peerLoop) {
+        Integer loop = channel.attr(Constants.PEER_LOOP).get();
+        return peerLoop >= 0 && loop != null && loop == peerLoop;
+    }
+
+    private static long pooledAt(Channel channel) {
+        Long pooledAt = channel.attr(POOLED_AT).get();
+        return pooledAt == null ? System.nanoTime() : pooledAt;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getTargetIdle() {
+        return targetIdle;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return 命中率，没有借出过时为 0
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
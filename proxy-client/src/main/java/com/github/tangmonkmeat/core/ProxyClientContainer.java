@@ -2,6 +2,8 @@ package com.github.tangmonkmeat.core;
 
 import com.github.tangmonkmeat.common.Config;
 import com.github.tangmonkmeat.common.Container.Container;
+import com.github.tangmonkmeat.common.util.SslContextUtil;
+import com.github.tangmonkmeat.common.util.TransportUtil;
 import com.github.tangmonkmeat.handler.ClientChannelHandler;
 import com.github.tangmonkmeat.handler.RealServerChannelHandler;
 import com.github.tangmonkmeat.listener.ChannelStatusListener;
@@ -9,15 +11,21 @@ import com.github.tangmonkmeat.web.metrics.IdleCheckHandler;
 import com.github.tangmonkmeat.web.metrics.ProxyMessage;
 import com.github.tangmonkmeat.web.metrics.ProxyMessageDecoder;
 import com.github.tangmonkmeat.web.metrics.ProxyMessageEncoder;
+import com.github.tangmonkmeat.web.metrics.StreamCompression;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Description:
@@ -58,7 +66,7 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
     /**
      * 线程池
      */
-    private final NioEventLoopGroup workerGroup;
+    private final EventLoopGroup workerGroup;
 
     /**
      * 和真实服务器相关的启动器
@@ -76,22 +84,26 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
     private final Config config = Config.getInstance();
 
     /**
-     * 重连代理服务器 间隔；
-     *
-     * 每次重连失败后，延长等待时间 2倍；如果等待时间 > 60s,就重置为 1s
+     * 隧道的 TLS，client.ssl.enable=false 时为 null；
+     * 所有连接共享同一个 SslContext，按代理服务器的地址恢复会话，控制连接之后建立的隧道不需要完整握手
      */
-    private long sleepTimeMill = 1000;
+    private final SslContext sslContext;
 
     /**
-     * 重连代理服务器的次数
+     * 重连代理服务器的退避策略：指数退避 + 随机抖动，认证成功后清零
      */
-    private final AtomicInteger retry = new AtomicInteger(0);
+    private final ReconnectBackoff backoff = new ReconnectBackoff(config);
 
     public ProxyClientContainer(){
-        // 默认线程数是 cpu核心数的2倍
-        workerGroup = new NioEventLoopGroup();
+        // 默认线程数是 cpu核心数的2倍；Linux 下优先使用 native epoll
+        try {
+            sslContext = SslContextUtil.newClientContext(config, "client.ssl.");
+        } catch (Exception ex) {
+            throw new IllegalStateException("create tunnel ssl context failed", ex);
+        }
+        workerGroup = TransportUtil.newEventLoopGroup();
         realServerBootstrap.group(workerGroup)
-                .channel(NioSocketChannel.class)
+                .channel(TransportUtil.socketChannelClass())
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
@@ -99,19 +111,39 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
                     }
                 });
         proxyServerBootstrap.group(workerGroup)
-                .channel(NioSocketChannel.class)
+                .channel(TransportUtil.socketChannelClass())
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast(newSslHandler(ch));
+                        }
                         pipeline.addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH,LENGTH_FIELD_OFFSET,LENGTH_FIELD_LENGTH,LENGTH_ADJUSTMENT,INITIAL_BYTES_TO_STRIP));
                         pipeline.addLast(new ProxyMessageEncoder());
+                        pipeline.addLast(ClientChannelManager.newBatchCodec());
                         pipeline.addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME,IdleCheckHandler.WRITE_IDLE_TIME - 10,0));
                         pipeline.addLast(new ClientChannelHandler(realServerBootstrap,proxyServerBootstrap, ProxyClientContainer.this));
                     }
                 });
     }
 
+    /**
+     * 创建隧道的 SslHandler；指定代理服务器的地址，引擎才会从会话缓存中查找可以恢复的会话
+     */
+    private SslHandler newSslHandler(SocketChannel ch) {
+        String host = config.getStringValue("server.host");
+        SslHandler sslHandler = sslContext.newHandler(ch.alloc(), host, config.getIntValue("server.port"));
+        // 校验代理服务器证书中的域名或者 ip
+        if (config.getBooleanValue("client.ssl.verifyHostname", true)) {
+            SSLEngine engine = sslHandler.engine();
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return sslHandler;
+    }
+
     /**
      * 连接代理服务器
      */
@@ -126,40 +158,60 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
                             // 缓存控制连接的channel
                             ClientChannelManager.setCmdChannel(cmdChannel);
                             // 发送认证信息给代理服务器
-                            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.C_TYPE_AUTH, config.getStringValue("client.key"));
+                            // data 为支持的压缩算法、扩展；有可以恢复的会话时再携带会话令牌
+                            ByteBuf authData = Unpooled.buffer(10).writeByte(StreamCompression.SUPPORTED).writeByte(ClientChannelManager.getFeatures());
+                            long sessionToken = ClientChannelManager.getSessionToken();
+                            if (sessionToken != 0){
+                                authData.writeLong(sessionToken);
+                            }
+                            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.C_TYPE_AUTH, config.getStringValue("client.key", ""), authData);
                             cmdChannel.writeAndFlush(proxyMessage);
-                            sleepTimeMill = 1000;
                             logger.info("connect proxy server success, {}", future.channel());
                         }else {
-                            // 递归重连代理服务器
-                            if (retry.getAndAdd(1) < config.getIntValue("client.retryMaxCount")) {
-                                logger.warn("connect proxy server failed {} retry，wait {}ms",retry.get(), sleepTimeMill, future.cause());
-                                // 连接失败，等待重连
-                                reconnectWait();
-                                connectProxyServer();
-                            }else {
-                                System.exit(-1);
-                            }
+                            logger.warn("connect proxy server failed, {}", future.cause().toString());
+                            scheduleReconnect();
                         }
                     }
                 });
     }
 
     /**
-     * 等待重连代理服务器
+     * 延迟重连代理服务器：由 EventLoop 定时执行，不阻塞当前线程，
+     * 同一个 EventLoop 上的真实服务器连接、隧道照常转发；超过重试上限时退出（{@link #exit()}）
      */
-    private void reconnectWait(){
-        try {
-            if (sleepTimeMill > 60000) {
-                sleepTimeMill = 1000;
+    private void scheduleReconnect(){
+        if (workerGroup.isShuttingDown()){
+            return;
+        }
+        long delayMillis = backoff.nextDelayMillis();
+        if (delayMillis < 0){
+            logger.error("connect proxy server failed {} times, exit", backoff.getAttempts());
+            exit();
+            return;
+        }
+        logger.warn("reconnect proxy server after {}ms, attempt {}", delayMillis, backoff.getAttempts());
+        workerGroup.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectProxyServer();
             }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
 
-            synchronized (this) {
-                sleepTimeMill = sleepTimeMill * 2;
-                wait(sleepTimeMill);
+    /**
+     * 重试次数用完后退出：当前线程是 EventLoop，不能在这里阻塞在 System.exit 上等待关闭钩子，
+     * 否则线程池无法优雅关闭；先开始关闭线程池（之后不再安排重连），另起线程等待线程池关闭完成，再退出进程
+     */
+    private void exit(){
+        final Future<?> terminationFuture = workerGroup.shutdownGracefully();
+        Thread exitThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                terminationFuture.awaitUninterruptibly();
+                System.exit(-1);
             }
-        } catch (InterruptedException ignored) {
-        }
+        }, "proxy-client-exit");
+        exitThread.start();
     }
 
     /**
@@ -185,14 +237,18 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        // 递归重连代理服务器
-        if (retry.getAndAdd(1) < config.getIntValue("client.retryMaxCount")) {
-            logger.warn("connect proxy server failed {} retry，wait {}ms",retry.get(), sleepTimeMill);
-            // 连接失败，等待重连
-            reconnectWait();
-            connectProxyServer();
-        }else {
-            System.exit(-1);
+        scheduleReconnect();
+    }
+
+    /**
+     * 认证成功，清零连续失败的次数；
+     * 多路复用模式，预先建立共享的隧道，注册时携带认证得到的隧道令牌；恢复会话时只补充断开的隧道
+     */
+    @Override
+    public void authenticated(ChannelHandlerContext ctx) {
+        backoff.reset();
+        if (ClientChannelManager.isMuxEnabled()){
+            ClientChannelManager.openMuxChannels(proxyServerBootstrap);
         }
     }
 }
@@ -0,0 +1,310 @@
+package com.github.tangmonkmeat.core;
+
+import com.github.tangmonkmeat.common.Config;
+import com.github.tangmonkmeat.web.metrics.Constants;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description:
+ * 代理客户端和真实服务器之间的连接池，按真实服务器地址（lan，ip:port）分组
+ * <p>
+ * 代理客户端只转发字节流，不知道应用层协议的边界，所以只有 client.realServer.pool.targets 中配置的地址才复用，
+ * 例如支持 keep-alive 的 HTTP 服务；其他地址和原来一样，每个用户连接新建、断开时关闭。
+ * </p>
+ * <p>
+ * 1 用户断开后，真实服务器连接解除绑定，只有确认处在请求之间的空闲边界才放回连接池，否则关闭：
+ * 用户连接不是异常中断的（见 {@link com.github.tangmonkmeat.web.metrics.ProxyMessage#TYPE_DISCONNECT}），
+ * 转发给真实服务器的数据全部写出，最后一次写出之后收到过真实服务器的数据（请求已经得到响应，用户不是在等待响应时中断），
+ * 并且之后 client.realServer.pool.quietPeriod 毫秒内真实服务器没有再发来数据（响应已经结束）；<br/>
+ * 2 静默期和空闲期间保持读事件：真实服务器发来任何数据或者断开连接，都会关闭并移出连接池，借出的连接不会带有上一个用户的残留数据；<br/>
+ * 3 每个地址最多保留 client.realServer.pool.maxIdle 个空闲连接，空闲超过 client.realServer.pool.idleTimeout 秒后关闭；<br/>
+ * 4 借出前检查连接是否仍然可用。
+ * </p>
+ * 同时缓存每个 lan 解析后的地址，建立连接时不再重复拆分字符串；
+ * 连接建立在指定的 EventLoop（承载逻辑流的隧道所在的 EventLoop）上，借出时优先选择同一个 EventLoop 上的空闲连接
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/13 上午10:20
+ */
+public class RealServerChannelPool {
+
+    /**
+     * 真实服务器连接所属的地址，只有可以复用的地址才设置
+     */
+    private static final AttributeKey<Target> TARGET = AttributeKey.newInstance("real_server_pool_target");
+
+    /**
+     * 空闲连接的超时任务
+     */
+    private static final AttributeKey<ScheduledFuture<?>> IDLE_TIMEOUT = AttributeKey.newInstance("real_server_pool_idle_timeout");
+
+    /**
+     * 记录请求是否已经得到响应，只有可以复用的地址才设置
+     */
+    private static final AttributeKey<ExchangeTracker> EXCHANGE_TRACKER = AttributeKey.newInstance("real_server_pool_exchange_tracker");
+
+    /**
+     * 按 EventLoop 选择空闲连接时，最多检查的连接数
+     */
+    private static final int SCAN_LIMIT = 16;
+
+    /**
+     * key: lan，ip:port
+     * value: 解析后的地址和空闲连接
+     */
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+
+    /**
+     * 可以复用连接的真实服务器地址
+     */
+    private final Set<String> poolableTargets = new HashSet<>();
+
+    private final int maxIdle;
+
+    private final long idleTimeoutMillis;
+
+    private final long quietPeriodMillis;
+
+    public RealServerChannelPool(Config config) {
+        for (String target : config.getStringValue("client.realServer.pool.targets", "").split(",")) {
+            if (!target.trim().isEmpty()) {
+                poolableTargets.add(target.trim());
+            }
+        }
+        this.maxIdle = config.getIntValue("client.realServer.pool.maxIdle", 8);
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getIntValue("client.realServer.pool.idleTimeout", 30));
+        this.quietPeriodMillis = config.getIntValue("client.realServer.pool.quietPeriod", 200);
+    }
+
+    /**
+     * 获取真实服务器连接：可以复用的地址优先借出空闲连接，否则新建连接
+     *
+     * @param realServerBootstrap 建立代理客户端和真实服务器连接的启动器
+     * @param lan 真实服务器地址 ip:port
+     * @param loop 连接所在的 EventLoop，为 null 时由启动器分配
+     * @return 连接结果；借出空闲连接时是已经成功的 future
+     */
+    public ChannelFuture connect(Bootstrap realServerBootstrap, String lan, EventLoop loop) {
+        Target target = target(lan);
+        if (target.poolable) {
+            Channel channel;
+            while ((channel = target.poll(loop)) != null) {
+                ScheduledFuture<?> idleTimeout = channel.attr(IDLE_TIMEOUT).getAndSet(null);
+                if (idleTimeout != null) {
+                    idleTimeout.cancel(false);
+                }
+                // 借出前检查连接是否可用
+                if (channel.isActive()) {
+                    return channel.newSucceededFuture();
+                }
+            }
+        }
+        ChannelFuture future = (loop == null ? realServerBootstrap : realServerBootstrap.clone(loop)).connect(target.address);
+        if (target.poolable) {
+            ExchangeTracker tracker = new ExchangeTracker();
+            future.channel().attr(TARGET).set(target);
+            future.channel().attr(EXCHANGE_TRACKER).set(tracker);
+            future.channel().pipeline().addFirst(tracker);
+        }
+        return future;
+    }
+
+    /**
+     * 用户断开后释放真实服务器连接：可以复用的连接解除绑定，确认处在空闲边界后放回连接池，否则数据发送完成后关闭
+     *
+     * @param realServerChannel 真实服务器连接
+     * @param aborted 用户连接是否异常中断，中断时不复用
+     */
+    public void release(final Channel realServerChannel, boolean aborted) {
+        final Target target = realServerChannel.attr(TARGET).get();
+        if (aborted || target == null || !realServerChannel.isActive() || target.idleCount.get() >= maxIdle) {
+            close(realServerChannel);
+            return;
+        }
+        // 解除和用户连接（逻辑流）的绑定；之后真实服务器发来的数据会关闭此连接
+        ClientChannelManager.removeRealServerChannel(ClientChannelManager.getRealServerChannelStreamId(realServerChannel));
+        realServerChannel.attr(Constants.NEXT_CHANNEL).set(null);
+        realServerChannel.attr(Constants.STREAM_ID).set(null);
+        realServerChannel.attr(Constants.STREAM_WINDOW).set(null);
+        realServerChannel.attr(Constants.STREAM_COMPRESSION).set(null);
+        realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
+        // 写出已经转发、还未 flush 的数据；写入按顺序完成，空 buffer 写出成功时之前的数据都已经写入 socket
+        realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess() || realServerChannel.attr(EXCHANGE_TRACKER).get().awaitingResponse) {
+                    // 用户在等待响应时断开，真实服务器之后还会发来上一个请求的响应，不能复用
+                    close(realServerChannel);
+                    return;
+                }
+                // 静默期内真实服务器发来数据（响应还没有结束）会直接关闭连接
+                realServerChannel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        offer(target, realServerChannel);
+                    }
+                }, quietPeriodMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * 静默期结束，真实服务器连接放回连接池；必须在连接的 EventLoop 上调用
+     */
+    private void offer(final Target target, final Channel realServerChannel) {
+        if (!realServerChannel.isActive()) {
+            return;
+        }
+        if (realServerChannel.attr(EXCHANGE_TRACKER).get().awaitingResponse || target.idleCount.get() >= maxIdle) {
+            close(realServerChannel);
+            return;
+        }
+        target.offer(realServerChannel);
+        realServerChannel.attr(IDLE_TIMEOUT).set(realServerChannel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (target.remove(realServerChannel)) {
+                    realServerChannel.close();
+                }
+            }
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 通知真实服务器关闭 socket，然后 close channel
+     */
+    private static void close(Channel realServerChannel) {
+        realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 真实服务器连接断开时，移出连接池
+     *
+     * @param realServerChannel 真实服务器连接
+     */
+    public void remove(Channel realServerChannel) {
+        Target target = realServerChannel.attr(TARGET).get();
+        if (target != null) {
+            target.remove(realServerChannel);
+        }
+    }
+
+    private Target target(String lan) {
+        Target target = targets.get(lan);
+        if (target == null) {
+            String[] ipAndPort = lan.split(":");
+            // 未解析的地址由 Bootstrap 在连接时解析，域名变化后同样生效
+            target = new Target(InetSocketAddress.createUnresolved(ipAndPort[0], Integer.parseInt(ipAndPort[1])),
+                    poolableTargets.contains(lan));
+            Target exist = targets.putIfAbsent(lan, target);
+            if (exist != null) {
+                target = exist;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 记录真实服务器连接上的请求是否已经得到响应，只在连接的 EventLoop 上读写
+     */
+    private static final class ExchangeTracker extends ChannelDuplexHandler {
+
+        /**
+         * 最后一次写给真实服务器的数据之后还没有收到任何数据
+         */
+        private boolean awaitingResponse;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            awaitingResponse = false;
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf && ((ByteBuf) msg).isReadable()) {
+                awaitingResponse = true;
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    /**
+     * 一个真实服务器地址
+     */
+    private static final class Target {
+
+        private final InetSocketAddress address;
+
+        private final boolean poolable;
+
+        /**
+         * 空闲连接，队头是最近归还的连接
+         */
+        private final ConcurrentLinkedDeque<Channel> idleChannels = new ConcurrentLinkedDeque<>();
+
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        Target(InetSocketAddress address, boolean poolable) {
+            this.address = address;
+            this.poolable = poolable;
+        }
+
+        void offer(Channel channel) {
+            idleChannels.offerFirst(channel);
+            idleCount.incrementAndGet();
+        }
+
+        /**
+         * 借出空闲连接，队头的 {@link #SCAN_LIMIT} 个连接中优先选择 loop 上的连接，没有时借出最近归还的连接
+         */
+        Channel poll(EventLoop loop) {
+            if (loop != null) {
+                int scanned = 0;
+                for (Channel channel : idleChannels) {
+                    if (++scanned > SCAN_LIMIT) {
+                        break;
+                    }
+                    if (channel.eventLoop() == loop && remove(channel)) {
+                        return channel;
+                    }
+                }
+            }
+            Channel channel = idleChannels.pollFirst();
+            if (channel != null) {
+                idleCount.decrementAndGet();
+            }
+            return channel;
+        }
+
+        boolean remove(Channel channel) {
+            if (idleChannels.remove(channel)) {
+                idleCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.tangmonkmeat.core;
+
+import com.github.tangmonkmeat.common.Config;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Description:
+ * 重连代理服务器的退避策略：指数退避 + 随机抖动
+ * <p>
+ * 1 第 n 次连续失败后等待 min(maxDelay, initialDelay * 2^(n-1))，再按 jitter 随机缩短，
+ * 例如 jitter 为 0.5 时在 [delay/2, delay] 之间均匀分布，避免大量代理客户端在代理服务器重启后同时重连；<br/>
+ * 2 连续失败的次数在认证成功后清零，偶尔的断线不会累计到重试上限；<br/>
+ * 3 client.retryMaxCount 为连续失败的最大次数，0 表示不限制。
+ * </p>
+ * 只计算等待时间，不等待；由调用者在 EventLoop 上延迟执行重连
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/15 下午2:10
+ */
+public class ReconnectBackoff {
+
+    /**
+     * 指数的上限，避免移位溢出
+     */
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialDelayMillis;
+
+    private final long maxDelayMillis;
+
+    /**
+     * 随机缩短的最大比例，0 ~ 1
+     */
+    private final double jitter;
+
+    /**
+     * 连续失败的最大次数，0 表示不限制
+     */
+    private final int maxAttempts;
+
+    /**
+     * 连续失败的次数
+     */
+    private int attempts;
+
+    public ReconnectBackoff(Config config) {
+        this.initialDelayMillis = Math.max(1, config.getIntValue("client.reconnect.initialDelayMillis", 1000));
+        this.maxDelayMillis = Math.max(initialDelayMillis, config.getIntValue("client.reconnect.maxDelayMillis", 60000));
+        this.jitter = Math.min(1, Math.max(0, config.getDoubleValue("client.reconnect.jitter", 0.5)));
+        this.maxAttempts = config.getIntValue("client.retryMaxCount", 0);
+    }
+
+    /**
+     * 记录一次失败，计算下一次重连前的等待时间
+     *
+     * @return 等待时间，单位毫秒；超过重试上限时返回 -1
+     */
+    public synchronized long nextDelayMillis() {
+        if (maxAttempts > 0 && attempts >= maxAttempts) {
+            return -1;
+        }
+        long delay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempts, MAX_SHIFT));
+        attempts++;
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 认证成功后清零连续失败的次数
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * @return 连续失败的次数
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
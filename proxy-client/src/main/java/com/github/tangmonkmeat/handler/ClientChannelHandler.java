@@ -1,11 +1,14 @@
 package com.github.tangmonkmeat.handler;
 
-import com.github.tangmonkmeat.common.Config;
 import com.github.tangmonkmeat.core.ClientChannelManager;
 import com.github.tangmonkmeat.listener.ChannelStatusListener;
 import com.github.tangmonkmeat.listener.ProxyChannelBorrowListener;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.FlushConsolidator;
 import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.RawTunnelHandler;
+import com.github.tangmonkmeat.web.metrics.StreamCompression;
+import com.github.tangmonkmeat.web.metrics.StreamWindow;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -13,6 +16,9 @@ import io.netty.channel.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Description:
  * 处理 代理客户端和代理服务器端的 msg 的Handler
@@ -24,6 +30,11 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     private static final Logger logger = LoggerFactory.getLogger(ClientChannelHandler.class);
 
+    /**
+     * 多路复用隧道意外断开后，重新建立隧道的延迟，单位秒
+     */
+    private static final int MUX_REOPEN_DELAY_SECONDS = 1;
+
     /**
      * 代理客户端和真实服务器的 启动器
      *
@@ -42,6 +53,11 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      */
     private final ChannelStatusListener listener;
 
+    /**
+     * 隧道数据转发给真实服务器时，合并 flush
+     */
+    private final FlushConsolidator flushConsolidator = ClientChannelManager.newFlushConsolidator();
+
     public ClientChannelHandler(Bootstrap realServerBootstrap, Bootstrap proxyServerBootstrap, ChannelStatusListener listener) {
         this.realServerBootstrap = realServerBootstrap;
         this.proxyServerBootstrap = proxyServerBootstrap;
@@ -59,6 +75,10 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
         logger.debug("received proxy message, type is {}", msg.getType());
         // 根据消息类型，分别处理
         switch (msg.getType()){
+            case ProxyMessage.C_TYPE_AUTH:{
+                handleAuthMessage(ctx,msg);
+                break;
+            }
             case ProxyMessage.TYPE_CONNECT:{
                 handleConnectionMessage(ctx,msg);
                 break;
@@ -71,70 +91,244 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
                 handleDisConnectionMessage(ctx,msg);
                 break;
             }
+            case ProxyMessage.TYPE_WINDOW_UPDATE:{
+                handleWindowUpdateMessage(ctx,msg);
+                break;
+            }
+            case ProxyMessage.TYPE_LOOP_HINT:{
+                handleLoopHintMessage(ctx,msg);
+                break;
+            }
+            case ProxyMessage.TYPE_RAW:{
+                handleRawMessage(ctx,msg);
+                break;
+            }
             default: break;
         }
     }
 
+    /**
+     * 处理认证成功的响应，记录代理服务器分配的客户端编号，
+     * 之后建立独占隧道时以编号代替 clientKey；记录代理服务器支持的扩展、会话令牌、隧道令牌；同时预热独占隧道的连接池
+     */
+    public void handleAuthMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        ByteBuf data = msg.getData();
+        if (data != null && data.readableBytes() >= 4){
+            ClientChannelManager.setClientIndex(data.getInt(data.readerIndex()));
+            // 代理服务器支持的扩展，旧版本的代理服务器不携带
+            ClientChannelManager.setServerFeatures(data.readableBytes() > 4 ? data.getUnsignedByte(data.readerIndex() + 4) : 0);
+            // 会话令牌、是否恢复了原来的会话，代理服务器不支持会话恢复时令牌为 0
+            boolean session = data.readableBytes() >= 14;
+            long sessionToken = session ? data.getLong(data.readerIndex() + 5) : 0;
+            if (ClientChannelManager.resumeSession(sessionToken, session && data.getBoolean(data.readerIndex() + 13))){
+                logger.info("session resumed, {}", ctx.channel());
+            }
+            // 隧道令牌，建立独占隧道时携带
+            if (data.readableBytes() >= 14 + ProxyMessage.TUNNEL_TOKEN_LENGTH){
+                byte[] tunnelToken = new byte[ProxyMessage.TUNNEL_TOKEN_LENGTH];
+                data.getBytes(data.readerIndex() + 14, tunnelToken);
+                ClientChannelManager.setTunnelToken(tunnelToken);
+            }
+            logger.info("auth success, clientIndex is {}", ClientChannelManager.getClientIndex());
+            listener.authenticated(ctx);
+            ClientChannelManager.startProxyChannelPool(ctx.channel(), proxyServerBootstrap);
+        }
+    }
+
+    /**
+     * 记录隧道在代理服务器上所在的 EventLoop，之后按此选择承载逻辑流的隧道
+     */
+    public void handleLoopHintMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        ByteBuf data = msg.getData();
+        if (data != null && data.readableBytes() >= 4){
+            ctx.channel().attr(Constants.PEER_LOOP).set(data.getInt(data.readerIndex()));
+        }
+    }
+
     /**
      * 处理连接类型的消息；
      * <p>1 根据代理服务器响应的 真实服务器的ip和port，建立代理客户端和真实服务器的通道；</p>
      * <p>2 如果通道建立成功，就会再创建 代理客户端和代理服务器的通道；</p>
      * <p>3 绑定两个通道的映射关系，根据唯一标识缓存通道，为通道绑定唯一标示</p>
      * <p>4 如果和真实服务器的通道建立失败，就通知代理服务器关闭端口监听</p>
+     * 开启 EventLoop 对齐时，先选择承载逻辑流的隧道，真实服务器连接建立在隧道的 EventLoop 上，
+     * 隧道又优先选择在代理服务器上和用户连接同一个 EventLoop 的连接，两端的转发都是同一线程内的直接写
      */
     public void handleConnectionMessage(ChannelHandlerContext ctx,ProxyMessage msg){
         Channel cmdChannel = ctx.channel();
-        final String userId = msg.getUri();
-        String[] realServerIpAndPort = new String(msg.getData()).split(":");
-        // 真实服务器的 ip 和 port
-        String ip = realServerIpAndPort[0];
-        int port = Integer.parseInt(realServerIpAndPort[1]);
-        // 连接真实服务器
-        realServerBootstrap.connect(ip,port).addListener(new ChannelFutureListener() {
+        final int streamId = msg.getStreamId();
+        ByteBuf data = msg.getData();
+        // 用户连接在代理服务器上所在的 EventLoop，双方都支持 EventLoop 对齐时才携带
+        final int peerLoop = ClientChannelManager.isLoopAffinityEnabled() && data.readableBytes() > 4 ? data.readInt() : -1;
+        // 真实服务器的 ip:port
+        String lan = data.toString(StandardCharsets.UTF_8);
+        // 代理服务器为该端口选择的压缩算法，旧版本的代理服务器为 null
+        final byte codec = StreamCompression.parse(msg.getUri());
+        final long dialStart = System.nanoTime();
+        // 连接真实服务器期间，代理服务器可能经控制连接提前转发用户数据
+        ClientChannelManager.registerEarlyData(streamId);
+        // 预先选择隧道所在的 EventLoop，真实服务器连接建立在同一个 EventLoop 上
+        final Channel muxChannel = ClientChannelManager.isMuxEnabled() ? ClientChannelManager.selectMuxChannel(streamId, peerLoop) : null;
+        EventLoop loop = null;
+        if (ClientChannelManager.isLoopAffinityEnabled()){
+            loop = muxChannel != null ? muxChannel.eventLoop() : ClientChannelManager.selectProxyChannelLoop(peerLoop);
+        }
+        // 连接真实服务器，可以复用的地址优先使用连接池中的连接
+        ClientChannelManager.connectRealServer(realServerBootstrap, lan, loop).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 // 通道建立成功
                 if (future.isSuccess()){
                     final Channel realServerChannel = future.channel();
+                    // 连接真实服务器的耗时，随 TYPE_CONNECT 上报给代理服务器
+                    final int dialMicros = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - dialStart) / 1000);
                     logger.debug("connect realServer success, {}", realServerChannel);
+                    realServerChannel.attr(Constants.STREAM_ID).set(streamId);
+                    if (codec != StreamCompression.NONE){
+                        realServerChannel.attr(Constants.STREAM_COMPRESSION).set(new StreamCompression(codec, null));
+                    }
+                    // 提前到达的用户数据立即写给真实服务器，字节数随 TYPE_CONNECT 上报，没有收到的由代理服务器经隧道重发
+                    ByteBuf earlyData = ClientChannelManager.takeEarlyData(streamId);
+                    final int earlyBytes = earlyData == null ? 0 : earlyData.readableBytes();
+                    if (earlyData != null){
+                        realServerChannel.writeAndFlush(earlyData);
+                    }
+                    // 多路复用模式，直接使用已经建立的隧道，省去建立隧道的往返
+                    if (ClientChannelManager.isMuxEnabled() && openMuxStream(muxChannel, peerLoop, realServerChannel, streamId, dialMicros, earlyBytes)){
+                        return;
+                    }
                     // 由于和代理服务器的通道还未打通，所以先注销掉和真实服务器通道的读事件
                     // 避免读缓冲区内存占用过多
                     realServerChannel.config().setOption(ChannelOption.AUTO_READ,false);
                     // 建立和代理服务器的通道，同时绑定两个通道的关系
-                    ClientChannelManager.borrowProxyChanel(proxyServerBootstrap, new ProxyChannelBorrowListener() {
+                    EventLoop realServerLoop = ClientChannelManager.isLoopAffinityEnabled() ? realServerChannel.eventLoop() : null;
+                    // 逻辑流没有压缩时，隧道打通后可以切换为原始字节流
+                    final boolean raw = ClientChannelManager.isRawTunnelEnabled() && codec == StreamCompression.NONE;
+                    ClientChannelManager.borrowProxyChanel(proxyServerBootstrap, peerLoop, realServerLoop, new ProxyChannelBorrowListener() {
                         @Override
-                        public void success(Channel proxyServerChannel) {
-                            // 两个通道绑定关系
-                            proxyServerChannel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
-                            realServerChannel.attr(Constants.NEXT_CHANNEL).set(proxyServerChannel);
-
-                            // 通知代理服务器，隧道已经打通
-                            String uri = userId + "@" + Config.getInstance().getStringValue("client.key");
-                            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_CONNECT,uri);
-                            proxyServerChannel.writeAndFlush(proxyMessage);
-
-                            // 重新注册和真实服务器通道的读事件
-                            realServerChannel.config().setOption(ChannelOption.AUTO_READ,true);
-                            // 根据唯一标示缓存通道
-                            ClientChannelManager.addRealServerChannel(userId,realServerChannel);
-                            // 为通道绑定唯一标示
-                            ClientChannelManager.setRealServerChannelUserId(realServerChannel,userId);
+                        public void success(final Channel proxyServerChannel) {
+                            if (!raw){
+                                bindProxyChannel(proxyServerChannel, realServerChannel, streamId, dialMicros, earlyBytes, false);
+                                return;
+                            }
+                            // 切换 pipeline 必须在隧道的 EventLoop 上执行
+                            proxyServerChannel.eventLoop().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    bindProxyChannel(proxyServerChannel, realServerChannel, streamId, dialMicros, earlyBytes, true);
+                                }
+                            });
                         }
 
                         @Override
                         public void error(Throwable cause) {
-                            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, userId);
+                            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, null);
                             cmdChannel.writeAndFlush(proxyMessage);
                         }
                     });
                 }else{
-                    ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, userId);
+                    ByteBuf earlyData = ClientChannelManager.takeEarlyData(streamId);
+                    if (earlyData != null){
+                        earlyData.release();
+                    }
+                    ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, null);
                     cmdChannel.writeAndFlush(proxyMessage);
                 }
             }
         });
     }
 
+    /**
+     * 绑定独占隧道和真实服务器连接，通知代理服务器隧道已经打通，然后恢复读取真实服务器连接
+     *
+     * @param raw 是否请求切换为原始字节流：TYPE_CONNECT 写出后隧道出站立即切换，之后读到的真实服务器数据直接写入隧道；
+     *            入站在收到代理服务器的 {@link ProxyMessage#TYPE_RAW} 后切换
+     */
+    private void bindProxyChannel(Channel proxyServerChannel, Channel realServerChannel, int streamId, int dialMicros, int earlyBytes, boolean raw){
+        // 两个通道绑定关系
+        proxyServerChannel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
+        realServerChannel.attr(Constants.NEXT_CHANNEL).set(proxyServerChannel);
+
+        // 通知代理服务器，隧道已经打通；携带客户端编号，代替 clientKey，以及连接真实服务器的耗时、是否切换为原始字节流；
+        // 最后是隧道令牌，代理服务器据此确认隧道属于已经认证的代理客户端
+        ByteBuf clientIndex = proxyServerChannel.alloc().buffer(13 + ProxyMessage.TUNNEL_TOKEN_LENGTH)
+                .writeInt(ClientChannelManager.getClientIndex()).writeInt(dialMicros).writeInt(earlyBytes)
+                .writeBoolean(raw).writeBytes(ClientChannelManager.getTunnelToken());
+        ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_CONNECT, streamId, null, clientIndex);
+        proxyServerChannel.writeAndFlush(proxyMessage);
+        if (raw){
+            RawTunnelHandler.switchOutbound(proxyServerChannel);
+        }
+
+        // 重新注册和真实服务器通道的读事件
+        realServerChannel.config().setOption(ChannelOption.AUTO_READ,true);
+        // 根据逻辑流标识缓存通道
+        ClientChannelManager.addRealServerChannel(streamId,realServerChannel);
+    }
+
+    /**
+     * 代理服务器同意切换为原始字节流，TYPE_RAW 是隧道上最后一条消息，隧道入站随即切换；
+     * 解码器中已经读入的后续字节作为原始数据转发给真实服务器
+     */
+    public void handleRawMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        Channel proxyServerChannel = ctx.channel();
+        if (!RawTunnelHandler.isRaw(proxyServerChannel)){
+            logger.warn("unexpected raw message, streamId {}, {}", msg.getStreamId(), proxyServerChannel);
+            ctx.close();
+            return;
+        }
+        logger.debug("switch to raw tunnel, streamId {}, {}", msg.getStreamId(), proxyServerChannel);
+        RawTunnelHandler.switchInbound(proxyServerChannel, new RawTunnelHandler(ClientChannelManager.newFlushConsolidator()));
+    }
+
+    /**
+     * 在多路复用隧道上打开逻辑流，并通知代理服务器绑定用户连接
+     *
+     * @param selected 连接真实服务器之前选择的隧道，已经断开时重新选择
+     * @param peerLoop 用户连接在代理服务器上所在的 EventLoop 编号，未知时为 -1
+     * @param realServerChannel 真实服务器连接
+     * @param streamId 逻辑流标识
+     * @param dialMicros 连接真实服务器的耗时，单位微秒
+     * @param earlyBytes 已经写入真实服务器的提前数据字节数
+     * @return 如果没有可用的多路复用隧道，返回 false，由调用方退回独占隧道
+     */
+    private boolean openMuxStream(Channel selected, int peerLoop, Channel realServerChannel, int streamId, int dialMicros, int earlyBytes){
+        Channel muxChannel = selected != null && selected.isActive() ? selected : ClientChannelManager.selectMuxChannel(streamId, peerLoop);
+        if (muxChannel == null){
+            logger.warn("no active mux channel, fallback to dedicated proxy channel, streamId {}", streamId);
+            return false;
+        }
+        // 代理服务器通告接收窗口之前，发送窗口为 0，不读取真实服务器的数据
+        int recvWindow = ClientChannelManager.getMuxWindowSize();
+        realServerChannel.config().setOption(ChannelOption.AUTO_READ, false);
+        realServerChannel.attr(Constants.STREAM_WINDOW).set(new StreamWindow(streamId, realServerChannel, 0, recvWindow, null));
+        ClientChannelManager.addMuxStream(muxChannel, streamId, realServerChannel);
+        ClientChannelManager.addRealServerChannel(streamId, realServerChannel);
+
+        // TYPE_CONNECT 携带代理客户端的接收窗口、连接真实服务器的耗时、提前数据的字节数；隧道注册时已经确定所属的代理客户端
+        ByteBuf window = muxChannel.alloc().buffer(12).writeInt(recvWindow).writeInt(dialMicros).writeInt(earlyBytes);
+        muxChannel.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_CONNECT, streamId, null, window));
+        return true;
+    }
+
+    /**
+     * 处理多路复用隧道上逻辑流的窗口更新，
+     * 扩大发送窗口，窗口由耗尽变为可用时恢复真实服务器连接的读事件
+     */
+    public void handleWindowUpdateMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        if (!ClientChannelManager.isMuxChannel(ctx.channel())){
+            return;
+        }
+        Channel realServerChannel = ClientChannelManager.getMuxStream(ctx.channel(), msg.getStreamId());
+        if (realServerChannel == null){
+            return;
+        }
+        StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null){
+            window.expand(StreamWindow.readWindow(msg, 0));
+        }
+    }
+
     /**
      * 处理断开连接类型的消息：
      * 1 解除隧道关系绑定
@@ -143,15 +337,29 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      */
     public void handleDisConnectionMessage(ChannelHandlerContext ctx,ProxyMessage msg){
         Channel proxyServerChannel = ctx.channel();
+        // 用户连接异常中断，真实服务器连接不再复用
+        boolean aborted = msg.getData() != null && msg.getData().isReadable()
+                && msg.getData().getByte(msg.getData().readerIndex()) != 0;
+        // 多路复用隧道：只关闭对应的逻辑流
+        if (ClientChannelManager.isMuxChannel(proxyServerChannel)){
+            Channel realServerChannel = ClientChannelManager.removeMuxStream(proxyServerChannel, msg.getStreamId());
+            if (realServerChannel != null){
+                ClientChannelManager.removeRealServerChannel(msg.getStreamId());
+                ClientChannelManager.releaseRealServerChannel(realServerChannel, aborted);
+            }
+            return;
+        }
         Channel realServerChannel = proxyServerChannel.attr(Constants.NEXT_CHANNEL).get();
         logger.debug("handleDisconnectMessage, {}", realServerChannel);
-        if (realServerChannel != null){
-            // 解除关系绑定
+        // 隧道归还连接池后可能马上被再次借出，忽略上一个逻辑流迟到的消息
+        if (realServerChannel != null && ClientChannelManager.getRealServerChannelStreamId(realServerChannel) == msg.getStreamId()){
+            // 解除关系绑定，真实服务器连接之后的数据、断开通知不再写入已经归还的隧道
             proxyServerChannel.attr(Constants.NEXT_CHANNEL).set(null);
+            realServerChannel.attr(Constants.NEXT_CHANNEL).set(null);
             // 返回连接池
             ClientChannelManager.returnProxyChannel(proxyServerChannel);
-            // 通知真实服务器关闭 socket，然后 close channel
-            realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            // 通知真实服务器关闭 socket，然后 close channel；可以复用的连接放回连接池
+            ClientChannelManager.releaseRealServerChannel(realServerChannel, aborted);
         }
     }
 
@@ -159,15 +367,40 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      * 将消息，转发给真实服务器
      */
     public void handleTransferMessage(ChannelHandlerContext ctx,ProxyMessage msg){
-        Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
-        if (realServerChannel != null){
-            ByteBuf buf = ctx.alloc().buffer(msg.getData().length);
-            buf.writeBytes(msg.getData());
+        // 控制连接上的数据：建立隧道期间提前转发的用户数据
+        if (ctx.channel() == ClientChannelManager.getCmdChannel()){
+            if (msg.getData() != null){
+                ClientChannelManager.offerEarlyData(msg.getStreamId(), msg.getData().retain());
+            }
+            return;
+        }
+        Channel realServerChannel = ClientChannelManager.isMuxChannel(ctx.channel())
+                ? ClientChannelManager.getMuxStream(ctx.channel(), msg.getStreamId())
+                : ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        // 独占隧道被再次借出后，丢弃上一个逻辑流迟到的数据
+        if (realServerChannel != null && msg.getData() != null
+                && ClientChannelManager.getRealServerChannelStreamId(realServerChannel) == msg.getStreamId()){
             logger.debug("write data to real server, {}", realServerChannel);
-            realServerChannel.writeAndFlush(buf);
+            int bytes = msg.getData().readableBytes();
+            // msg 会被 SimpleChannelInboundHandler release，转发的数据需要 retain
+            flushConsolidator.write(realServerChannel, msg.getData().retain());
+            // 多路复用隧道：累计已经写给真实服务器的数据，达到阈值后归还窗口给代理服务器
+            StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null){
+                window.onDelivered(bytes, realServerChannel, ctx.channel());
+            }
         }
     }
 
+    /**
+     * 一次读循环结束，flush 合并的数据
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushConsolidator.flush();
+        super.channelReadComplete(ctx);
+    }
+
     /**
      * 销毁控制连接的channel，回收数据连接的channel
      */
@@ -178,10 +411,30 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
         if (proxyServerChannel == ClientChannelManager.getCmdChannel()){
             // GC 控制连接的channel
             ClientChannelManager.setCmdChannel(null);
-            // 通知所有的真实服务器close socket，关闭所有和真实服务器的channel
-            ClientChannelManager.clearRealServerChannels();
+            // 连接池中的空闲连接随控制连接一起重建
+            ClientChannelManager.stopProxyChannelPool();
+            // 有可以恢复的会话时，保留多路复用隧道和真实服务器连接，宽限期内重连后由代理服务器恢复；
+            // 否则多路复用隧道随控制连接一起重建，通知所有的真实服务器close socket
+            ClientChannelManager.suspendSession(ctx.executor());
             // 尝试重连代理服务器
             listener.channelInactive(ctx);
+        }else if (ClientChannelManager.isMuxChannel(proxyServerChannel)){
+            // 多路复用隧道断开，关闭承载的所有真实服务器连接
+            boolean registered = ClientChannelManager.removeMuxChannel(proxyServerChannel);
+            for (Channel realServerChannel : ClientChannelManager.removeMuxStreams(proxyServerChannel)) {
+                ClientChannelManager.removeRealServerChannel(ClientChannelManager.getRealServerChannelStreamId(realServerChannel));
+                realServerChannel.close();
+            }
+            // 控制连接仍然在线，补充一条隧道；随会话一起关闭的隧道由认证成功后统一补足
+            Channel cmdChannel = ClientChannelManager.getCmdChannel();
+            if (registered && cmdChannel != null && cmdChannel.isActive()){
+                cmdChannel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ClientChannelManager.openMuxChannel(proxyServerBootstrap);
+                    }
+                }, MUX_REOPEN_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
         }else{
             // 如果是数据传输的channel，则直接关闭
             Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
@@ -200,6 +453,16 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel proxyServerChannel = ctx.channel();
+        // 多路复用隧道，同步所有逻辑流的真实服务器连接；发送窗口耗尽的逻辑流保持不可读
+        if (ClientChannelManager.isMuxChannel(proxyServerChannel)){
+            for (Channel realServerChannel : ClientChannelManager.getMuxStreams(proxyServerChannel)) {
+                StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+                boolean canSend = window == null || window.canSend();
+                realServerChannel.config().setOption(ChannelOption.AUTO_READ,proxyServerChannel.isWritable() && canSend);
+            }
+            super.channelWritabilityChanged(ctx);
+            return;
+        }
         Channel realServerChannel = proxyServerChannel.attr(Constants.NEXT_CHANNEL).get();
         if (realServerChannel != null){
             realServerChannel.config().setOption(ChannelOption.AUTO_READ,proxyServerChannel.isWritable());
@@ -2,7 +2,10 @@ package com.github.tangmonkmeat.handler;
 
 import com.github.tangmonkmeat.core.ClientChannelManager;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.FlushConsolidator;
 import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.RawTunnelHandler;
+import com.github.tangmonkmeat.web.metrics.StreamWindow;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -22,6 +25,11 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
 
     private static final Logger logger = LoggerFactory.getLogger(RealServerChannelHandler.class);
 
+    /**
+     * 真实服务器的数据转发给隧道时，合并 flush
+     */
+    private final FlushConsolidator flushConsolidator = ClientChannelManager.newFlushConsolidator();
+
     /**
      * 读取 真实服务器的消息，写给 代理服务器
      */
@@ -36,28 +44,57 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
             realServerChannel.close();
             return;
         }
-        // 真实服务器响应的消息
-        byte[] data = new byte[msg.readableBytes()];
-        msg.readBytes(data);
-        String userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
-        ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER,userId,data);
-        proxyServerChannel.writeAndFlush(proxyMessage);
+        // 真实服务器响应的消息，零拷贝转发；SimpleChannelInboundHandler 会 release 一次，所以先 retain
+        if (RawTunnelHandler.isRaw(proxyServerChannel)){
+            // 原始字节流隧道：直接写入，不再封装为消息
+            flushConsolidator.write(proxyServerChannel, msg.retain());
+            return;
+        }
+        int streamId = ClientChannelManager.getRealServerChannelStreamId(realServerChannel);
+        int bytes = msg.readableBytes();
+        ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER,streamId,null,msg.retain());
+        proxyMessage.setCompression(realServerChannel.attr(Constants.STREAM_COMPRESSION).get());
+        flushConsolidator.write(proxyServerChannel, proxyMessage);
+        // 多路复用隧道：扣减逻辑流的发送窗口，窗口耗尽时只暂停当前真实服务器连接
+        StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null){
+            window.consume(bytes);
+        }
         logger.debug("write data to proxy server, {}, {}", realServerChannel, proxyServerChannel);
     }
 
+    /**
+     * 一次读循环结束，flush 合并的数据
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushConsolidator.flush();
+        super.channelReadComplete(ctx);
+    }
+
     /**
      * 代理客户端和真实服务器的连接断开时，关闭移除channel，并且通知代理服务器关闭此服务
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel();
-        String userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
+        int streamId = ClientChannelManager.getRealServerChannelStreamId(realServerChannel);
         // 关闭移除 realServerChannel
-        ClientChannelManager.removeRealServerChannel(userId);
+        ClientChannelManager.removeRealServerChannel(streamId);
+        ClientChannelManager.removeIdleRealServerChannel(realServerChannel);
         Channel proxyServerChannel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
-        if (proxyServerChannel != null){
+        if (proxyServerChannel != null && ClientChannelManager.isMuxChannel(proxyServerChannel)){
+            // 多路复用隧道：只移除逻辑流；如果逻辑流已被代理服务器关闭，不再重复通知
+            if (ClientChannelManager.removeMuxStream(proxyServerChannel, streamId) != null && proxyServerChannel.isActive()){
+                proxyServerChannel.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, null));
+            }
+        }else if (proxyServerChannel != null && RawTunnelHandler.isRaw(proxyServerChannel)){
+            // 原始字节流隧道：解除绑定，数据写完后半关闭，代理服务器读到 EOF 即断开
+            proxyServerChannel.attr(Constants.NEXT_CHANNEL).set(null);
+            RawTunnelHandler.shutdownOutput(proxyServerChannel);
+        }else if (proxyServerChannel != null){
             logger.debug("channelInactive, {}", realServerChannel);
-            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT,userId);
+            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, null);
             // 通知服务器端关闭指定服务
             proxyServerChannel.writeAndFlush(proxyMessage);
         }
@@ -84,7 +121,11 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel();
         Channel proxyServerChannel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
-        if (proxyServerChannel != null){
+        StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null && proxyServerChannel != null){
+            // 多路复用隧道：不能暂停共享的隧道，真实服务器连接恢复可写后再归还窗口，由代理服务器限速
+            window.onWritabilityChanged(realServerChannel, proxyServerChannel);
+        }else if (proxyServerChannel != null){
             // 如果 realServerChannel 缓存区达到 WRITE_BUFFER_HIGH_WATER_MARK
             // 则，注销掉 proxyServerChannel 的读事件;
             proxyServerChannel.config().setOption(ChannelOption.AUTO_READ,realServerChannel.isWritable());
@@ -14,4 +14,9 @@ public interface ChannelStatusListener {
      * 如果 channel 异常关闭了，重连代理服务器
      */
     void channelInactive(ChannelHandlerContext ctx);
+
+    /**
+     * 控制连接认证成功
+     */
+    void authenticated(ChannelHandlerContext ctx);
 }
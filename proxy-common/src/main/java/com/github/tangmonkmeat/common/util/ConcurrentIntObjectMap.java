@@ -0,0 +1,342 @@
+package com.github.tangmonkmeat.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description:
+ * 以 int 为 key 的无锁并发 map，用于按端口、逻辑流标识、客户端编号登记 channel
+ * <p>
+ * 1 key 不装箱；每个桶是不可变的链表，put / remove 复制变化的前缀后 CAS 替换桶头，读不加锁；<br/>
+ * 2 remove(key, value) 只在当前值是 value 时移除，用于“只删除自己登记的 channel”，不会误删新登记的 channel；<br/>
+ * 3 扩容由一个线程完成：把旧桶拆分到新表后，CAS 为转发节点，其他线程遇到转发节点直接到新表上读写，不会阻塞。
+ * </p>
+ * 不支持 null 值；只扩容不缩容，容量取决于同时在线的连接数峰值
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/10 上午10:30
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * 当前的桶数组
+     */
+    private volatile Table<V> table;
+
+    /**
+     * 是否有线程正在扩容
+     */
+    private final AtomicBoolean resizing = new AtomicBoolean();
+
+    /**
+     * 元素个数，只在插入发生哈希冲突时读取，判断是否需要扩容
+     */
+    private final LongAdder count = new LongAdder();
+
+    public ConcurrentIntObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity 初始容量，向上取 2 的幂
+     */
+    public ConcurrentIntObjectMap(int initialCapacity) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < initialCapacity && capacity < MAXIMUM_CAPACITY) {
+            capacity <<= 1;
+        }
+        this.table = new Table<>(capacity);
+    }
+
+    public V get(int key) {
+        Table<V> t = table;
+        for (;;) {
+            Node<V> head = t.buckets.get(t.index(key));
+            if (head instanceof Forward) {
+                t = ((Forward<V>) head).nextTable;
+                continue;
+            }
+            Node<V> node = find(head, key);
+            return node == null ? null : node.value;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 之前的值，没有返回 null
+     */
+    public V put(int key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * @return 已经存在的值；不存在时放入 value，返回 null
+     */
+    public V putIfAbsent(int key, V value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * @return 被移除的值，不存在返回 null
+     */
+    public V remove(int key) {
+        return remove(key, null, false);
+    }
+
+    /**
+     * 只有当前值是 value 时才移除
+     *
+     * @return 是否移除成功
+     */
+    public boolean remove(int key, V value) {
+        return value != null && remove(key, value, true) != null;
+    }
+
+    public int size() {
+        return (int) Math.max(0, count.sum());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return 所有 key 的快照
+     */
+    public int[] keys() {
+        List<Node<V>> nodes = nodes();
+        int[] keys = new int[nodes.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = nodes.get(i).key;
+        }
+        return keys;
+    }
+
+    /**
+     * @return 所有值的快照
+     */
+    public List<V> values() {
+        List<Node<V>> nodes = nodes();
+        List<V> values = new ArrayList<>(nodes.size());
+        for (Node<V> node : nodes) {
+            values.add(node.value);
+        }
+        return values;
+    }
+
+    /**
+     * 逐个移除所有元素；移除期间新放入的元素可能被保留
+     *
+     * @return 被移除的值
+     */
+    public List<V> removeAll() {
+        int[] keys = keys();
+        List<V> values = new ArrayList<>(keys.length);
+        for (int key : keys) {
+            V value = remove(key);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private V put(int key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException("value can not be null");
+        }
+        Table<V> t = table;
+        for (;;) {
+            int index = t.index(key);
+            Node<V> head = t.buckets.get(index);
+            if (head instanceof Forward) {
+                t = ((Forward<V>) head).nextTable;
+                continue;
+            }
+            Node<V> old = find(head, key);
+            if (old != null && onlyIfAbsent) {
+                return old.value;
+            }
+            Node<V> newHead = new Node<>(key, value, old == null ? head : without(head, old));
+            if (t.buckets.compareAndSet(index, head, newHead)) {
+                if (old != null) {
+                    return old.value;
+                }
+                count.increment();
+                // 只在哈希冲突时检查是否需要扩容，避免每次插入都汇总计数
+                if (head != null) {
+                    resizeIfNecessary(t);
+                }
+                return null;
+            }
+        }
+    }
+
+    private V remove(int key, V expected, boolean compare) {
+        Table<V> t = table;
+        for (;;) {
+            int index = t.index(key);
+            Node<V> head = t.buckets.get(index);
+            if (head instanceof Forward) {
+                t = ((Forward<V>) head).nextTable;
+                continue;
+            }
+            Node<V> old = find(head, key);
+            if (old == null || (compare && old.value != expected && !old.value.equals(expected))) {
+                return null;
+            }
+            if (t.buckets.compareAndSet(index, head, without(head, old))) {
+                count.decrement();
+                return old.value;
+            }
+        }
+    }
+
+    private void resizeIfNecessary(Table<V> t) {
+        int capacity = t.buckets.length();
+        if (t != table || capacity >= MAXIMUM_CAPACITY || count.sum() <= capacity - (capacity >>> 2)) {
+            return;
+        }
+        if (!resizing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (t == table) {
+                table = transfer(t);
+            }
+        } finally {
+            resizing.set(false);
+        }
+    }
+
+    /**
+     * 把旧表的每个桶拆分到新表的 i、i + n 两个桶，然后把旧桶替换为转发节点；
+     * 替换失败说明有线程修改了旧桶，重新拆分
+     */
+    private Table<V> transfer(Table<V> old) {
+        int n = old.buckets.length();
+        Table<V> next = new Table<>(n << 1);
+        Forward<V> forward = new Forward<>(next);
+        for (int i = 0; i < n; i++) {
+            for (;;) {
+                Node<V> head = old.buckets.get(i);
+                Node<V> low = null;
+                Node<V> high = null;
+                for (Node<V> node = head; node != null; node = node.next) {
+                    if ((hash(node.key) & n) == 0) {
+                        low = new Node<>(node.key, node.value, low);
+                    } else {
+                        high = new Node<>(node.key, node.value, high);
+                    }
+                }
+                next.buckets.set(i, low);
+                next.buckets.set(i + n, high);
+                if (old.buckets.compareAndSet(i, head, forward)) {
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    private List<Node<V>> nodes() {
+        Table<V> t = table;
+        List<Node<V>> nodes = new ArrayList<>();
+        for (int i = 0; i < t.buckets.length(); i++) {
+            collect(t, i, nodes);
+        }
+        return nodes;
+    }
+
+    private static <V> void collect(Table<V> t, int index, List<Node<V>> nodes) {
+        Node<V> head = t.buckets.get(index);
+        if (head instanceof Forward) {
+            Table<V> next = ((Forward<V>) head).nextTable;
+            collect(next, index, nodes);
+            collect(next, index + t.buckets.length(), nodes);
+            return;
+        }
+        for (Node<V> node = head; node != null; node = node.next) {
+            nodes.add(node);
+        }
+    }
+
+    private static <V> Node<V> find(Node<V> head, int key) {
+        for (Node<V> node = head; node != null; node = node.next) {
+            if (node.key == key) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 复制 target 之前的节点，返回去掉 target 之后的链表
+     */
+    private static <V> Node<V> without(Node<V> head, Node<V> target) {
+        if (head == target) {
+            return target.next;
+        }
+        return new Node<>(head.key, head.value, without(head.next, target));
+    }
+
+    /**
+     * 连续的 key（端口、自增的 streamId）打散到各个桶
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table<V> {
+
+        private final AtomicReferenceArray<Node<V>> buckets;
+
+        private Table(int capacity) {
+            this.buckets = new AtomicReferenceArray<>(capacity);
+        }
+
+        private int index(int key) {
+            return hash(key) & (buckets.length() - 1);
+        }
+    }
+
+    private static class Node<V> {
+
+        private final int key;
+
+        private final V value;
+
+        private final Node<V> next;
+
+        private Node(int key, V value, Node<V> next) {
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    /**
+     * 扩容时旧桶的转发节点，指向新表
+     */
+    private static final class Forward<V> extends Node<V> {
+
+        private final Table<V> nextTable;
+
+        private Forward(Table<V> nextTable) {
+            super(0, null, null);
+            this.nextTable = nextTable;
+        }
+    }
+}
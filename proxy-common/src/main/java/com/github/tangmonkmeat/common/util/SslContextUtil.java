@@ -0,0 +1,180 @@
+package com.github.tangmonkmeat.common.util;
+
+import com.github.tangmonkmeat.common.Config;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.File;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+/**
+ * Description:
+ * 隧道 TLS 工具类，代理服务器和代理客户端共用
+ * <p>
+ * 配置项以 server.ssl. / client.ssl. 为前缀：<br/>
+ * 1 enable：是否开启 TLS；<br/>
+ * 2 certFile、keyFile、keyPassword：本端证书链和 PKCS#8 私钥（PEM），代理客户端只在双向认证时需要；<br/>
+ * 3 trustFile：信任的 CA 证书（PEM）。代理服务器配置后要求代理客户端出示证书（双向认证）；
+ * 代理客户端为空时使用 JDK 默认的信任库；<br/>
+ * 4 provider：auto / openssl / jdk。auto 在类路径中有 netty-tcnative（例如 netty-tcnative-boringssl-static）时使用 OpenSSL 引擎，否则使用 JDK 引擎；<br/>
+ * 5 protocols：启用的协议版本，逗号分隔，例如 TLSv1.2,TLSv1.3，为空时使用引擎的默认值；<br/>
+ * 6 sessionCacheSize、sessionTimeout：会话缓存的大小和超时时间（秒），0 使用引擎的默认值。
+ * </p>
+ * 同一个 SslContext 创建的连接共享会话缓存，代理客户端按代理服务器的地址恢复会话，
+ * 隧道连接池补充连接时只需要简化握手
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/13 下午4:20
+ */
+public class SslContextUtil {
+
+    private static final Logger logger = LoggerFactory.getLogger(SslContextUtil.class);
+
+    private SslContextUtil() {}
+
+    /**
+     * 创建代理服务器隧道端口使用的 SslContext
+     *
+     * @param config 配置
+     * @param prefix 配置项前缀，例如 server.ssl.
+     * @return SslContext，没有开启 TLS 时返回 null
+     * @throws SSLException 证书或者私钥错误
+     */
+    public static SslContext newServerContext(Config config, String prefix) throws SSLException {
+        if (!config.getBooleanValue(prefix + "enable", false)) {
+            return null;
+        }
+        File certFile = getFile(config, prefix + "certFile");
+        File keyFile = getFile(config, prefix + "keyFile");
+        if (certFile == null || keyFile == null) {
+            throw new IllegalArgumentException(prefix + "certFile and " + prefix + "keyFile are required");
+        }
+        SslProvider provider = selectProvider(config.getStringValue(prefix + "provider", "auto"));
+        SslContextBuilder builder = SslContextBuilder.forServer(certFile, keyFile, getKeyPassword(config, prefix))
+                .sslProvider(provider)
+                .protocols(getProtocols(config, prefix))
+                .sessionCacheSize(config.getIntValue(prefix + "sessionCacheSize", 0))
+                .sessionTimeout(config.getIntValue(prefix + "sessionTimeout", 0));
+        File trustFile = getFile(config, prefix + "trustFile");
+        // 配置了信任的 CA，要求代理客户端出示证书
+        if (trustFile != null) {
+            builder.trustManager(trustFile).clientAuth(ClientAuth.REQUIRE);
+        }
+        logger.info("tunnel tls enabled, provider {}, mutual auth {}", provider.name().toLowerCase(), trustFile != null);
+        return builder.build();
+    }
+
+    /**
+     * 创建代理客户端连接代理服务器使用的 SslContext
+     *
+     * @param config 配置
+     * @param prefix 配置项前缀，例如 client.ssl.
+     * @return SslContext，没有开启 TLS 时返回 null
+     * @throws SSLException 证书或者私钥错误
+     */
+    public static SslContext newClientContext(Config config, String prefix) throws SSLException {
+        if (!config.getBooleanValue(prefix + "enable", false)) {
+            return null;
+        }
+        SslProvider provider = selectProvider(config.getStringValue(prefix + "provider", "auto"));
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .protocols(getProtocols(config, prefix))
+                .sessionCacheSize(config.getIntValue(prefix + "sessionCacheSize", 0))
+                .sessionTimeout(config.getIntValue(prefix + "sessionTimeout", 0));
+        File trustFile = getFile(config, prefix + "trustFile");
+        if (trustFile != null) {
+            builder.trustManager(trustFile);
+        }
+        // 双向认证，出示代理客户端的证书
+        File certFile = getFile(config, prefix + "certFile");
+        File keyFile = getFile(config, prefix + "keyFile");
+        if (certFile != null && keyFile != null) {
+            builder.keyManager(certFile, keyFile, getKeyPassword(config, prefix));
+        }
+        logger.info("tunnel tls enabled, provider {}, client certificate {}", provider.name().toLowerCase(), certFile != null && keyFile != null);
+        return builder.build();
+    }
+
+    /**
+     * 根据配置选择 TLS 引擎
+     *
+     * @param name auto / openssl / jdk
+     * @return SslProvider；要求 openssl 但 netty-tcnative 不可用时退回 jdk
+     */
+    public static SslProvider selectProvider(String name) {
+        if ("jdk".equalsIgnoreCase(name)) {
+            return SslProvider.JDK;
+        }
+        if (OpenSsl.isAvailable()) {
+            return SslProvider.OPENSSL;
+        }
+        if ("openssl".equalsIgnoreCase(name)) {
+            logger.warn("openssl is not available, fallback to jdk, {}", OpenSsl.unavailabilityCause().toString());
+        }
+        return SslProvider.JDK;
+    }
+
+    /**
+     * 获取对端证书的 CN，双向认证时作为代理客户端的 clientKey
+     *
+     * @param channel 连接
+     * @return CN；没有开启 TLS、对端没有出示证书或者握手没有完成时返回 null
+     */
+    public static String getPeerCommonName(Channel channel) {
+        SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+        if (sslHandler == null) {
+            return null;
+        }
+        SSLEngine engine = sslHandler.engine();
+        // 服务端没有要求双向认证，不必取证书（取不到时抛出异常）
+        if (!engine.getUseClientMode() && !engine.getNeedClientAuth()) {
+            return null;
+        }
+        try {
+            Certificate[] certificates = engine.getSession().getPeerCertificates();
+            if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+                return null;
+            }
+            String subject = ((X509Certificate) certificates[0]).getSubjectX500Principal().getName();
+            for (Rdn rdn : new LdapName(subject).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    return rdn.getValue().toString();
+                }
+            }
+            return null;
+        } catch (SSLPeerUnverifiedException | InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private static File getFile(Config config, String key) {
+        String path = config.getStringValue(key, "").trim();
+        return path.isEmpty() ? null : new File(path);
+    }
+
+    private static String[] getProtocols(Config config, String prefix) {
+        String protocols = config.getStringValue(prefix + "protocols", "").trim();
+        return protocols.isEmpty() ? null : protocols.split("\\s*,\\s*");
+    }
+
+    private static String getKeyPassword(Config config, String prefix) {
+        String password = config.getStringValue(prefix + "keyPassword", "");
+        return password.isEmpty() ? null : password;
+    }
+}
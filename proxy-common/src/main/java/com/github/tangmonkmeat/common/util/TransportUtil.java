@@ -0,0 +1,187 @@
+package com.github.tangmonkmeat.common.util;
+
+import com.github.tangmonkmeat.common.Config;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description:
+ * 网络传输层选择工具类，代理服务器和代理客户端共用
+ * <p>
+ * 根据配置 transport.type（auto / epoll / io_uring / nio）选择 EventLoopGroup 和 Channel 的实现：
+ * 1 auto：Linux 下 native epoll 可用时使用 epoll，否则使用 NIO；<br/>
+ * 2 io_uring：需要自行在类路径中加入 netty-incubator-transport-native-io_uring，通过反射加载，不可用时退回 auto；<br/>
+ * 3 nio：始终使用 NIO。
+ * </p>
+ * 系统属性 -Dtransport.type 优先于配置文件，便于不修改配置对比不同的传输层
+ * native 传输（epoll / io_uring）支持 SO_REUSEPORT，同一个端口可以绑定多次，由内核把新连接分散到多个 EventLoop 上 accept
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/7 上午10:12
+ */
+public class TransportUtil {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransportUtil.class);
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    /**
+     * 当前使用的传输类型
+     */
+    private static final Transport TRANSPORT = selectTransport(System.getProperty("transport.type",
+            Config.getInstance().getStringValue("transport.type", "auto")));
+
+    private TransportUtil() {}
+
+    /**
+     * 创建 EventLoopGroup
+     *
+     * @param threads 线程数，0 表示使用 netty 默认值（cpu 核数 * 2）
+     * @return EventLoopGroup
+     */
+    public static EventLoopGroup newEventLoopGroup(int threads) {
+        switch (TRANSPORT) {
+            case IO_URING:
+                try {
+                    return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                            .getConstructor(int.class).newInstance(threads);
+                } catch (Exception e) {
+                    throw new IllegalStateException("create io_uring event loop group failed", e);
+                }
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    /**
+     * 创建 EventLoopGroup，线程数使用 netty 默认值
+     *
+     * @return EventLoopGroup
+     */
+    public static EventLoopGroup newEventLoopGroup() {
+        return newEventLoopGroup(0);
+    }
+
+    /**
+     * @return 服务端监听 channel 的实现类
+     */
+    @SuppressWarnings("unchecked")
+    public static Class<? extends ServerChannel> serverChannelClass() {
+        switch (TRANSPORT) {
+            case IO_URING:
+                return (Class<? extends ServerChannel>) loadIoUringClass("IOUringServerSocketChannel");
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
+    /**
+     * @return 客户端连接 channel 的实现类
+     */
+    @SuppressWarnings("unchecked")
+    public static Class<? extends SocketChannel> socketChannelClass() {
+        switch (TRANSPORT) {
+            case IO_URING:
+                return (Class<? extends SocketChannel>) loadIoUringClass("IOUringSocketChannel");
+            case EPOLL:
+                return EpollSocketChannel.class;
+            default:
+                return NioSocketChannel.class;
+        }
+    }
+
+    /**
+     * 当前传输是否支持 SO_REUSEPORT
+     */
+    public static boolean isReusePortSupported() {
+        return TRANSPORT != Transport.NIO;
+    }
+
+    /**
+     * 为监听 channel 开启 SO_REUSEPORT，不支持时忽略
+     *
+     * @param bootstrap 服务端启动器
+     * @return 是否开启成功
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean enableReusePort(ServerBootstrap bootstrap) {
+        switch (TRANSPORT) {
+            case IO_URING:
+                try {
+                    ChannelOption<Boolean> option = (ChannelOption<Boolean>) loadIoUringClass("IOUringChannelOption")
+                            .getField("SO_REUSEPORT").get(null);
+                    bootstrap.option(option, true);
+                    return true;
+                } catch (Exception e) {
+                    logger.warn("enable io_uring SO_REUSEPORT failed", e);
+                    return false;
+                }
+            case EPOLL:
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return 当前使用的传输类型名称
+     */
+    public static String getTransportName() {
+        return TRANSPORT.name().toLowerCase();
+    }
+
+    private static Transport selectTransport(String type) {
+        Transport transport = Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO;
+        if ("nio".equalsIgnoreCase(type)) {
+            transport = Transport.NIO;
+        } else if ("io_uring".equalsIgnoreCase(type) && isIoUringAvailable()) {
+            transport = Transport.IO_URING;
+        } else if (!"auto".equalsIgnoreCase(type) && !transport.name().equalsIgnoreCase(type)) {
+            logger.warn("transport {} is not available, fallback to {}", type, transport.name().toLowerCase());
+        }
+        logger.info("use {} transport", transport.name().toLowerCase());
+        return transport;
+    }
+
+    private static boolean isIoUringAvailable() {
+        try {
+            return (Boolean) loadIoUringClass("IOUring").getMethod("isAvailable").invoke(null);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static Class<?> loadIoUringClass(String simpleName) {
+        try {
+            return Class.forName(IO_URING_PACKAGE + simpleName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("io_uring transport is not on the classpath", e);
+        }
+    }
+
+    /**
+     * 传输类型
+     */
+    private enum Transport {
+        IO_URING, EPOLL, NIO
+    }
+}
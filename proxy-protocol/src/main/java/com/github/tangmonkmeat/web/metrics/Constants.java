@@ -1,5 +1,6 @@
 package com.github.tangmonkmeat.web.metrics;
 
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
 
@@ -21,13 +22,40 @@ public interface Constants {
     AttributeKey<Channel> NEXT_CHANNEL = AttributeKey.newInstance("next_channel");
 
     /**
-     * 连接通道的 用户唯一标识
+     * 独占隧道所属代理客户端的编号，代理服务器认证 clientKey 时分配，代替 clientKey 在消息中传递
+     *
      */
-    AttributeKey<String> USER_ID = AttributeKey.newInstance("user_id");
+    AttributeKey<Integer> CLIENT_INDEX = AttributeKey.newInstance("client_index");
 
     /**
-     * 代理客户端 的唯一标识
-     *
+     * 逻辑流（一个用户连接）的唯一标识，对应消息头中的 streamId
+     */
+    AttributeKey<Integer> STREAM_ID = AttributeKey.newInstance("stream_id");
+
+    /**
+     * 多路复用隧道上承载的所有逻辑流，只有多路复用隧道才设置此属性；
+     * key：streamId
+     * value：逻辑流的对端 channel（代理服务器为 userChannel，代理客户端为 realServerChannel）
+     */
+    AttributeKey<ConcurrentIntObjectMap<Channel>> MUX_STREAMS = AttributeKey.newInstance("mux_streams");
+
+    /**
+     * 逻辑流的流量控制窗口，设置在逻辑流的对端 channel 上（userChannel / realServerChannel）
+     */
+    AttributeKey<StreamWindow> STREAM_WINDOW = AttributeKey.newInstance("stream_window");
+
+    /**
+     * 逻辑流的压缩策略，设置在逻辑流的对端 channel 上（userChannel / realServerChannel）；不压缩时为 null
+     */
+    AttributeKey<StreamCompression> STREAM_COMPRESSION = AttributeKey.newInstance("stream_compression");
+
+    /**
+     * 隧道在代理服务器上所在的 EventLoop 编号，由 {@link ProxyMessage#TYPE_LOOP_HINT} 告知，设置在代理客户端的隧道上
+     */
+    AttributeKey<Integer> PEER_LOOP = AttributeKey.newInstance("peer_loop");
+
+    /**
+     * 独占隧道已经切换为原始字节流，写入隧道的是 ByteBuf 而不是 ProxyMessage，见 {@link RawTunnelHandler}
      */
-    AttributeKey<String> CLIENT_KEY = AttributeKey.newInstance("client_key");
+    AttributeKey<Boolean> RAW_TUNNEL = AttributeKey.newInstance("raw_tunnel");
 }
@@ -0,0 +1,107 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description:
+ * 合并转发时的 flush，减少系统调用
+ * <p>
+ * 开启后，读入的数据只 write 给目的端，等到读入端的 channelReadComplete，
+ * 或者积压的 write 达到上限（maxPendingWrites）时，才统一 flush；
+ * 关闭时和原来一样，每次转发都 writeAndFlush。
+ * </p>
+ * 每个转发 handler 实例（对应一个读入端 channel）持有一个，只在读入端的 EventLoop 上使用，非线程安全
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/9 下午2:15
+ */
+public class FlushConsolidator {
+
+    /**
+     * 是否开启 flush 合并
+     */
+    private final boolean enabled;
+
+    /**
+     * 最多积压多少次 write 后强制 flush
+     */
+    private final int maxPendingWrites;
+
+    /**
+     * flush 监听器，可以为 null
+     */
+    private final FlushListener listener;
+
+    /**
+     * 有数据待 flush 的目的端；多路复用隧道上，一次读入可能转发给多个逻辑流
+     */
+    private final List<Channel> pendingChannels = new ArrayList<>(1);
+
+    /**
+     * 积压的 write 次数
+     */
+    private int pendingWrites;
+
+    public FlushConsolidator(boolean enabled, int maxPendingWrites, FlushListener listener) {
+        this.enabled = enabled;
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        this.listener = listener;
+    }
+
+    /**
+     * 转发数据给目的端
+     *
+     * @param destination 目的端 channel
+     * @param msg 转发的数据
+     */
+    public void write(Channel destination, Object msg) {
+        if (!enabled) {
+            destination.writeAndFlush(msg);
+            if (listener != null) {
+                listener.onFlush(1);
+            }
+            return;
+        }
+        destination.write(msg);
+        if (!pendingChannels.contains(destination)) {
+            pendingChannels.add(destination);
+        }
+        if (++pendingWrites >= maxPendingWrites) {
+            flush();
+        }
+    }
+
+    /**
+     * flush 所有积压的数据，在读入端的 channelReadComplete 中调用
+     */
+    public void flush() {
+        if (pendingWrites == 0) {
+            return;
+        }
+        for (int i = 0; i < pendingChannels.size(); i++) {
+            pendingChannels.get(i).flush();
+        }
+        if (listener != null) {
+            listener.onFlush(pendingWrites);
+        }
+        pendingChannels.clear();
+        pendingWrites = 0;
+    }
+
+    /**
+     * flush 监听器，用于统计 flush 次数和合并比例
+     */
+    public interface FlushListener {
+
+        /**
+         * 一次 flush
+         *
+         * @param writes 本次 flush 合并的 write 次数
+         */
+        void onFlush(int writes);
+    }
+}
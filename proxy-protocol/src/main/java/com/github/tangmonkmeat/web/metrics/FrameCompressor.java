@@ -0,0 +1,230 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Description:
+ * 一条连接上的压缩、解压引擎，编码器和解码器各持有一个，只在连接的 EventLoop 上使用
+ * <p>
+ * 每条消息独立压缩，不依赖之前的消息；引擎在第一次使用时创建，重复使用，连接关闭时调用 {@link #close()} 释放 native 内存。
+ * 格式见 {@link StreamCompression}
+ * </p>
+ * <p>
+ * snappy 按 {@link #SNAPPY_BLOCK_SIZE} 分块压缩，每块为 压缩长度(4) + snappy 数据：
+ * netty 的 Snappy 以 short 记录块内偏移，一次压缩超过 32K 的数据时偏移溢出
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/14 上午10:40
+ */
+public class FrameCompressor {
+
+    /**
+     * 缓存的拷贝数组的最大长度，超出时临时分配，避免空闲连接长期占用大数组
+     */
+    private static final int MAX_CACHED_ARRAY = 64 * 1024;
+
+    /**
+     * snappy 一次压缩的最大长度
+     */
+    private static final int SNAPPY_BLOCK_SIZE = 32 * 1024;
+
+    /**
+     * 解压后允许的最大长度，防止伪造的原始长度占用过多内存
+     */
+    private final int maxRawLength;
+
+    private Snappy snappy;
+
+    private Deflater deflater;
+
+    private Inflater inflater;
+
+    /**
+     * 直接内存中的数据拷贝到此数组，交给 Deflater / Inflater
+     */
+    private byte[] array = new byte[0];
+
+    public FrameCompressor(int maxRawLength) {
+        this.maxRawLength = maxRawLength;
+    }
+
+    /**
+     * 压缩数据，不改变 data 的读索引
+     *
+     * @param alloc 内存分配器
+     * @param codec 算法
+     * @param data 原始数据
+     * @return 算法(1) + 原始长度(4) + 压缩数据，由调用者负责释放；压缩后没有节省 1/8 时返回 null
+     */
+    public ByteBuf compress(ByteBufAllocator alloc, byte codec, ByteBuf data) {
+        int rawLength = data.readableBytes();
+        // 压缩后的长度（含头）必须小于此值
+        int limit = rawLength - rawLength / 8;
+        ByteBuf out;
+        switch (codec) {
+            case StreamCompression.SNAPPY:
+                out = alloc.buffer(StreamCompression.HEADER_SIZE + rawLength);
+                writeHeader(out, codec, rawLength);
+                if (snappy == null) {
+                    snappy = new Snappy();
+                }
+                for (int offset = 0; offset < rawLength && out.readableBytes() < limit; offset += SNAPPY_BLOCK_SIZE) {
+                    int blockLength = Math.min(SNAPPY_BLOCK_SIZE, rawLength - offset);
+                    int lengthIndex = out.writerIndex();
+                    out.writeInt(0);
+                    snappy.reset();
+                    snappy.encode(data.slice(data.readerIndex() + offset, blockLength), out, blockLength);
+                    out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+                }
+                break;
+            case StreamCompression.DEFLATE:
+                out = alloc.heapBuffer(limit);
+                writeHeader(out, codec, rawLength);
+                if (deflater == null) {
+                    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                }
+                deflater.setInput(inputArray(data), inputOffset(data), rawLength);
+                deflater.finish();
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+                boolean finished = deflater.finished();
+                deflater.reset();
+                // 输出写满了 limit 还没有压缩完，压缩无效
+                if (!finished) {
+                    out.release();
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        if (out.readableBytes() >= limit) {
+            out.release();
+            return null;
+        }
+        return out;
+    }
+
+    /**
+     * 解压数据
+     *
+     * @param alloc 内存分配器
+     * @param data 算法(1) + 原始长度(4) + 压缩数据，调用后读索引移到末尾，不释放
+     * @return 原始数据，由调用者负责释放
+     * @throws CorruptedFrameException 算法未知、长度超出上限或者数据损坏
+     */
+    public ByteBuf decompress(ByteBufAllocator alloc, ByteBuf data) {
+        if (data.readableBytes() < StreamCompression.HEADER_SIZE) {
+            throw new CorruptedFrameException("compressed data is too short: " + data.readableBytes());
+        }
+        byte codec = data.readByte();
+        int rawLength = data.readInt();
+        if (rawLength < 0 || rawLength > maxRawLength) {
+            throw new CorruptedFrameException("invalid decompressed length: " + rawLength);
+        }
+        ByteBuf out;
+        switch (codec) {
+            case StreamCompression.SNAPPY:
+                // 最大容量即原始长度，超出时抛出异常，不会因为损坏的数据无限扩容
+                out = alloc.buffer(rawLength, rawLength);
+                try {
+                    if (snappy == null) {
+                        snappy = new Snappy();
+                    }
+                    while (data.isReadable()) {
+                        int blockLength = data.readInt();
+                        if (blockLength <= 0 || blockLength > data.readableBytes()) {
+                            throw new CorruptedFrameException("invalid snappy block length: " + blockLength);
+                        }
+                        snappy.reset();
+                        snappy.decode(data.readSlice(blockLength), out);
+                    }
+                } catch (CorruptedFrameException e) {
+                    out.release();
+                    throw e;
+                } catch (RuntimeException e) {
+                    out.release();
+                    throw new CorruptedFrameException("snappy decompress failed", e);
+                }
+                break;
+            case StreamCompression.DEFLATE:
+                out = alloc.heapBuffer(rawLength, rawLength);
+                try {
+                    if (inflater == null) {
+                        inflater = new Inflater(true);
+                    }
+                    inflater.setInput(inputArray(data), inputOffset(data), data.readableBytes());
+                    data.skipBytes(data.readableBytes());
+                    int written = inflater.inflate(out.array(), out.arrayOffset(), rawLength);
+                    out.writerIndex(written);
+                    inflater.reset();
+                } catch (DataFormatException e) {
+                    inflater.reset();
+                    out.release();
+                    throw new CorruptedFrameException("deflate decompress failed", e);
+                }
+                break;
+            default:
+                throw new CorruptedFrameException("unknown compression codec: " + codec);
+        }
+        if (out.readableBytes() != rawLength) {
+            int actual = out.readableBytes();
+            out.release();
+            throw new CorruptedFrameException("decompressed length " + actual + " does not match " + rawLength);
+        }
+        return out;
+    }
+
+    /**
+     * 释放引擎占用的 native 内存
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private static void writeHeader(ByteBuf out, byte codec, int rawLength) {
+        out.writeByte(codec);
+        out.writeInt(rawLength);
+    }
+
+    /**
+     * Deflater / Inflater 只接受数组：堆内存直接使用底层数组，直接内存拷贝一次
+     */
+    private byte[] inputArray(ByteBuf data) {
+        if (data.hasArray()) {
+            return data.array();
+        }
+        int length = data.readableBytes();
+        byte[] input;
+        if (length > MAX_CACHED_ARRAY) {
+            input = new byte[length];
+        } else {
+            if (array.length < length) {
+                array = new byte[length];
+            }
+            input = array;
+        }
+        data.getBytes(data.readerIndex(), input, 0, length);
+        return input;
+    }
+
+    private static int inputOffset(ByteBuf data) {
+        return data.hasArray() ? data.arrayOffset() + data.readerIndex() : 0;
+    }
+}
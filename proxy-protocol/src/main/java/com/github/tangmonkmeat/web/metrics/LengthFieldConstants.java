@@ -29,12 +29,12 @@ public interface LengthFieldConstants {
     byte TYPE_SIZE = 1;
 
     /**
-     * 代理消息的流水号（此项必须）；
+     * 代理消息的逻辑流标识 streamId（此项必须）；
      * 位于 代理消息的 第三处；
-     * 固定以 8 byte 记录。
+     * 固定以 4 byte 记录。
      *
      */
-    byte SERIAL_NUMBER_SIZE = 8;
+    byte STREAM_ID_SIZE = 4;
 
     /**
      * 代理消息的 URL 的长度（此项必须）；
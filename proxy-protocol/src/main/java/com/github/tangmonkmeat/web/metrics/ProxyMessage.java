@@ -1,18 +1,30 @@
 package com.github.tangmonkmeat.web.metrics;
 
-import java.util.Arrays;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 
 /**
  * Description:
  * 代理客户端与代理服务器消息交换协议
+ * <p>
+ * 消息的有效数据以 {@link ByteBuf} 持有，引用计数委托给 data；
+ * 从读入到写出，传输数据始终是同一块内存的 retain 切片，不再拷贝到 byte[]。
+ * 谁最后使用消息，谁负责 release（编码器、SimpleChannelInboundHandler 会自动释放）。
+ * </p>
  * @author zwl
  * @version 1.0
  * @date 2021/2/22 15:30
  */
-public class ProxyMessage {
+public class ProxyMessage implements ReferenceCounted {
 
     /**
-     * 认证消息，检测 clientKey 是否正确
+     * 认证消息，检测 clientKey 是否正确；
+     * 代理客户端发送 uri=clientKey，data 为 1 byte 支持的压缩算法（见 {@link StreamCompression}）
+     * + 1 byte 支持的扩展（见 {@link ProxyMessageBatchCodec#FEATURE_BATCH}、{@link #FEATURE_LOOP_HINT}、{@link #FEATURE_SESSION_RESUME}），旧版本不携带；
+     * 恢复会话时再携带 8 byte 上一次认证得到的会话令牌；
+     * 认证成功后代理服务器回复 data 为 4 byte 的客户端编号（clientIndex）+ 1 byte 支持的扩展
+     * + 8 byte 新的会话令牌 + 1 byte 是否恢复了原来的会话（双方都支持 {@link #FEATURE_SESSION_RESUME} 时才有意义，否则为 0）
+     * + {@link #TUNNEL_TOKEN_LENGTH} byte 的隧道令牌，之后建立独占隧道、注册多路复用隧道时携带
      *
      */
     public static final byte C_TYPE_AUTH = 0x01;
@@ -21,20 +33,36 @@ public class ProxyMessage {
     // public static final byte TYPE_ACK = 0x02;
 
     /**
-     * 代理服务器建立连接的消息
-     *
+     * 代理服务器建立连接的消息，streamId 为用户连接的逻辑流标识：
+     * <p>
+     * 1 代理服务器 → 代理客户端：data 为真实服务器的 ip:port，uri 为逻辑流上传输数据使用的压缩算法，不压缩时为空；
+     * 双方都支持 {@link #FEATURE_LOOP_HINT} 时，ip:port 前携带 4 byte 用户连接所在的 EventLoop 编号；<br/>
+     * 2 代理客户端 → 代理服务器（独占隧道）：data 为 4 byte 的客户端编号（clientIndex），
+     * 之后的耗时、提前数据字节数、原始字节流标志都必须携带，最后是认证时得到的隧道令牌；<br/>
+     * 3 代理客户端 → 代理服务器（多路复用隧道）：data 为 4 byte 的初始接收窗口。<br/>
+     * 2、3 之后再跟 4 byte 的连接真实服务器的耗时，单位微秒，用于统计建立隧道各阶段的耗时，
+     * 以及 4 byte 的已经写入真实服务器的提前数据字节数；3 中旧版本的代理客户端不携带。
+     * 2 之后再跟 1 byte，不为 0 表示请求把独占隧道切换为原始字节流，见 {@link RawTunnelHandler}，
+     * 以及 {@link #TUNNEL_TOKEN_LENGTH} byte 的隧道令牌。
+     * </p>
      */
     public static final byte TYPE_CONNECT = 0x03;
 
     /**
      * 代理服务器断开连接的消息
-     *
+     * <p>
+     * 代理服务器发出时 data 可以带 1 byte，不为 0 表示用户连接是异常中断的（连接异常、或者还有数据没有写给用户），
+     * 代理客户端不再复用对应的真实服务器连接
+     * </p>
      */
     public static final byte TYPE_DISCONNECT = 0x04;
 
     /**
      * 代理数据传输
-     *
+     * <p>
+     * 在控制连接上出现时，是建立隧道期间代理服务器提前转发的用户数据，streamId 为用户连接的逻辑流标识；
+     * 逻辑流协商了压缩算法时，消息类型的最高位为 1 表示 data 已压缩
+     * </p>
      */
     public static final byte P_TYPE_TRANSFER = 0x05;
 
@@ -50,28 +78,100 @@ public class ProxyMessage {
      */
     public static final byte TYPE_HEARTBEAT = 0x07;
 
+    /**
+     * 多路复用隧道注册，uri=clientKey，data 为 1 byte 代理客户端支持的扩展 + 认证时得到的隧道令牌；
+     * 代理客户端认证成功后才注册，隧道令牌和控制连接不一致时代理服务器关闭连接；
+     * 注册后，该连接上的 TYPE_CONNECT、P_TYPE_TRANSFER、TYPE_DISCONNECT 消息
+     * 以 streamId 区分各个逻辑流，一条连接可以承载多个用户连接
+     *
+     */
+    public static final byte C_TYPE_MUX_BIND = 0x08;
+
+    /**
+     * 多路复用隧道上逻辑流的窗口更新，streamId 为逻辑流标识，data 为 4 byte 的窗口增量；
+     * 打开逻辑流的 TYPE_CONNECT 也以同样的格式携带客户端的初始接收窗口
+     *
+     */
+    public static final byte TYPE_WINDOW_UPDATE = 0x09;
+
+    /**
+     * 批量传输，streamId 为 0，data 为多条 P_TYPE_TRANSFER 消息：每条为 streamId(4) + 数据长度(4) + 数据；
+     * 只发送给通告了 {@link ProxyMessageBatchCodec#FEATURE_BATCH} 的一端，见 {@link ProxyMessageBatchCodec}
+     *
+     */
+    public static final byte TYPE_BATCH = 0x0A;
+
+    /**
+     * EventLoop 提示，streamId 为 0，data 为 4 byte 的 EventLoop 编号：
+     * 代理服务器接受隧道连接后立即发送，告知该连接所在的工作线程；
+     * 只对通告了 {@link #FEATURE_LOOP_HINT} 的代理服务器有意义，旧版本的代理客户端忽略此消息
+     *
+     */
+    public static final byte TYPE_LOOP_HINT = 0x0B;
+
+    /**
+     * 原始字节流，streamId 为逻辑流标识，没有 data：
+     * 代理服务器绑定独占隧道和用户连接后回复，是该隧道上代理服务器发出的最后一条消息，之后两端直接转发字节流；
+     * 只回复给在 TYPE_CONNECT 中请求切换的代理客户端，见 {@link RawTunnelHandler}
+     */
+    public static final byte TYPE_RAW = 0x0C;
+
+    /**
+     * 认证时通告的扩展能力：EventLoop 对齐。
+     * 双方都支持时，代理服务器发送 {@link #TYPE_LOOP_HINT}，TYPE_CONNECT 的 data 前携带 4 byte 用户连接所在的 EventLoop 编号，
+     * 代理客户端优先选择同一个 EventLoop 上的隧道承载该逻辑流
+     */
+    public static final int FEATURE_LOOP_HINT = 2;
+
+    /**
+     * 认证时通告的扩展能力：控制连接的会话恢复。
+     * 双方都支持时，控制连接断开后代理服务器在宽限期内保留端口监听和用户连接，隧道照常转发；
+     * 代理客户端重连后携带会话令牌认证，新的控制连接接管原来的用户连接
+     */
+    public static final int FEATURE_SESSION_RESUME = 4;
+
+    /**
+     * 认证时通告的扩展能力：独占隧道绑定逻辑流后切换为原始字节流，见 {@link RawTunnelHandler}
+     */
+    public static final int FEATURE_RAW_TUNNEL = 8;
+
+    /**
+     * 隧道令牌的长度：代理服务器认证时随机分配，独占隧道的 TYPE_CONNECT、多路复用隧道的注册都必须携带，
+     * 只知道 clientIndex、streamId 的连接不能冒充代理客户端接管用户连接
+     */
+    public static final int TUNNEL_TOKEN_LENGTH = 16;
+
     /** 消息类型 */
     private byte type;
 
-    /** 消息流水号 */
-    private long serialNumber;
+    /** 逻辑流（一个用户连接）的唯一标识，由代理服务器分配；和连接无关的消息为 0 */
+    private int streamId;
 
     /** 消息命令请求信息 */
     private String uri;
 
     /** 消息传输数据 */
-    private byte[] data;
+    private ByteBuf data;
+
+    /** 出站：逻辑流的压缩策略，不为 null 时由编码器尝试压缩 data */
+    private StreamCompression compression;
+
+    /** 入站：data 解压前的长度（含压缩头），没有压缩时为 0 */
+    private int compressedLength;
+
+    /** 入站：解码器解压的耗时，单位纳秒 */
+    private long decompressNanos;
 
     public ProxyMessage() {}
 
-    public ProxyMessage(byte type, long serialNumber, String uri, byte[] data) {
+    public ProxyMessage(byte type, int streamId, String uri, ByteBuf data) {
         this.type = type;
-        this.serialNumber = serialNumber;
+        this.streamId = streamId;
         this.uri = uri;
         this.data = data;
     }
 
-    public ProxyMessage(byte type,  String uri, byte[] data) {
+    public ProxyMessage(byte type,  String uri, ByteBuf data) {
         this.type = type;
         this.uri = uri;
         this.data = data;
@@ -90,11 +190,11 @@ public class ProxyMessage {
         return uri;
     }
 
-    public byte[] getData() {
+    public ByteBuf getData() {
         return data;
     }
 
-    public void setData(byte[] data) {
+    public void setData(ByteBuf data) {
         this.data = data;
     }
 
@@ -106,17 +206,91 @@ public class ProxyMessage {
         this.type = type;
     }
 
-    public long getSerialNumber() {
-        return serialNumber;
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    public StreamCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(StreamCompression compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressedLength() {
+        return compressedLength;
+    }
+
+    public void setCompressedLength(int compressedLength) {
+        this.compressedLength = compressedLength;
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos;
+    }
+
+    public void setDecompressNanos(long decompressNanos) {
+        this.decompressNanos = decompressNanos;
+    }
+
+    /**
+     * 没有携带数据的消息（心跳、认证等），引用计数恒为 1
+     */
+    @Override
+    public int refCnt() {
+        return data == null ? 1 : data.refCnt();
+    }
+
+    @Override
+    public ProxyMessage retain() {
+        if (data != null) {
+            data.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public ProxyMessage retain(int increment) {
+        if (data != null) {
+            data.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public ProxyMessage touch() {
+        if (data != null) {
+            data.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public ProxyMessage touch(Object hint) {
+        if (data != null) {
+            data.touch(hint);
+        }
+        return this;
     }
 
-    public void setSerialNumber(long serialNumber) {
-        this.serialNumber = serialNumber;
+    @Override
+    public boolean release() {
+        return data != null && data.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return data != null && data.release(decrement);
     }
 
     @Override
     public String toString() {
-        return "ProxyMessage [type=" + type + ", serialNumber=" + serialNumber + ", uri=" + uri + ", data=" + Arrays.toString(data) + "]";
+        return "ProxyMessage [type=" + type + ", streamId=" + streamId + ", uri=" + uri + ", data=" + (data == null ? 0 : data.readableBytes()) + "B]";
     }
 
 }
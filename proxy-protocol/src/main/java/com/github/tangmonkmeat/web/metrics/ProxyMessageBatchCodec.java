@@ -0,0 +1,328 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:
+ * 隧道上小消息的批量编解码，位于 {@link ProxyMessageEncoder} 之后（出站先经过此 handler）
+ * <p>
+ * 出站：开启后，不超过 maxMessageBytes 的 P_TYPE_TRANSFER 消息先暂存，不立即交给编码器；
+ * flush 推迟到 EventLoop 当前的任务队列执行完（delayMicros 为 0），或者 delayMicros 微秒之后，
+ * 期间各个逻辑流写给隧道的小消息合并为一个 {@link ProxyMessage#TYPE_BATCH} 数据帧。
+ * 暂存的数据达到 maxBatchBytes、或者写入其他消息时立即输出，隧道上消息的顺序不变；只暂存了一条消息时按原样输出。
+ * </p>
+ * <p>
+ * 入站：TYPE_BATCH 数据帧拆分为多个 P_TYPE_TRANSFER 消息依次传给下一个 handler，data 是数据帧的 retain 切片，不拷贝。
+ * 入站总是开启，出站只在对端通告支持（{@link #FEATURE_BATCH}）后开启
+ * </p>
+ * <p>
+ * 收益主要是对端解码的数据帧个数减少；每条消息的头只是由数据帧头（10 byte）换成条目头（8 byte），隧道上的字节数变化不大。
+ * 只暂存了一条消息时多一次推迟 flush 的开销，见 proxy-benchmarks 中的 ProxyMessageBatchCodecBenchmark
+ * </p>
+ * 每条隧道一个实例，只在隧道的 EventLoop 上使用；{@link #setEnabled(boolean)} 可以在其他线程调用
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/14 下午3:30
+ */
+public class ProxyMessageBatchCodec extends ChannelDuplexHandler {
+
+    /**
+     * 认证、隧道注册时通告的扩展能力：支持 TYPE_BATCH
+     */
+    public static final int FEATURE_BATCH = 1;
+
+    /**
+     * 每条消息前的头：streamId(4) + 数据长度(4)
+     */
+    public static final int ENTRY_HEADER_SIZE = 8;
+
+    /**
+     * 一个批量数据帧中 data 的最大长度
+     */
+    private final int maxBatchBytes;
+
+    /**
+     * 可以合并的消息的最大数据长度
+     */
+    private final int maxMessageBytes;
+
+    /**
+     * 推迟 flush 的时间，单位纳秒；0 表示推迟到任务队列执行完
+     */
+    private final long delayNanos;
+
+    /**
+     * 批量统计的监听器，可以为 null
+     */
+    private final BatchListener listener;
+
+    /**
+     * 对端是否支持 TYPE_BATCH
+     */
+    private volatile boolean enabled;
+
+    private final List<ProxyMessage> pendingMessages = new ArrayList<>();
+
+    private final List<ChannelPromise> pendingPromises = new ArrayList<>();
+
+    /**
+     * 暂存的消息合并后 data 的长度
+     */
+    private int pendingBytes;
+
+    /**
+     * 是否已经安排了推迟的 flush
+     */
+    private boolean flushScheduled;
+
+    private ChannelHandlerContext ctx;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            writePending(ctx);
+            ctx.flush();
+        }
+    };
+
+    /**
+     * @param maxBatchBytes 一个批量数据帧中 data 的最大长度，不能超过数据帧的最大长度
+     * @param maxMessageBytes 可以合并的消息的最大数据长度
+     * @param delayMicros 推迟 flush 的时间，单位微秒；0 表示推迟到 EventLoop 当前的任务队列执行完
+     * @param enabled 对端是否已知支持 TYPE_BATCH
+     * @param listener 批量统计的监听器，可以为 null
+     */
+    public ProxyMessageBatchCodec(int maxBatchBytes, int maxMessageBytes, int delayMicros, boolean enabled, BatchListener listener) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxMessageBytes = Math.min(maxMessageBytes, maxBatchBytes - ENTRY_HEADER_SIZE);
+        this.delayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, delayMicros));
+        this.enabled = enabled;
+        this.listener = listener;
+    }
+
+    /**
+     * 对端通告支持 TYPE_BATCH 后，开启隧道的出站合并
+     *
+     * @param channel 隧道
+     * @param enabled 是否开启
+     */
+    public static void setEnabled(Channel channel, boolean enabled) {
+        ProxyMessageBatchCodec codec = channel.pipeline().get(ProxyMessageBatchCodec.class);
+        if (codec != null) {
+            codec.setEnabled(enabled);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ProxyMessage) || ((ProxyMessage) msg).getType() != ProxyMessage.TYPE_BATCH) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ProxyMessage batch = (ProxyMessage) msg;
+        ByteBuf data = batch.getData();
+        int messages = 0;
+        try {
+            while (data != null && data.isReadable()) {
+                if (data.readableBytes() < ENTRY_HEADER_SIZE) {
+                    throw new CorruptedFrameException("truncated batch entry header: " + data.readableBytes());
+                }
+                int streamId = data.readInt();
+                int length = data.readInt();
+                if (length <= 0 || length > data.readableBytes()) {
+                    throw new CorruptedFrameException("invalid batch entry length: " + length);
+                }
+                messages++;
+                // 切片 retain 之后交给下一个 handler，由它负责 release
+                ctx.fireChannelRead(new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, streamId, null, data.readRetainedSlice(length)));
+            }
+        } catch (CorruptedFrameException e) {
+            // 丢弃剩余的消息会让逻辑流的数据缺失，直接关闭连接
+            ctx.close();
+            throw e;
+        } finally {
+            batch.release();
+        }
+        if (listener != null) {
+            listener.onBatchReceived(messages);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!enabled || !isBatchable(msg)) {
+            writePending(ctx);
+            ctx.write(msg, promise);
+            return;
+        }
+        ProxyMessage proxyMessage = (ProxyMessage) msg;
+        int entryBytes = ENTRY_HEADER_SIZE + proxyMessage.getData().readableBytes();
+        if (pendingBytes + entryBytes > maxBatchBytes) {
+            writePending(ctx);
+        }
+        pendingMessages.add(proxyMessage);
+        pendingPromises.add(promise);
+        pendingBytes += entryBytes;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (pendingMessages.isEmpty()) {
+            ctx.flush();
+            return;
+        }
+        // 推迟 flush，期间其他逻辑流写给隧道的小消息一起合并
+        if (!flushScheduled) {
+            flushScheduled = true;
+            if (delayNanos > 0) {
+                ctx.executor().schedule(flushTask, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                ctx.executor().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        ClosedChannelException cause = new ClosedChannelException();
+        for (int i = 0; i < pendingMessages.size(); i++) {
+            pendingMessages.get(i).release();
+            pendingPromises.get(i).tryFailure(cause);
+        }
+        pendingMessages.clear();
+        pendingPromises.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * 数据较小、不需要压缩的 P_TYPE_TRANSFER 消息可以合并
+     */
+    private boolean isBatchable(Object msg) {
+        if (!(msg instanceof ProxyMessage)) {
+            return false;
+        }
+        ProxyMessage proxyMessage = (ProxyMessage) msg;
+        ByteBuf data = proxyMessage.getData();
+        if (proxyMessage.getType() != ProxyMessage.P_TYPE_TRANSFER || data == null) {
+            return false;
+        }
+        int length = data.readableBytes();
+        return length > 0 && length <= maxMessageBytes
+                && (proxyMessage.getCompression() == null || length < StreamCompression.MIN_LENGTH);
+    }
+
+    /**
+     * 输出暂存的消息：只有一条时按原样输出，多条时合并为一个 TYPE_BATCH 消息
+     * <p>
+     * 写出之前先清空暂存：ctx.write 可能重入此 handler（promise 立即失败时的监听器再次写入，
+     * EmbeddedChannel 写入时执行任务队列中的 flushTask），暂存的消息不能被输出两次
+     * </p>
+     */
+    private void writePending(ChannelHandlerContext ctx) {
+        int size = pendingMessages.size();
+        if (size == 0) {
+            return;
+        }
+        ProxyMessage message;
+        ChannelPromise promise;
+        if (size == 1) {
+            message = pendingMessages.get(0);
+            promise = pendingPromises.get(0);
+        } else {
+            // 每条消息的头写入同一块内存，和 data 交替组合，不拷贝 data
+            ByteBuf headers = ctx.alloc().buffer(ENTRY_HEADER_SIZE * size);
+            CompositeByteBuf data = ctx.alloc().compositeBuffer(size * 2);
+            for (int i = 0; i < size; i++) {
+                ProxyMessage proxyMessage = pendingMessages.get(i);
+                int headerIndex = headers.writerIndex();
+                headers.writeInt(proxyMessage.getStreamId());
+                headers.writeInt(proxyMessage.getData().readableBytes());
+                data.addComponent(true, headers.retainedSlice(headerIndex, ENTRY_HEADER_SIZE));
+                data.addComponent(true, proxyMessage.getData());
+            }
+            headers.release();
+            message = new ProxyMessage(ProxyMessage.TYPE_BATCH, 0, null, data);
+            promise = newBatchPromise(ctx, pendingPromises);
+        }
+        pendingMessages.clear();
+        pendingPromises.clear();
+        pendingBytes = 0;
+        ctx.write(message, promise);
+        if (size > 1 && listener != null) {
+            listener.onBatchSent(size);
+        }
+    }
+
+    /**
+     * 批量消息写出后，通知合并的各条消息的 promise
+     */
+    private static ChannelPromise newBatchPromise(ChannelHandlerContext ctx, List<ChannelPromise> promises) {
+        final List<ChannelPromise> notifies = new ArrayList<>(promises.size());
+        for (ChannelPromise promise : promises) {
+            if (!promise.isVoid()) {
+                notifies.add(promise);
+            }
+        }
+        if (notifies.isEmpty()) {
+            return ctx.voidPromise();
+        }
+        ChannelPromise promise = ctx.newPromise();
+        promise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelPromise notify : notifies) {
+                    if (future.isSuccess()) {
+                        notify.trySuccess();
+                    } else {
+                        notify.tryFailure(future.cause());
+                    }
+                }
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 批量统计的监听器
+     */
+    public interface BatchListener {
+
+        /**
+         * 发送一个批量数据帧
+         *
+         * @param messages 合并的消息条数
+         */
+        void onBatchSent(int messages);
+
+        /**
+         * 收到一个批量数据帧
+         *
+         * @param messages 拆分出的消息条数
+         */
+        void onBatchReceived(int messages);
+    }
+}
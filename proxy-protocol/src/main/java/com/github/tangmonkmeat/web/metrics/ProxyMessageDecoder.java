@@ -3,8 +3,11 @@ package com.github.tangmonkmeat.web.metrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Description:
  * 代理消息解码器 extends LengthFieldBasedFrameDecoder
@@ -23,6 +26,11 @@ import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
  */
 public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder implements LengthFieldConstants {
 
+    /**
+     * 解压引擎，只用于解压；解压后的长度不超过数据帧的最大长度
+     */
+    private final FrameCompressor compressor;
+
     /**
      * 初始化 自定义长度帧解码器
      *
@@ -41,6 +49,7 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder implements
      */
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip);
+        this.compressor = new FrameCompressor(maxFrameLength);
     }
 
     /**
@@ -65,6 +74,7 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder implements
      */
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip, boolean failFast) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip, failFast);
+        this.compressor = new FrameCompressor(maxFrameLength);
     }
 
     @Override
@@ -96,23 +106,54 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder implements
             }
 
             byte type = buf.readByte();
-            long serialNumber = buf.readLong();
-            byte uriLen = buf.readByte();
-            byte[] uriBytes = new byte[uriLen];
+            int streamId = buf.readInt();
+            int uriLen = buf.readUnsignedByte();
+            String uri = null;
             if (uriLen != 0){
-                buf.readBytes(uriBytes);
+                uri = buf.toString(buf.readerIndex(), uriLen, StandardCharsets.UTF_8);
+                buf.skipBytes(uriLen);
             }
-            byte[] data = new byte[frameLength - TYPE_SIZE - SERIAL_NUMBER_SIZE - URI_LENGTH_SIZE - uriLen];
-            buf.readBytes(data);
-            proxyMessage = new ProxyMessage(type,serialNumber,new String(uriBytes),data);
+            // 有效数据直接 retain 数据帧的切片，不拷贝；由消息的最终使用者 release
+            int dataLen = frameLength - TYPE_SIZE - STREAM_ID_SIZE - URI_LENGTH_SIZE - uriLen;
+            ByteBuf data = dataLen > 0 ? buf.readRetainedSlice(dataLen) : null;
+            // 压缩的数据：解压后替换 data，记录压缩前的长度和耗时，由业务 handler 统计
+            int compressedLength = 0;
+            long decompressNanos = 0;
+            if ((type & StreamCompression.FLAG_COMPRESSED) != 0){
+                type &= ~StreamCompression.FLAG_COMPRESSED;
+                if (data != null){
+                    compressedLength = dataLen;
+                    long start = System.nanoTime();
+                    ByteBuf compressed = data;
+                    try {
+                        data = compressor.decompress(ctx.alloc(), compressed);
+                    } catch (CorruptedFrameException e){
+                        // 丢弃这条消息会让逻辑流的数据缺失，直接关闭连接
+                        ctx.close();
+                        throw e;
+                    } finally {
+                        compressed.release();
+                    }
+                    decompressNanos = System.nanoTime() - start;
+                }
+            }
+            proxyMessage = new ProxyMessage(type,streamId,uri,data);
+            proxyMessage.setCompressedLength(compressedLength);
+            proxyMessage.setDecompressNanos(decompressNanos);
             return proxyMessage;
         } finally {
              // 防止内存泄露
-             // 将 ByteBuf 池 中的 ByteBuf 的引用计数减 1
+             // 将 ByteBuf 池 中的 ByteBuf 的引用计数减 1（data 切片已单独 retain）
              // 如果 计数为 0，则回收 ByteBuf
             if (buf != null){
                 buf.release();
             }
         }
     }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        compressor.close();
+        super.handlerRemoved0(ctx);
+    }
 }
@@ -1,44 +1,85 @@
 package com.github.tangmonkmeat.web.metrics;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * Description:
  * 代理消息编码器
+ * <p>
+ * 只为消息头分配内存，有效数据（data）不再拷贝，而是和消息头组合成 {@link CompositeByteBuf}，
+ * 写出时由 gathering write 一次发送。
+ * </p>
+ * <p>
+ * 消息携带了压缩策略（{@link StreamCompression}）时尝试压缩 data，压缩有效才发送压缩后的数据，并在消息类型上置压缩标志位
+ * </p>
  * @author zwl
  * @version 1.0
  * @date 2021/2/22 20:57
  */
-public class ProxyMessageEncoder extends MessageToByteEncoder<ProxyMessage> implements LengthFieldConstants{
+public class ProxyMessageEncoder extends MessageToMessageEncoder<ProxyMessage> implements LengthFieldConstants{
 
+    /**
+     * 压缩引擎，只用于压缩
+     */
+    private final FrameCompressor compressor = new FrameCompressor(0);
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, ByteBuf out) throws Exception {
-        int bodyLength = TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE;
+    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, List<Object> out) throws Exception {
+        int headerLength = TYPE_SIZE + STREAM_ID_SIZE + URI_LENGTH_SIZE;
         byte[] uriBytes = null;
         String uri = msg.getUri();
         if (uri != null){
-            uriBytes = uri.getBytes();
-            bodyLength += uriBytes.length;
+            uriBytes = uri.getBytes(StandardCharsets.UTF_8);
+            headerLength += uriBytes.length;
         }
-        byte[] data = msg.getData();
-        if (data != null){
-            bodyLength += data.length;
+        ByteBuf data = msg.getData();
+        int dataLength = data == null ? 0 : data.readableBytes();
+        byte type = msg.getType();
+
+        // 压缩后的数据由此编码器持有，不需要 retain
+        ByteBuf compressed = null;
+        StreamCompression compression = msg.getCompression();
+        if (compression != null && compression.shouldCompress(dataLength)){
+            long start = System.nanoTime();
+            compressed = compressor.compress(ctx.alloc(), compression.getCodec(), data);
+            compression.onCompress(dataLength, compressed == null ? -1 : compressed.readableBytes(), System.nanoTime() - start);
+            if (compressed != null){
+                type |= StreamCompression.FLAG_COMPRESSED;
+                dataLength = compressed.readableBytes();
+            }
         }
 
-        out.writeInt(bodyLength);
-        out.writeByte(msg.getType());
-        out.writeLong(msg.getSerialNumber());
+        ByteBuf header = ctx.alloc().buffer(HEADER_SIZE + headerLength);
+        header.writeInt(headerLength + dataLength);
+        header.writeByte(type);
+        header.writeInt(msg.getStreamId());
         if (uriBytes != null){
-            out.writeByte(uriBytes.length);
-            out.writeBytes(uriBytes);
+            header.writeByte(uriBytes.length);
+            header.writeBytes(uriBytes);
         }else {
-            out.writeByte(0x00);
+            header.writeByte(0x00);
         }
-        if (data != null){
-            out.writeBytes(data);
+
+        if (dataLength == 0){
+            out.add(header);
+            return;
         }
+
+        // 消息写出后 MessageToMessageEncoder 会 release msg，所以 data 需要先 retain 一次
+        CompositeByteBuf frame = ctx.alloc().compositeBuffer(2);
+        frame.addComponents(true, header, compressed != null ? compressed : data.retain());
+        out.add(frame);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        compressor.close();
+        super.handlerRemoved(ctx);
     }
 }
@@ -0,0 +1,154 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Description:
+ * 原始字节流隧道：独占隧道绑定逻辑流之后去掉消息帧，两端直接转发字节流，省去每条数据的编码、解码
+ * <p>
+ * 1 协商：代理服务器认证时通告 {@link ProxyMessage#FEATURE_RAW_TUNNEL}，代理客户端在独占隧道的 TYPE_CONNECT 中请求切换，
+ * 写出 TYPE_CONNECT 之后出站切换（{@link #switchOutbound(Channel)}）；
+ * 代理服务器绑定用户连接后回复 {@link ProxyMessage#TYPE_RAW}，随即出站、入站都切换；
+ * 代理客户端收到 TYPE_RAW 后入站切换（{@link #switchInbound(Channel, RawTunnelHandler)}），在此之前到达的心跳等消息照常按帧处理；<br/>
+ * 2 切换时移除编解码器、批量编解码器和心跳检测，解码器中已经读入的后续字节随即作为原始数据交给此 handler；<br/>
+ * 3 断开：一端的用户连接（真实服务器连接）关闭后，隧道 flush 之后半关闭（{@link #shutdownOutput(Channel)}），
+ * 对端读到 EOF 后 flush 并关闭自己一侧的连接和隧道，发起端随后读到 EOF，关闭隧道；隧道不再归还连接池。
+ * </p>
+ * 多路复用隧道、压缩的逻辑流不切换；流量控制仍由两端 handler 的 channelWritabilityChanged 完成。
+ * 每条隧道一个实例，只在隧道的 EventLoop 上使用
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/16 上午10:30
+ */
+public class RawTunnelHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * 隧道数据转发给用户连接（真实服务器连接）时，合并 flush
+     */
+    private final FlushConsolidator flushConsolidator;
+
+    public RawTunnelHandler(FlushConsolidator flushConsolidator) {
+        this.flushConsolidator = flushConsolidator;
+    }
+
+    /**
+     * 隧道是否已经切换为原始字节流
+     *
+     * @param tunnel 独占隧道
+     * @return 是否直接写入 ByteBuf
+     */
+    public static boolean isRaw(Channel tunnel) {
+        return tunnel.attr(Constants.RAW_TUNNEL).get() != null;
+    }
+
+    /**
+     * 出站切换：批量编解码器中暂存的消息先写出，然后移除编码器、批量编解码器和心跳检测，
+     * 之后写入隧道的是原始字节；必须在隧道的 EventLoop 上调用
+     *
+     * @param tunnel 独占隧道
+     */
+    public static void switchOutbound(Channel tunnel) {
+        ChannelPipeline pipeline = tunnel.pipeline();
+        tunnel.attr(Constants.RAW_TUNNEL).set(Boolean.TRUE);
+        // 对端以半关闭通知断开，读到 EOF 时不能直接关闭隧道
+        tunnel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        if (pipeline.get(ProxyMessageBatchCodec.class) != null) {
+            // 非 ProxyMessage 的写入让批量编解码器先输出暂存的消息，经编码器编码
+            tunnel.write(Unpooled.EMPTY_BUFFER, tunnel.voidPromise());
+            pipeline.remove(ProxyMessageBatchCodec.class);
+        }
+        if (pipeline.get(IdleCheckHandler.class) != null) {
+            pipeline.remove(IdleCheckHandler.class);
+        }
+        pipeline.remove(ProxyMessageEncoder.class);
+    }
+
+    /**
+     * 入站切换：在解码器之后加入 handler，然后移除解码器，解码器中已经读入的字节交给 handler；
+     * 必须在隧道的 EventLoop 上调用，可以在处理解码器输出的消息时调用
+     *
+     * @param tunnel 独占隧道
+     * @param handler 转发原始数据的 handler
+     */
+    public static void switchInbound(Channel tunnel, RawTunnelHandler handler) {
+        ChannelPipeline pipeline = tunnel.pipeline();
+        pipeline.addAfter(pipeline.context(ProxyMessageDecoder.class).name(), null, handler);
+        pipeline.remove(ProxyMessageDecoder.class);
+    }
+
+    /**
+     * 通知对端逻辑流已经断开：flush 之后半关闭隧道，继续读取直到对端关闭
+     *
+     * @param tunnel 已经切换为原始字节流的独占隧道
+     */
+    public static void shutdownOutput(final Channel tunnel) {
+        // 读到 EOF 才能关闭隧道
+        tunnel.config().setOption(ChannelOption.AUTO_READ, true);
+        tunnel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess() && tunnel instanceof DuplexChannel) {
+                    ((DuplexChannel) tunnel).shutdownOutput();
+                } else {
+                    tunnel.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        Channel peer = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        // 逻辑流已经断开，丢弃对端在收到半关闭之前发出的数据
+        if (peer == null || !peer.isActive()) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        flushConsolidator.write(peer, msg);
+    }
+
+    /**
+     * 一次读循环结束，flush 合并的数据
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushConsolidator.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    /**
+     * 对端半关闭隧道：逻辑流断开，数据写完后关闭用户连接（真实服务器连接）和隧道
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            flushConsolidator.flush();
+            // 先解除绑定，用户连接（真实服务器连接）关闭时不再半关闭隧道
+            Channel peer = ctx.channel().attr(Constants.NEXT_CHANNEL).getAndSet(null);
+            if (peer != null) {
+                peer.attr(Constants.NEXT_CHANNEL).set(null);
+            }
+            if (peer != null && peer.isActive()) {
+                peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+}
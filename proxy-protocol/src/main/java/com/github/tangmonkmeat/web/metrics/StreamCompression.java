@@ -0,0 +1,209 @@
+package com.github.tangmonkmeat.web.metrics;
+
+/**
+ * Description:
+ * 单个逻辑流上传输数据（P_TYPE_TRANSFER）的压缩策略，由编码器按此压缩，{@link FrameCompressor} 执行压缩、解压
+ * <p>
+ * 1 协商：代理客户端认证时以 data 的 1 byte 告知支持的算法（{@link #SUPPORTED}，按位表示）；
+ * 代理服务器按端口映射配置的算法，在 TYPE_CONNECT 的 uri 中告知代理客户端，双方对该逻辑流的数据使用同一个算法；<br/>
+ * 2 压缩后的消息，消息类型的最高位（{@link #FLAG_COMPRESSED}）置 1，data 为 算法(1) + 原始长度(4) + 压缩数据；<br/>
+ * 3 小于 {@link #MIN_LENGTH} 的数据不压缩；压缩后没有节省 1/8 的数据按原样发送，
+ * 连续 {@link #MAX_MISSES} 次无效（例如已经加密的流量）后，之后的 {@link #BACKOFF_FRAMES} 条消息不再尝试。
+ * </p>
+ * 算法：snappy 速度优先，deflate 压缩率优先，都不需要额外的依赖
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/14 上午10:20
+ */
+public class StreamCompression {
+
+    /**
+     * 消息类型中表示 data 已压缩的标志位
+     */
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+
+    public static final byte NONE = 0;
+
+    public static final byte SNAPPY = 1;
+
+    public static final byte DEFLATE = 2;
+
+    /**
+     * 当前版本支持的算法，按位表示
+     */
+    public static final int SUPPORTED = 1 << SNAPPY | 1 << DEFLATE;
+
+    /**
+     * 压缩数据前的头：算法(1) + 原始长度(4)
+     */
+    public static final int HEADER_SIZE = 5;
+
+    /**
+     * 小于此长度的数据不压缩
+     */
+    public static final int MIN_LENGTH = 64;
+
+    /**
+     * 连续多少次压缩无效后暂停尝试
+     */
+    private static final int MAX_MISSES = 4;
+
+    /**
+     * 暂停尝试的消息条数
+     */
+    private static final int BACKOFF_FRAMES = 64;
+
+    private final byte codec;
+
+    /**
+     * 压缩统计的监听器，可以为 null
+     */
+    private final CompressionListener listener;
+
+    /**
+     * 连续压缩无效的次数，只在隧道的 EventLoop 上访问
+     */
+    private int misses;
+
+    /**
+     * 剩余不尝试压缩的消息条数，只在隧道的 EventLoop 上访问
+     */
+    private int skipFrames;
+
+    /**
+     * @param codec 算法，{@link #SNAPPY} 或 {@link #DEFLATE}
+     * @param listener 压缩统计的监听器，可以为 null
+     */
+    public StreamCompression(byte codec, CompressionListener listener) {
+        this.codec = codec;
+        this.listener = listener;
+    }
+
+    /**
+     * 根据名称解析算法
+     *
+     * @param name snappy / deflate，忽略大小写
+     * @return 算法；为空或者不认识的名称返回 {@link #NONE}
+     */
+    public static byte parse(String name) {
+        if ("snappy".equalsIgnoreCase(name)) {
+            return SNAPPY;
+        }
+        if ("deflate".equalsIgnoreCase(name)) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return 算法的名称，{@link #NONE} 返回 null
+     */
+    public static String name(byte codec) {
+        switch (codec) {
+            case SNAPPY:
+                return "snappy";
+            case DEFLATE:
+                return "deflate";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 对端是否支持指定的算法
+     *
+     * @param codecs 对端支持的算法，按位表示
+     * @param codec 算法
+     */
+    public static boolean isSupported(int codecs, byte codec) {
+        return codec != NONE && (codecs & 1 << codec) != 0;
+    }
+
+    /**
+     * 是否尝试压缩这条消息
+     *
+     * @param length 数据长度
+     */
+    public boolean shouldCompress(int length) {
+        if (length < MIN_LENGTH) {
+            return false;
+        }
+        if (skipFrames > 0) {
+            skipFrames--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 记录一次压缩的结果
+     *
+     * @param rawBytes 原始长度
+     * @param wireBytes 压缩后的长度（含 {@link #HEADER_SIZE}），无效时为 -1
+     * @param nanos 耗时
+     */
+    public void onCompress(int rawBytes, int wireBytes, long nanos) {
+        if (wireBytes < 0) {
+            if (++misses >= MAX_MISSES) {
+                misses = 0;
+                skipFrames = BACKOFF_FRAMES;
+            }
+            if (listener != null) {
+                listener.onCompressSkipped(rawBytes, nanos);
+            }
+            return;
+        }
+        misses = 0;
+        if (listener != null) {
+            listener.onCompressed(rawBytes, wireBytes, nanos);
+        }
+    }
+
+    /**
+     * 记录一次解压
+     *
+     * @param msg 解码器解压后的消息
+     */
+    public void onDecompress(ProxyMessage msg) {
+        if (listener != null && msg.getCompressedLength() > 0 && msg.getData() != null) {
+            listener.onDecompressed(msg.getCompressedLength(), msg.getData().readableBytes(), msg.getDecompressNanos());
+        }
+    }
+
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * 压缩统计的监听器
+     */
+    public interface CompressionListener {
+
+        /**
+         * 一条消息压缩后发送
+         *
+         * @param rawBytes 原始长度
+         * @param wireBytes 压缩后的长度
+         * @param nanos 耗时
+         */
+        void onCompressed(int rawBytes, int wireBytes, long nanos);
+
+        /**
+         * 一条消息压缩无效，按原样发送
+         *
+         * @param rawBytes 原始长度
+         * @param nanos 尝试压缩的耗时
+         */
+        void onCompressSkipped(int rawBytes, long nanos);
+
+        /**
+         * 收到一条压缩的消息
+         *
+         * @param wireBytes 压缩后的长度
+         * @param rawBytes 解压后的长度
+         * @param nanos 耗时
+         */
+        void onDecompressed(int wireBytes, int rawBytes, long nanos);
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Description:
+ * 多路复用隧道上，单个逻辑流的流量控制窗口（基于信用）
+ * <p>
+ * 1 发送窗口（sendWindow）：对端允许本端继续发送的字节数；本端每转发一次数据就扣减，
+ *   窗口耗尽时注销 source（userChannel / realServerChannel）的读事件，收到对端的 TYPE_WINDOW_UPDATE 后恢复；<br/>
+ * 2 接收窗口（recvWindow）：本端通告给对端的窗口大小；数据写给目的端后累计，
+ *   累计达到接收窗口的一半，并且目的端可写时，通过 TYPE_WINDOW_UPDATE 归还给对端。
+ * </p>
+ * 目的端写得慢，只会让该逻辑流的信用无法归还，不会影响共享隧道上的其他逻辑流
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/6 下午3:20
+ */
+public class StreamWindow {
+
+    private static final AtomicIntegerFieldUpdater<StreamWindow> SEND_WINDOW_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(StreamWindow.class, "sendWindow");
+
+    private static final AtomicIntegerFieldUpdater<StreamWindow> UNACKED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(StreamWindow.class, "unackedBytes");
+
+    private static final AtomicIntegerFieldUpdater<StreamWindow> STALLED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(StreamWindow.class, "stalled");
+
+    /**
+     * 逻辑流标识
+     */
+    private final int streamId;
+
+    /**
+     * 本端读取数据的 channel（userChannel / realServerChannel）
+     */
+    private final Channel source;
+
+    /**
+     * 本端通告给对端的接收窗口
+     */
+    private final int recvWindow;
+
+    /**
+     * 窗口耗尽的监听器，可以为 null
+     */
+    private final StallListener listener;
+
+    /**
+     * 发送窗口
+     */
+    private volatile int sendWindow;
+
+    /**
+     * 已经写给目的端，但还没有归还给对端的字节数
+     */
+    private volatile int unackedBytes;
+
+    /**
+     * 发送窗口是否耗尽，1-耗尽
+     */
+    private volatile int stalled;
+
+    /**
+     * @param streamId 逻辑流标识
+     * @param source 本端读取数据的 channel
+     * @param sendWindow 对端通告的初始窗口
+     * @param recvWindow 本端通告给对端的接收窗口
+     * @param listener 窗口耗尽的监听器，可以为 null
+     */
+    public StreamWindow(int streamId, Channel source, int sendWindow, int recvWindow, StallListener listener) {
+        this.streamId = streamId;
+        this.source = source;
+        this.sendWindow = sendWindow;
+        this.recvWindow = recvWindow;
+        this.listener = listener;
+    }
+
+    /**
+     * 本端转发了 bytes 字节给对端，扣减发送窗口；窗口耗尽时，注销 source 的读事件
+     *
+     * @param bytes 转发的字节数
+     */
+    public void consume(int bytes) {
+        if (SEND_WINDOW_UPDATER.addAndGet(this, -bytes) > 0) {
+            return;
+        }
+        source.config().setOption(ChannelOption.AUTO_READ, false);
+        if (STALLED_UPDATER.compareAndSet(this, 0, 1) && listener != null) {
+            listener.onStall();
+        }
+        // 并发情况下，对端的窗口更新可能已经先一步到达
+        if (sendWindow > 0) {
+            resume();
+        }
+    }
+
+    /**
+     * 收到对端的 TYPE_WINDOW_UPDATE，扩大发送窗口；窗口由耗尽变为可用时，恢复 source 的读事件。
+     * increment 来自对端，不是正数时忽略，窗口最大到 Integer.MAX_VALUE，不会溢出为负数
+     *
+     * @param increment 对端归还的字节数
+     */
+    public void expand(int increment) {
+        if (increment <= 0) {
+            return;
+        }
+        int prev;
+        int window;
+        do {
+            prev = sendWindow;
+            window = prev > Integer.MAX_VALUE - increment ? Integer.MAX_VALUE : prev + increment;
+        } while (!SEND_WINDOW_UPDATER.compareAndSet(this, prev, window));
+        if (window > 0 && prev <= 0) {
+            resume();
+        }
+    }
+
+    /**
+     * 数据写给目的端后调用，累计待归还的信用；目的端可写时归还给对端
+     *
+     * @param bytes 写给目的端的字节数
+     * @param destination 目的端 channel
+     * @param tunnel 多路复用隧道
+     */
+    public void onDelivered(int bytes, Channel destination, Channel tunnel) {
+        if (UNACKED_UPDATER.addAndGet(this, bytes) >= (recvWindow >>> 1) && destination.isWritable()) {
+            sendWindowUpdate(tunnel);
+        }
+    }
+
+    /**
+     * 目的端恢复可写时调用，归还积压的信用
+     *
+     * @param destination 目的端 channel
+     * @param tunnel 多路复用隧道
+     */
+    public void onWritabilityChanged(Channel destination, Channel tunnel) {
+        if (destination.isWritable() && unackedBytes > 0) {
+            sendWindowUpdate(tunnel);
+        }
+    }
+
+    /**
+     * 是否还可以继续发送
+     */
+    public boolean canSend() {
+        return sendWindow > 0;
+    }
+
+    /**
+     * 逻辑流关闭时调用，修正窗口耗尽的统计
+     */
+    public void close() {
+        if (STALLED_UPDATER.compareAndSet(this, 1, 0) && listener != null) {
+            listener.onResume();
+        }
+    }
+
+    public int getRecvWindow() {
+        return recvWindow;
+    }
+
+    private void resume() {
+        if (STALLED_UPDATER.compareAndSet(this, 1, 0) && listener != null) {
+            listener.onResume();
+        }
+        Channel tunnel = source.attr(Constants.NEXT_CHANNEL).get();
+        source.config().setOption(ChannelOption.AUTO_READ, tunnel == null || tunnel.isWritable());
+    }
+
+    private void sendWindowUpdate(Channel tunnel) {
+        int increment = UNACKED_UPDATER.getAndSet(this, 0);
+        if (increment <= 0 || !tunnel.isActive()) {
+            return;
+        }
+        tunnel.writeAndFlush(newWindowUpdate(tunnel, streamId, increment));
+    }
+
+    /**
+     * 构造窗口更新消息，data 为 4 byte 的窗口增量
+     *
+     * @param tunnel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @param increment 窗口增量
+     * @return TYPE_WINDOW_UPDATE 消息
+     */
+    public static ProxyMessage newWindowUpdate(Channel tunnel, int streamId, int increment) {
+        ByteBuf data = tunnel.alloc().buffer(4).writeInt(increment);
+        return new ProxyMessage(ProxyMessage.TYPE_WINDOW_UPDATE, streamId, null, data);
+    }
+
+    /**
+     * 读取窗口更新消息、以及打开逻辑流时通告的窗口大小
+     *
+     * @param msg TYPE_WINDOW_UPDATE / TYPE_CONNECT 消息
+     * @param defaultValue 消息没有携带窗口时的默认值
+     * @return 窗口大小
+     */
+    public static int readWindow(ProxyMessage msg, int defaultValue) {
+        ByteBuf data = msg.getData();
+        if (data == null || data.readableBytes() < 4) {
+            return defaultValue;
+        }
+        return data.getInt(data.readerIndex());
+    }
+
+    /**
+     * 发送窗口耗尽、恢复的监听器，用于统计停滞的逻辑流
+     */
+    public interface StallListener {
+
+        /**
+         * 发送窗口耗尽
+         */
+        void onStall();
+
+        /**
+         * 发送窗口恢复，或者停滞的逻辑流被关闭
+         */
+        void onResume();
+    }
+}
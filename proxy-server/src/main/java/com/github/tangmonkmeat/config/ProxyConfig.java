@@ -3,6 +3,7 @@ package com.github.tangmonkmeat.config;
 import com.github.tangmonkmeat.common.Config;
 import com.github.tangmonkmeat.common.util.JsonUtil;
 import com.github.tangmonkmeat.core.ProxyChannelManager;
+import com.github.tangmonkmeat.web.metrics.StreamCompression;
 import com.google.gson.reflect.TypeToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,14 +24,16 @@ public class ProxyConfig implements Serializable {
     private static final Logger logger = LoggerFactory.getLogger(ProxyConfig.class);
 
     /**
-     * 代理客户端配置文件的路径，默认的配置文件在 用户目录的 .proxy-server/ 目录下，名称为 config.json
+     * 代理客户端配置文件的路径，默认的配置文件在 用户目录的 .proxy-server/ 目录下，名称为 config.json；
+     * 可以通过系统属性 -Dproxy.config.file 指定
      */
     public static String CONFIG_FILE;
 
     // 初始化配置文件路径
     static {
         try {
-            CONFIG_FILE = Config.class.getClassLoader().getResource("config.json").getPath();
+            String configFile = System.getProperty("proxy.config.file");
+            CONFIG_FILE = configFile != null ? configFile : Config.class.getClassLoader().getResource("config.json").getPath();
             //String configDir = System.getProperty("user.home") + "/";
             File file = new File(CONFIG_FILE);
             if (!file.exists()){
@@ -72,6 +75,96 @@ public class ProxyConfig implements Serializable {
      */
     private String configServerPassword;
 
+    /**
+     * 多路复用隧道上，每个逻辑流通告给代理客户端的接收窗口（字节）
+     */
+    private Integer muxWindowSize;
+
+    /**
+     * 每个用户端口的监听 channel 个数；大于 1 时需要传输层支持 SO_REUSEPORT，由内核把新连接分散到多个 EventLoop
+     */
+    private Integer userPortAcceptors;
+
+    /**
+     * 代理客户端断开后，用户端口的监听保留的秒数，期间重连的代理客户端直接使用原来的监听；0 表示立即关闭
+     */
+    private Integer userPortLingerSeconds;
+
+    /**
+     * 控制连接断开后，会话保留的秒数：期间端口保持监听、用户连接和隧道照常转发，代理客户端重连后恢复会话；0 表示不保留
+     */
+    private Integer sessionGraceSeconds;
+
+    /**
+     * 是否开启转发时的 flush 合并：读入期间只 write，读完成或者积压达到上限时再 flush
+     */
+    private Boolean flushConsolidate;
+
+    /**
+     * flush 合并时，最多积压多少次 write 后强制 flush
+     */
+    private Integer flushMaxPendingWrites;
+
+    /**
+     * 是否把隧道上的小消息合并为 TYPE_BATCH 数据帧发送，代理客户端支持时才生效
+     */
+    private Boolean batchEnable;
+
+    /**
+     * 一个批量数据帧的最大长度
+     */
+    private Integer batchMaxBytes;
+
+    /**
+     * 可以合并的消息的最大数据长度
+     */
+    private Integer batchMaxMessageBytes;
+
+    /**
+     * 合并时推迟 flush 的时间，单位微秒；0 表示推迟到 EventLoop 当前的任务队列执行完
+     */
+    private Integer batchDelayMicros;
+
+    /**
+     * 是否向代理客户端通告隧道所在的 EventLoop，代理客户端据此把逻辑流分配到和用户连接同一个 EventLoop 的隧道
+     */
+    private Boolean loopAffinityEnable;
+
+    /**
+     * 是否允许独占隧道绑定用户连接后切换为原始字节流，由代理客户端在 TYPE_CONNECT 中请求
+     */
+    private Boolean rawTunnelEnable;
+
+    /**
+     * 流量统计保留的秒级采样个数，默认 3600（1 小时）
+     */
+    private Integer metricsSecondSamples;
+
+    /**
+     * 流量统计保留的分钟级采样个数，默认 10080（7 天）
+     */
+    private Integer metricsMinuteSamples;
+
+    /**
+     * 是否开放 GET /metrics，以 Prometheus 文本格式导出运行指标，不需要登录；默认关闭
+     */
+    private Boolean prometheusEnabled;
+
+    /**
+     * 全局限速：代理服务器每秒读取所有用户请求的字节数，0 不限速
+     */
+    private Long shapingReadLimit;
+
+    /**
+     * 全局限速：代理服务器每秒写给所有用户的字节数，0 不限速
+     */
+    private Long shapingWriteLimit;
+
+    /**
+     * 建立隧道期间，每个用户连接最多提前读取、转发的字节数，0 表示关闭
+     */
+    private Integer earlyDataMaxBytes;
+
     /** 代理客户端，支持多个客户端 */
     private List<Client> clients;
 
@@ -84,6 +177,9 @@ public class ProxyConfig implements Serializable {
     /** 代理服务器上的每个对外端口（key）对应的代理客户端背后的真实服务器信息（value） */
     private volatile Map<Integer, String> inetPortLanInfoMapping = new HashMap<Integer, String>();
 
+    /** 代理服务器上开启了压缩的对外端口（key）使用的压缩算法（value） */
+    private volatile Map<Integer, Byte> inetPortCompressionMapping = new HashMap<>();
+
     /** 配置变化监听器 */
     private List<ConfigChangedListener> configChangedListeners = new ArrayList<ConfigChangedListener>();
 
@@ -100,6 +196,45 @@ public class ProxyConfig implements Serializable {
         this.configServerUserName = Config.getInstance().getStringValue("config.admin.username");
         this.configServerPassword = Config.getInstance().getStringValue("config.admin.password");
 
+        // 多路复用隧道的流量控制窗口
+        this.muxWindowSize = Config.getInstance().getIntValue("server.mux.windowSize", 256 * 1024);
+
+        // 用户端口的监听 channel 个数
+        this.userPortAcceptors = Config.getInstance().getIntValue("server.userPort.acceptors", 1);
+        this.userPortLingerSeconds = Config.getInstance().getIntValue("server.userPort.lingerSeconds", 30);
+        // 控制连接的会话恢复
+        this.sessionGraceSeconds = Config.getInstance().getIntValue("server.session.graceSeconds", 30);
+
+        // 转发时的 flush 合并
+        this.flushConsolidate = Config.getInstance().getBooleanValue("server.flush.consolidate", false);
+        this.flushMaxPendingWrites = Config.getInstance().getIntValue("server.flush.maxPendingWrites", 16);
+
+        // 隧道上小消息的合并
+        this.batchEnable = Config.getInstance().getBooleanValue("server.batch.enable", true);
+        this.batchMaxBytes = Config.getInstance().getIntValue("server.batch.maxBytes", 16 * 1024);
+        this.batchMaxMessageBytes = Config.getInstance().getIntValue("server.batch.maxMessageBytes", 1024);
+        this.batchDelayMicros = Config.getInstance().getIntValue("server.batch.delayMicros", 0);
+
+        // 隧道和用户连接的 EventLoop 对齐
+        this.loopAffinityEnable = Config.getInstance().getBooleanValue("server.loopAffinity.enable", true);
+
+        // 独占隧道的原始字节流
+        this.rawTunnelEnable = Config.getInstance().getBooleanValue("server.rawTunnel.enable", true);
+
+        // 流量统计的历史采样个数
+        this.metricsSecondSamples = Config.getInstance().getIntValue("server.metrics.secondSamples", 3600);
+        this.metricsMinuteSamples = Config.getInstance().getIntValue("server.metrics.minuteSamples", 10080);
+
+        // Prometheus 抓取接口
+        this.prometheusEnabled = Config.getInstance().getBooleanValue("config.prometheus.enabled", false);
+
+        // 全局限速；代理客户端、端口的限速在 config.json 中配置
+        this.shapingReadLimit = (long) Config.getInstance().getLongValue("server.shaping.readLimit", 0L);
+        this.shapingWriteLimit = (long) Config.getInstance().getLongValue("server.shaping.writeLimit", 0L);
+
+        // 建立隧道期间提前转发用户数据
+        this.earlyDataMaxBytes = Config.getInstance().getIntValue("server.earlyData.maxBytes", 0);
+
         logger.info(
                 "config init serverHost {}, serverPort {}, configServerHost {}, configServerPort {}, configServerUserName {}, configServerPassword {}",
                 serverHost, serverPort, configServerHost, configServerPort, configServerUserName, configServerPassword);
@@ -155,6 +290,150 @@ public class ProxyConfig implements Serializable {
         this.configServerPassword = configServerPassword;
     }
 
+    public Integer getMuxWindowSize() {
+        return muxWindowSize;
+    }
+
+    public void setMuxWindowSize(Integer muxWindowSize) {
+        this.muxWindowSize = muxWindowSize;
+    }
+
+    public Integer getUserPortAcceptors() {
+        return userPortAcceptors;
+    }
+
+    public void setUserPortAcceptors(Integer userPortAcceptors) {
+        this.userPortAcceptors = userPortAcceptors;
+    }
+
+    public Integer getUserPortLingerSeconds() {
+        return userPortLingerSeconds;
+    }
+
+    public void setUserPortLingerSeconds(Integer userPortLingerSeconds) {
+        this.userPortLingerSeconds = userPortLingerSeconds;
+    }
+
+    public Integer getSessionGraceSeconds() {
+        return sessionGraceSeconds;
+    }
+
+    public void setSessionGraceSeconds(Integer sessionGraceSeconds) {
+        this.sessionGraceSeconds = sessionGraceSeconds;
+    }
+
+    public Boolean getFlushConsolidate() {
+        return flushConsolidate;
+    }
+
+    public void setFlushConsolidate(Boolean flushConsolidate) {
+        this.flushConsolidate = flushConsolidate;
+    }
+
+    public Integer getFlushMaxPendingWrites() {
+        return flushMaxPendingWrites;
+    }
+
+    public void setFlushMaxPendingWrites(Integer flushMaxPendingWrites) {
+        this.flushMaxPendingWrites = flushMaxPendingWrites;
+    }
+
+    public Boolean getBatchEnable() {
+        return batchEnable;
+    }
+
+    public void setBatchEnable(Boolean batchEnable) {
+        this.batchEnable = batchEnable;
+    }
+
+    public Integer getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public void setBatchMaxBytes(Integer batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public Integer getBatchMaxMessageBytes() {
+        return batchMaxMessageBytes;
+    }
+
+    public void setBatchMaxMessageBytes(Integer batchMaxMessageBytes) {
+        this.batchMaxMessageBytes = batchMaxMessageBytes;
+    }
+
+    public Integer getBatchDelayMicros() {
+        return batchDelayMicros;
+    }
+
+    public void setBatchDelayMicros(Integer batchDelayMicros) {
+        this.batchDelayMicros = batchDelayMicros;
+    }
+
+    public Boolean getLoopAffinityEnable() {
+        return loopAffinityEnable;
+    }
+
+    public void setLoopAffinityEnable(Boolean loopAffinityEnable) {
+        this.loopAffinityEnable = loopAffinityEnable;
+    }
+
+    public Boolean getRawTunnelEnable() {
+        return rawTunnelEnable;
+    }
+
+    public void setRawTunnelEnable(Boolean rawTunnelEnable) {
+        this.rawTunnelEnable = rawTunnelEnable;
+    }
+
+    public Integer getMetricsSecondSamples() {
+        return metricsSecondSamples;
+    }
+
+    public void setMetricsSecondSamples(Integer metricsSecondSamples) {
+        this.metricsSecondSamples = metricsSecondSamples;
+    }
+
+    public Integer getMetricsMinuteSamples() {
+        return metricsMinuteSamples;
+    }
+
+    public void setMetricsMinuteSamples(Integer metricsMinuteSamples) {
+        this.metricsMinuteSamples = metricsMinuteSamples;
+    }
+
+    public Boolean getPrometheusEnabled() {
+        return prometheusEnabled;
+    }
+
+    public void setPrometheusEnabled(Boolean prometheusEnabled) {
+        this.prometheusEnabled = prometheusEnabled;
+    }
+
+    public Long getShapingReadLimit() {
+        return shapingReadLimit;
+    }
+
+    public void setShapingReadLimit(Long shapingReadLimit) {
+        this.shapingReadLimit = shapingReadLimit;
+    }
+
+    public Long getShapingWriteLimit() {
+        return shapingWriteLimit;
+    }
+
+    public void setShapingWriteLimit(Long shapingWriteLimit) {
+        this.shapingWriteLimit = shapingWriteLimit;
+    }
+
+    public Integer getEarlyDataMaxBytes() {
+        return earlyDataMaxBytes;
+    }
+
+    public void setEarlyDataMaxBytes(Integer earlyDataMaxBytes) {
+        this.earlyDataMaxBytes = earlyDataMaxBytes;
+    }
+
     public List<Client> getClients() {
         return clients;
     }
@@ -236,6 +515,8 @@ public class ProxyConfig implements Serializable {
         Map<String, List<Integer>> clientInetPortMapping = new HashMap<String, List<Integer>>(3);
         // proxyServer_port : client_ip:client_port
         Map<Integer, String> inetPortLanInfoMapping = new HashMap<Integer, String>(3);
+        // proxyServer_port : 压缩算法
+        Map<Integer, Byte> inetPortCompressionMapping = new HashMap<>(3);
 
         // 构造端口映射关系
         for (Client client : clients) {
@@ -254,12 +535,17 @@ public class ProxyConfig implements Serializable {
                 }
 
                 inetPortLanInfoMapping.put(port, mapping.getLan());
+                byte codec = StreamCompression.parse(mapping.getCompression());
+                if (codec != StreamCompression.NONE) {
+                    inetPortCompressionMapping.put(port, codec);
+                }
             }
         }
 
         // 替换之前的配置关系
         this.clientInetPortMapping = clientInetPortMapping;
         this.inetPortLanInfoMapping = inetPortLanInfoMapping;
+        this.inetPortCompressionMapping = inetPortCompressionMapping;
         this.clients = clients;
 
         // 更新配置文件
@@ -282,7 +568,7 @@ public class ProxyConfig implements Serializable {
         }
 
         // 配置更新通知
-        //notifyConfigChangedListeners();
+        notifyConfigChangedListeners();
     }
 
     /**
@@ -320,6 +606,16 @@ public class ProxyConfig implements Serializable {
         return inetPortLanInfoMapping.get(port);
     }
 
+    /**
+     * 根据代理服务器端口获取传输数据的压缩算法
+     *
+     * @return {@link StreamCompression} 中的算法，没有开启压缩时为 {@link StreamCompression#NONE}
+     */
+    public byte getCompression(Integer port) {
+        Byte codec = inetPortCompressionMapping.get(port);
+        return codec == null ? StreamCompression.NONE : codec;
+    }
+
     /**
      * 返回需要绑定在代理服务器的端口（用于用户请求）
      */
@@ -369,6 +665,12 @@ public class ProxyConfig implements Serializable {
         /** 代理客户端与其后面的真实服务器映射关系 */
         private List<ClientProxyMapping> proxyMappings;
 
+        /** 代理客户端所有端口每秒读取用户请求的字节数，不配置或者 0 不限速 */
+        private Long readLimit;
+
+        /** 代理客户端所有端口每秒写给用户的字节数，不配置或者 0 不限速 */
+        private Long writeLimit;
+
         public String getName() {
             return name;
         }
@@ -400,6 +702,22 @@ public class ProxyConfig implements Serializable {
         public void setProxyMappings(List<ClientProxyMapping> proxyMappings) {
             this.proxyMappings = proxyMappings;
         }
+
+        public Long getReadLimit() {
+            return readLimit;
+        }
+
+        public void setReadLimit(Long readLimit) {
+            this.readLimit = readLimit;
+        }
+
+        public Long getWriteLimit() {
+            return writeLimit;
+        }
+
+        public void setWriteLimit(Long writeLimit) {
+            this.writeLimit = writeLimit;
+        }
     }
 
     /**
@@ -415,6 +733,15 @@ public class ProxyConfig implements Serializable {
         /** 备注名称 */
         private String name;
 
+        /** 此端口每秒读取用户请求的字节数，不配置或者 0 不限速 */
+        private Long readLimit;
+
+        /** 此端口每秒写给用户的字节数，不配置或者 0 不限速 */
+        private Long writeLimit;
+
+        /** 隧道上传输数据的压缩算法：snappy（速度优先）、deflate（压缩率优先），不配置不压缩；代理客户端不支持时不压缩 */
+        private String compression;
+
         public Integer getInetPort() {
             return inetPort;
         }
@@ -438,6 +765,30 @@ public class ProxyConfig implements Serializable {
         public void setName(String name) {
             this.name = name;
         }
+
+        public Long getReadLimit() {
+            return readLimit;
+        }
+
+        public void setReadLimit(Long readLimit) {
+            this.readLimit = readLimit;
+        }
+
+        public Long getWriteLimit() {
+            return writeLimit;
+        }
+
+        public void setWriteLimit(Long writeLimit) {
+            this.writeLimit = writeLimit;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
     }
 
 }
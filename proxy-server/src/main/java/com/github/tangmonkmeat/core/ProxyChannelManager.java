@@ -1,16 +1,26 @@
 package com.github.tangmonkmeat.core;
 
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
 import com.github.tangmonkmeat.config.ProxyConfig;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Description:
@@ -31,10 +41,10 @@ public class ProxyChannelManager {
 
     /**
      * 代理服务器和用户连接的 channel：
-     * key：userId
+     * key：streamId
      * value：userChannel
      */
-    public static final AttributeKey<Map<String, Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
+    public static final AttributeKey<ConcurrentIntObjectMap<Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
 
     /**
      * 真实端服务器ip和端口信息，ip:port
@@ -51,19 +61,56 @@ public class ProxyChannelManager {
      */
     public static final AttributeKey<String> CHANNEL_CLIENT_KEY = AttributeKey.newInstance("channel_client_key");
 
+    /**
+     * 代理客户端的编号（clientIndex），设置在 cmdChannel 和多路复用隧道上
+     */
+    public static final AttributeKey<Integer> CHANNEL_CLIENT_INDEX = AttributeKey.newInstance("channel_client_index");
+
+    /**
+     * 代理客户端支持的压缩算法，按位表示，认证时由代理客户端告知；旧版本的代理客户端为 0
+     */
+    public static final AttributeKey<Integer> CHANNEL_COMPRESSION_CODECS = AttributeKey.newInstance("channel_compression_codecs");
+
+    /**
+     * 代理客户端支持的扩展，按位表示，认证时由代理客户端告知；旧版本的代理客户端为 0
+     */
+    public static final AttributeKey<Integer> CHANNEL_FEATURES = AttributeKey.newInstance("channel_features");
+
+    /**
+     * 控制连接的会话令牌，认证时分配；代理客户端不支持会话恢复时为 null
+     */
+    public static final AttributeKey<Long> CHANNEL_SESSION_TOKEN = AttributeKey.newInstance("channel_session_token");
+
+    /**
+     * 控制连接的隧道令牌，认证时分配，恢复会话时沿用原来的令牌；
+     * 独占隧道的 TYPE_CONNECT、多路复用隧道的注册必须携带
+     */
+    public static final AttributeKey<byte[]> CHANNEL_TUNNEL_TOKEN = AttributeKey.newInstance("channel_tunnel_token");
+
+    /**
+     * 断开的控制连接保留会话期间的超时任务，会话被新的控制连接接管时取消
+     */
+    private static final AttributeKey<ScheduledFuture<?>> CHANNEL_SESSION_EXPIRY = AttributeKey.newInstance("channel_session_expiry");
+
+    /**
+     * 会话令牌、隧道令牌 生成器
+     */
+    private static final SecureRandom tokenProducer = new SecureRandom();
+
     /**
      * 每个代理服务器开放的端口，都映射一个 cmdChannel
      *
      * key：代理服务器开放的端口
      * value：控制代理客户端和代理服务器的 channel
      */
-    private static final Map<Integer, Channel> portCmdChannelMapping = new ConcurrentHashMap<>();
+    private static final ConcurrentIntObjectMap<Channel> portCmdChannelMapping = new ConcurrentIntObjectMap<>();
 
     /**
-     * 每个代理服务器开放的端口，都映射一个 bindChannel
+     * 每个代理服务器开放的端口，都映射 bindChannel；
+     * 开启 SO_REUSEPORT 时，一个端口对应多个 bindChannel
      *
      */
-    private static final Map<Integer, Channel> portBindChannelMapping = new ConcurrentHashMap<>();
+    private static final ConcurrentIntObjectMap<List<Channel>> portBindChannelMapping = new ConcurrentIntObjectMap<>();
 
     /**
      * 每个代理客户端的 唯一标示（clientKey），都映射一个 cmdChannel
@@ -73,13 +120,188 @@ public class ProxyChannelManager {
      */
     private static final Map<String, Channel> cmdChannels = new ConcurrentHashMap<>();
 
+    /**
+     * 每个代理客户端的编号（clientIndex），都映射一个 cmdChannel；
+     * 代理客户端建立独占隧道时只携带 clientIndex，不再携带 clientKey 字符串
+     *
+     * key：代理客户端的编号
+     * value：控制代理客户端和代理服务器的 channel
+     */
+    private static final ConcurrentIntObjectMap<Channel> indexCmdChannels = new ConcurrentIntObjectMap<>();
+
+    /**
+     * clientKey 对应的编号；编号只分配一次，代理客户端重连后保持不变
+     */
+    private static final Map<String, Integer> clientIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * 代理客户端编号 生成器
+     */
+    private static final AtomicInteger clientIndexProducer = new AtomicInteger(0);
+
+    /**
+     * 代理客户端连接到代理服务器的 channel 个数，包括 cmdChannel、独占隧道和多路复用隧道
+     */
+    private static final AtomicInteger proxyChannelCount = new AtomicInteger(0);
+
+    /**
+     * 工作线程组中每个 EventLoop 的编号，随 TYPE_LOOP_HINT、TYPE_CONNECT 告知代理客户端
+     *
+     * key：EventLoop，没有覆盖 equals，按引用比较
+     * value：在线程组中的编号
+     */
+    private static final Map<EventExecutor, Integer> loopIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * 登记工作线程组，为每个 EventLoop 编号
+     *
+     * @param workerGroup 用户连接和隧道共用的工作线程组
+     */
+    public static void registerWorkerGroup(EventLoopGroup workerGroup) {
+        int index = 0;
+        for (EventExecutor executor : workerGroup) {
+            loopIndexes.put(executor, index++);
+        }
+    }
+
+    /**
+     * 获取连接所在的 EventLoop 的编号
+     *
+     * @param channel 用户连接或者隧道
+     * @return 编号；不属于登记的工作线程组时为 -1
+     */
+    public static int getLoopIndex(Channel channel) {
+        Integer index = loopIndexes.get(channel.eventLoop());
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 是否按 EventLoop 对齐代理客户端的逻辑流：开启了 server.loopAffinity.enable，并且代理客户端认证时通告支持
+     *
+     * @param cmdChannel 控制连接
+     * @return 是否在 TYPE_CONNECT 中携带用户连接所在的 EventLoop 编号
+     */
+    public static boolean isLoopAffinityEnabled(Channel cmdChannel) {
+        Integer features = cmdChannel.attr(CHANNEL_FEATURES).get();
+        return ProxyConfig.instance.getLoopAffinityEnable()
+                && features != null && (features & ProxyMessage.FEATURE_LOOP_HINT) != 0;
+    }
+
+    /**
+     * 是否为控制连接保留会话：开启了 server.session.graceSeconds，并且代理客户端认证时通告支持
+     *
+     * @param features 代理客户端支持的扩展
+     * @return 是否分配会话令牌
+     */
+    public static boolean isSessionResumeEnabled(int features) {
+        return ProxyConfig.instance.getSessionGraceSeconds() > 0 && (features & ProxyMessage.FEATURE_SESSION_RESUME) != 0;
+    }
+
+    /**
+     * 分配会话令牌
+     *
+     * @return 不为 0 的随机数，0 表示没有会话
+     */
+    public static long newSessionToken() {
+        long token;
+        do {
+            token = tokenProducer.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    /**
+     * 会话令牌是否属于控制连接
+     *
+     * @param cmdChannel 控制连接
+     * @param token 代理客户端携带的会话令牌
+     * @return 是否可以恢复该控制连接的会话
+     */
+    public static boolean isSessionOf(Channel cmdChannel, long token) {
+        Long sessionToken = cmdChannel.attr(CHANNEL_SESSION_TOKEN).get();
+        return token != 0 && sessionToken != null && sessionToken == token;
+    }
+
+    /**
+     * 分配隧道令牌
+     *
+     * @return {@link ProxyMessage#TUNNEL_TOKEN_LENGTH} byte 的随机数
+     */
+    public static byte[] newTunnelToken() {
+        byte[] token = new byte[ProxyMessage.TUNNEL_TOKEN_LENGTH];
+        tokenProducer.nextBytes(token);
+        return token;
+    }
+
+    /**
+     * 隧道携带的令牌是否属于控制连接，以固定时间比较，不因匹配的前缀长度泄露令牌
+     *
+     * @param cmdChannel 已经认证的控制连接
+     * @param data 隧道发来的消息 data
+     * @param offset 令牌在 data 中的偏移
+     * @return 是否为该代理客户端的隧道
+     */
+    public static boolean isTunnelOf(Channel cmdChannel, ByteBuf data, int offset) {
+        byte[] tunnelToken = cmdChannel.attr(CHANNEL_TUNNEL_TOKEN).get();
+        if (tunnelToken == null || data == null || data.readableBytes() < offset + tunnelToken.length) {
+            return false;
+        }
+        byte[] token = new byte[tunnelToken.length];
+        data.getBytes(data.readerIndex() + offset, token);
+        return MessageDigest.isEqual(tunnelToken, token);
+    }
+
+    /**
+     * 代理客户端建立连接
+     */
+    public static void incrementProxyChannels() {
+        proxyChannelCount.incrementAndGet();
+    }
+
+    /**
+     * 代理客户端断开连接
+     */
+    public static void decrementProxyChannels() {
+        proxyChannelCount.decrementAndGet();
+    }
+
+    /**
+     * @return 代理客户端连接到代理服务器的 channel 个数
+     */
+    public static int getProxyChannelCount() {
+        return proxyChannelCount.get();
+    }
+
+    /**
+     * @return 在线的代理客户端个数，即 cmdChannel 个数
+     */
+    public static int getCmdChannelCount() {
+        return cmdChannels.size();
+    }
+
+    /**
+     * 获取 clientKey 对应的编号，第一次获取时分配
+     *
+     * @param clientKey 代理客户端的唯一标识
+     * @return 代理客户端的编号
+     */
+    public static int internClientKey(String clientKey) {
+        Integer clientIndex = clientIndexes.get(clientKey);
+        if (clientIndex != null) {
+            return clientIndex;
+        }
+        Integer newIndex = clientIndexProducer.incrementAndGet();
+        clientIndex = clientIndexes.putIfAbsent(clientKey, newIndex);
+        return clientIndex == null ? newIndex : clientIndex;
+    }
+
     /**
      * 获取 代理客户端和代理服务器 的 cmdChannel
      *
      * @param port 代理服务器的端口
      * @return 控制代客户端和代理服务器的channel（cmdChannel）
      */
-    public static Channel getCmdChannel(Integer port) {
+    public static Channel getCmdChannel(int port) {
         return portCmdChannelMapping.get(port);
     }
 
@@ -93,58 +315,75 @@ public class ProxyChannelManager {
         return cmdChannels.get(clientKey);
     }
 
+    /**
+     * 获取 代理客户端和代理服务器 的 cmdChannel
+     *
+     * @param clientIndex 代理客户端的编号
+     * @return 控制代客户端和代理服务器的channel（cmdChannel）
+     */
+    public static Channel getCmdChannelByIndex(int clientIndex) {
+        return indexCmdChannels.get(clientIndex);
+    }
+
     /**
      * 增加 用户连接与代理客户端连接关系
      *
      * @param cmdChannel 代理客户端连接
-     * @param userId 用户唯一标识
+     * @param streamId 用户连接对应的逻辑流标识
      * @param userChannel 用户请求channel
      */
-    public static void addUserChannelToCmdChannel(Channel cmdChannel, String userId, Channel userChannel) {
+    public static void addUserChannelToCmdChannel(Channel cmdChannel, int streamId, Channel userChannel) {
         InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
         String lanInfo = ProxyConfig.instance.getLanInfo(sa.getPort());
         // 绑定关系
-        userChannel.attr(Constants.USER_ID).set(userId);
+        userChannel.attr(Constants.STREAM_ID).set(streamId);
         userChannel.attr(REQUEST_LAN_INFO).set(lanInfo);
-        cmdChannel.attr(USER_CHANNELS).get().put(userId, userChannel);
+        cmdChannel.attr(USER_CHANNELS).get().put(streamId, userChannel);
     }
 
     /**
-     * 获取用户唯一标识
+     * 获取用户连接对应的逻辑流标识
      *
      * @param userChannel 用户连接
-     * @return 用户唯一标识
+     * @return 逻辑流标识；没有绑定时为 0
      */
-    public static String getUserChannelUserId(Channel userChannel) {
-        return userChannel.attr(Constants.USER_ID).get();
+    public static int getUserChannelStreamId(Channel userChannel) {
+        Integer streamId = userChannel.attr(Constants.STREAM_ID).get();
+        return streamId == null ? 0 : streamId;
     }
 
     /**
-     * 根据代理客户端连接与用户编号获取用户连接
+     * 根据代理客户端连接与逻辑流标识获取用户连接
      *
      * @param cmdChannel cmdChannel
-     * @param userId 请求用户唯一标识
+     * @param streamId 用户连接对应的逻辑流标识
      * @return userChannel
      */
-    public static Channel getUserChannel(Channel cmdChannel, String userId) {
-        return cmdChannel.attr(USER_CHANNELS).get().get(userId);
+    public static Channel getUserChannel(Channel cmdChannel, int streamId) {
+        return cmdChannel.attr(USER_CHANNELS).get().get(streamId);
     }
 
     /**
      * 获取 bindChannel
      *
      * @param port bindChannel 对应的 port
-     * @return bindChannel
+     * @return 该端口的所有 bindChannel
      */
-    public static Channel getBindChannel(Integer port){
+    public static List<Channel> getBindChannels(int port){
         return portBindChannelMapping.get(port);
     }
 
-    public static void addBindChannel(Integer port,Channel bindChannel){
-        portBindChannelMapping.put(port,bindChannel);
+    /**
+     * 缓存 bindChannel；开启 SO_REUSEPORT 时，同一个端口有多个 bindChannel
+     *
+     * @param port 端口
+     * @param bindChannels 该端口的所有 bindChannel
+     */
+    public static void addBindChannels(int port,List<Channel> bindChannels){
+        portBindChannelMapping.put(port,bindChannels);
     }
 
-    public static Channel removeBindChannel(Integer port){
+    public static List<Channel> removeBindChannels(int port){
         return portBindChannelMapping.remove(port);
     }
 
@@ -152,51 +391,67 @@ public class ProxyChannelManager {
      * 删除用户连接与代理客户端连接关系
      *
      * @param cmdChannel 代理客户端连接
-     * @param userId 用户连接
+     * @param streamId 用户连接对应的逻辑流标识
      * @return 用户连接
      */
-    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, String userId) {
-        if (cmdChannel.attr(USER_CHANNELS).get() == null) {
+    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, int streamId) {
+        ConcurrentIntObjectMap<Channel> userChannels = cmdChannel.attr(USER_CHANNELS).get();
+        if (userChannels == null) {
             return null;
         }
-
-        // ConcurrentHashMap 只保证单个操作的原子性
-        synchronized (cmdChannel) {
-            return cmdChannel.attr(USER_CHANNELS).get().remove(userId);
-        }
+        return userChannels.remove(streamId);
     }
 
     /**
-     * 代理客户端连接断开后，清除 cmdChannel
+     * 代理客户端连接断开后，清除 cmdChannel；
+     * 分配了会话令牌的 cmdChannel 保留 server.session.graceSeconds 秒，期间端口保持监听、用户连接和隧道照常转发，
+     * 代理客户端携带令牌重连后由新的 cmdChannel 接管，超时后才清除；
+     * 接管和超时都以 cmdChannels 上的比较并替换（删除）决定归属，两者只有一个成功
      *
      * @param channel cmdChannel
      */
-    public static void removeCmdChannel(Channel channel) {
-        logger.warn("channel closed, clear user channels, {}", channel);
+    public static void removeCmdChannel(final Channel channel) {
         // 如果 cmdChannel 没有开放任何端口
         if (channel.attr(CHANNEL_PORT).get() == null) {
             return;
         }
 
-        String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
-        // 移除缓存的 cmdChannel
-        Channel channel0 = cmdChannels.remove(clientKey);
-        if (channel != channel0) {
-            cmdChannels.put(clientKey, channel);
+        final String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
+        int graceSeconds = ProxyConfig.instance.getSessionGraceSeconds();
+        if (graceSeconds > 0 && channel.attr(CHANNEL_SESSION_TOKEN).get() != null && cmdChannels.get(clientKey) == channel) {
+            logger.warn("channel closed, keep session {}s for client {}, {}", graceSeconds, clientKey, channel);
+            channel.attr(CHANNEL_SESSION_EXPIRY).set(channel.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // 会话已经被新的 cmdChannel 接管；closeCmdChannel 以 remove(clientKey, channel) 再次确认归属
+                    if (cmdChannels.get(clientKey) != channel) {
+                        return;
+                    }
+                    logger.warn("session expired, client {}, {}", clientKey, channel);
+                    closeCmdChannel(channel);
+                }
+            }, graceSeconds, TimeUnit.SECONDS));
+            return;
         }
+        closeCmdChannel(channel);
+    }
+
+    /**
+     * 清除 cmdChannel，关闭关联的用户连接，释放开放的端口；
+     * 会话已经被新的 cmdChannel 接管时，用户连接属于新的 cmdChannel，不关闭
+     *
+     * @param channel cmdChannel
+     */
+    private static void closeCmdChannel(Channel channel) {
+        String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
+        // 移除缓存的 cmdChannel；只移除自己，在执行断连之前新的连接可能已经连上来了
+        boolean owner = cmdChannels.remove(clientKey, channel);
+        indexCmdChannels.remove(channel.attr(CHANNEL_CLIENT_INDEX).get(), channel);
 
         // 移除缓存的 cmdChannel
         List<Integer> ports = channel.attr(CHANNEL_PORT).get();
         for (int port : ports) {
-            Channel cmdChannel = portCmdChannelMapping.remove(port);
-            if (cmdChannel == null) {
-                continue;
-            }
-
-            // 在执行断连之前新的连接已经连上来了
-            if (cmdChannel != channel) {
-                portCmdChannelMapping.put(port, cmdChannel);
-            }
+            portCmdChannelMapping.remove(port, channel);
         }
 
         // close cmdChannel
@@ -206,22 +461,18 @@ public class ProxyChannelManager {
         }
 
         // 关闭 和cmdChannel 关联的所有userChannel
-        Map<String, Channel> userChannels = getUserChannels(channel);
-        for (String s : userChannels.keySet()) {
-            Channel userChannel = userChannels.get(s);
-            if (userChannel.isActive()) {
-                userChannel.close();
-                logger.info("disconnect user channel {}", userChannel);
+        if (owner) {
+            logger.warn("channel closed, clear user channels, {}", channel);
+            for (Channel userChannel : getUserChannels(channel)) {
+                if (userChannel.isActive()) {
+                    userChannel.close();
+                    logger.info("disconnect user channel {}", userChannel);
+                }
             }
         }
 
-        // 释放 cmdChannel 开放的所有端口
-        for (int port : ports) {
-            Channel bindChannel = removeBindChannel(port);
-            if (bindChannel != null){
-                bindChannel.close();
-            }
-        }
+        // 释放 cmdChannel 开放的所有端口；监听保留一段时间，代理客户端重连后直接使用
+        ProxyServerContainer.releaseUserPorts(ports, channel.eventLoop());
     }
 
     /**
@@ -229,36 +480,171 @@ public class ProxyChannelManager {
      *
      * @param ports 端口映射列表
      * @param clientKey 代理客户端的秘钥
+     * @param clientIndex 代理客户端的编号
      * @param cmdChannel 控制连接的channel（cmdChannel）
      */
-    public static void addCmdChannel(List<Integer> ports, String clientKey, Channel cmdChannel) {
-        if (ports == null) {
-            throw new IllegalArgumentException("port can not be null");
+    public static void addCmdChannel(List<Integer> ports, String clientKey, int clientIndex, Channel cmdChannel) {
+        addCmdChannel(ports, clientKey, clientIndex, cmdChannel, new ConcurrentIntObjectMap<Channel>(), null);
+    }
+
+    /**
+     * 代理客户端携带会话令牌重连，新的 cmdChannel 接管原来的会话：
+     * 共用原来的用户连接映射，正在转发的用户连接和隧道不受影响；原来的 cmdChannel 还没有断开时关闭。
+     * 以 cmdChannels.replace(clientKey, oldCmdChannel, cmdChannel) 接管，和会话超时的 remove(clientKey, oldCmdChannel) 互斥，
+     * 会话在此之前已经超时清除（用户连接已经关闭）时接管失败
+     *
+     * @param ports 端口映射列表
+     * @param clientKey 代理客户端的秘钥
+     * @param clientIndex 代理客户端的编号
+     * @param cmdChannel 新的控制连接
+     * @param oldCmdChannel 原来的控制连接
+     * @return 是否接管成功；失败时没有登记任何映射
+     */
+    public static boolean resumeCmdChannel(List<Integer> ports, String clientKey, int clientIndex, Channel cmdChannel, Channel oldCmdChannel) {
+        if (!addCmdChannel(ports, clientKey, clientIndex, cmdChannel, oldCmdChannel.attr(USER_CHANNELS).get(), oldCmdChannel)) {
+            return false;
         }
+        // 会话已经接管，取消超时任务；任务已经开始执行时，remove(clientKey, oldCmdChannel) 失败，不会关闭用户连接
+        ScheduledFuture<?> expiry = oldCmdChannel.attr(CHANNEL_SESSION_EXPIRY).getAndSet(null);
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        // 原来的 cmdChannel 不再是会话的所有者，清除时不会关闭用户连接，只清除它自己的映射和不再配置的端口；
+        // 还没有断开时关闭，断开后再清除
+        if (oldCmdChannel.isActive()) {
+            oldCmdChannel.close();
+        } else {
+            closeCmdChannel(oldCmdChannel);
+        }
+        return true;
+    }
 
-        // 保证服务器对外端口与客户端到服务器的连接关系在临界情况时调用removeChannel(Channel channel)时不出问题
-        // ConcurrentHashMap的线程安全指的是，它的每个方法单独调用（即原子操作）都是线程安全的
-        // 如果有两个线程分别调用put和remove方法，就无法保证线程安全了
-        synchronized (portCmdChannelMapping) {
-            for (int port : ports) {
-                portCmdChannelMapping.put(port, cmdChannel);
-            }
+    /**
+     * 登记 cmdChannel 的映射关系
+     *
+     * @param oldCmdChannel 恢复会话时被接管的 cmdChannel，只有它仍然是 clientKey 的 cmdChannel 时才登记；新建会话时为 null
+     * @return 是否登记成功
+     */
+    private static boolean addCmdChannel(List<Integer> ports, String clientKey, int clientIndex, Channel cmdChannel,
+                                         ConcurrentIntObjectMap<Channel> userChannels, Channel oldCmdChannel) {
+        if (ports == null) {
+            throw new IllegalArgumentException("port can not be null");
         }
 
+        // 先设置属性再登记映射，恢复会话时端口正在监听，用户连接随时可能通过端口找到新的 cmdChannel
         cmdChannel.attr(CHANNEL_PORT).set(ports);
         cmdChannel.attr(CHANNEL_CLIENT_KEY).set(clientKey);
-        cmdChannel.attr(USER_CHANNELS).set(new ConcurrentHashMap<String, Channel>());
-        // 缓存 cmdChannel
-        cmdChannels.put(clientKey, cmdChannel);
+        cmdChannel.attr(CHANNEL_CLIENT_INDEX).set(clientIndex);
+        cmdChannel.attr(USER_CHANNELS).set(userChannels);
+
+        // 缓存 cmdChannel；恢复会话时先确认归属，再登记端口映射
+        if (oldCmdChannel == null) {
+            cmdChannels.put(clientKey, cmdChannel);
+        } else if (!cmdChannels.replace(clientKey, oldCmdChannel, cmdChannel)) {
+            return false;
+        }
+        // removeCmdChannel 以 remove(port, channel) 只移除旧的 cmdChannel，不会误删这里新登记的关系
+        for (int port : ports) {
+            portCmdChannelMapping.put(port, cmdChannel);
+        }
+        indexCmdChannels.put(clientIndex, cmdChannel);
+        return true;
+    }
+
+    /**
+     * 注册多路复用隧道，一条隧道承载同一个代理客户端的多个用户连接
+     *
+     * @param muxChannel 多路复用隧道
+     * @param clientKey 代理客户端的秘钥
+     * @param clientIndex 代理客户端的编号
+     */
+    public static void addMuxChannel(Channel muxChannel, String clientKey, int clientIndex) {
+        muxChannel.attr(CHANNEL_CLIENT_KEY).set(clientKey);
+        muxChannel.attr(CHANNEL_CLIENT_INDEX).set(clientIndex);
+        muxChannel.attr(Constants.MUX_STREAMS).set(new ConcurrentIntObjectMap<Channel>());
+    }
+
+    /**
+     * 是否是多路复用隧道
+     *
+     * @param proxyChannel 代理客户端和代理服务器的channel
+     * @return 是否是多路复用隧道
+     */
+    public static boolean isMuxChannel(Channel proxyChannel) {
+        return proxyChannel.attr(Constants.MUX_STREAMS).get() != null;
+    }
+
+    /**
+     * 在多路复用隧道上登记逻辑流，绑定隧道和用户连接的关系
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @param userChannel 用户连接
+     */
+    public static void addMuxStream(Channel muxChannel, int streamId, Channel userChannel) {
+        muxChannel.attr(Constants.MUX_STREAMS).get().put(streamId, userChannel);
+        userChannel.attr(Constants.NEXT_CHANNEL).set(muxChannel);
+    }
+
+    /**
+     * 获取多路复用隧道上的逻辑流对应的用户连接
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @return 用户连接；逻辑流不存在返回 null
+     */
+    public static Channel getMuxStream(Channel muxChannel, int streamId) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().get(streamId);
+    }
+
+    /**
+     * 移除多路复用隧道上的逻辑流
+     *
+     * @param muxChannel 多路复用隧道
+     * @param streamId 逻辑流标识
+     * @return 被移除的用户连接；如果逻辑流已经被移除，返回 null
+     */
+    public static Channel removeMuxStream(Channel muxChannel, int streamId) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().remove(streamId);
+    }
+
+    /**
+     * 获取多路复用隧道上的所有逻辑流
+     *
+     * @param muxChannel 多路复用隧道
+     * @return 所有逻辑流的用户连接（快照）
+     */
+    public static List<Channel> getMuxStreams(Channel muxChannel) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().values();
+    }
+
+    /**
+     * 移除多路复用隧道上的所有逻辑流，隧道断开时调用
+     *
+     * @param muxChannel 多路复用隧道
+     * @return 被移除的所有用户连接
+     */
+    public static List<Channel> removeMuxStreams(Channel muxChannel) {
+        return muxChannel.attr(Constants.MUX_STREAMS).get().removeAll();
+    }
+
+    /**
+     * 获取多路复用隧道所属代理客户端的编号
+     *
+     * @param muxChannel 多路复用隧道
+     * @return clientIndex
+     */
+    public static int getMuxChannelClientIndex(Channel muxChannel) {
+        return muxChannel.attr(CHANNEL_CLIENT_INDEX).get();
     }
 
     /**
      * 获取代理控制客户端连接绑定的所有用户连接
      *
      * @param cmdChannel 控制连接的channel（cmdChannel）
-     * @return userChannels
+     * @return 所有用户连接（快照）
      */
-    public static Map<String, Channel> getUserChannels(Channel cmdChannel) {
-        return cmdChannel.attr(USER_CHANNELS).get();
+    public static List<Channel> getUserChannels(Channel cmdChannel) {
+        return cmdChannel.attr(USER_CHANNELS).get().values();
     }
 }
@@ -1,26 +1,43 @@
 package com.github.tangmonkmeat.core;
 
+import com.github.tangmonkmeat.common.Config;
 import com.github.tangmonkmeat.common.Container.Container;
+import com.github.tangmonkmeat.common.util.SslContextUtil;
+import com.github.tangmonkmeat.common.util.TransportUtil;
 import com.github.tangmonkmeat.config.ProxyConfig;
 import com.github.tangmonkmeat.handler.ServerChannelHandler;
+import com.github.tangmonkmeat.handler.TrafficShapingHandler;
 import com.github.tangmonkmeat.handler.UserChannelHandler;
 import com.github.tangmonkmeat.web.handler.BytesMetricsHandler;
+import com.github.tangmonkmeat.web.metrics.BatchCollector;
 import com.github.tangmonkmeat.web.metrics.Constants;
 import com.github.tangmonkmeat.web.metrics.IdleCheckHandler;
+import com.github.tangmonkmeat.web.metrics.LatencyCollector;
+import com.github.tangmonkmeat.web.metrics.MetricsCollector;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageBatchCodec;
 import com.github.tangmonkmeat.web.metrics.ProxyMessageDecoder;
 import com.github.tangmonkmeat.web.metrics.ProxyMessageEncoder;
+import com.github.tangmonkmeat.web.metrics.PrometheusExporter;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.BindException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Description:
@@ -46,17 +63,37 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
 
     private static final int LENGTH_ADJUSTMENT = 0;
 
-    private final NioEventLoopGroup serverWorkerGroup;
+    private final EventLoopGroup serverWorkerGroup;
 
-    private final NioEventLoopGroup serverBossGroup;
+    private final EventLoopGroup serverBossGroup;
 
     private static ServerBootstrap usersBootstrap;
 
     private static ServerBootstrap clientsBootstrap;
 
+    /**
+     * 正在绑定的用户端口，和 ProxyChannelManager 中缓存的 bindChannels 一起在 ProxyServerContainer.class 上同步访问
+     */
+    private static final Set<Integer> BINDING_PORTS = new HashSet<>();
+
+    /**
+     * 隧道端口的 TLS，server.ssl.enable=false 时为 null；
+     * 所有隧道共享同一个 SslContext，代理客户端新建的隧道可以恢复之前的会话
+     */
+    private final SslContext sslContext;
+
     public ProxyServerContainer() {
-        serverBossGroup = new NioEventLoopGroup();
-        serverWorkerGroup = new NioEventLoopGroup();
+        try {
+            sslContext = SslContextUtil.newServerContext(Config.getInstance(), "server.ssl.");
+        } catch (Exception ex) {
+            throw new IllegalStateException("create tunnel ssl context failed", ex);
+        }
+        serverBossGroup = TransportUtil.newEventLoopGroup();
+        serverWorkerGroup = TransportUtil.newEventLoopGroup();
+        PrometheusExporter.registerEventLoopGroup("server_boss", serverBossGroup);
+        PrometheusExporter.registerEventLoopGroup("server_worker", serverWorkerGroup);
+        // 用户连接和隧道在同一个工作线程组，按编号对齐两者的 EventLoop
+        ProxyChannelManager.registerWorkerGroup(serverWorkerGroup);
         ProxyConfig.instance.addConfigChangedListener(this);
     }
 
@@ -68,13 +105,20 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
                 if (clientsBootstrap == null){
                     clientsBootstrap = new ServerBootstrap();
                     clientsBootstrap.group(serverBossGroup, serverWorkerGroup)
-                            .channel(NioServerSocketChannel.class)
+                            .channel(TransportUtil.serverChannelClass())
                             .childHandler(new ChannelInitializer<SocketChannel>() {
 
                                 @Override
                                 public void initChannel(SocketChannel ch) throws Exception {
+                                    if (sslContext != null) {
+                                        ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+                                    }
                                     ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
                                     ch.pipeline().addLast(new ProxyMessageEncoder());
+                                    // 代理客户端通告支持后才开启出站合并，见 ServerChannelHandler
+                                    ch.pipeline().addLast(new ProxyMessageBatchCodec(ProxyConfig.instance.getBatchMaxBytes(),
+                                            ProxyConfig.instance.getBatchMaxMessageBytes(), ProxyConfig.instance.getBatchDelayMicros(),
+                                            false, BatchCollector.getInstance()));
                                     ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, 0));
                                     ch.pipeline().addLast(new ServerChannelHandler());
                                 }
@@ -95,15 +139,21 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
             synchronized (ProxyServerContainer.class){
                 if (usersBootstrap == null){
                     usersBootstrap = new ServerBootstrap();
-                    usersBootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+                    usersBootstrap.group(serverBossGroup, serverWorkerGroup).channel(TransportUtil.serverChannelClass()).childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) throws Exception {
                             // 统计用户流量
                             ch.pipeline().addFirst(new BytesMetricsHandler());
+                            // 全局、代理客户端、端口限速
+                            ch.pipeline().addLast(new TrafficShapingHandler());
                             // 转发用户请求
                             ch.pipeline().addLast(new UserChannelHandler());
                         }
                     });
+                    // 开启 SO_REUSEPORT，同一个用户端口可以由多个 EventLoop accept
+                    if (ProxyConfig.instance.getUserPortAcceptors() > 1 && !TransportUtil.enableReusePort(usersBootstrap)){
+                        logger.warn("{} transport does not support SO_REUSEPORT, user port acceptors is 1", TransportUtil.getTransportName());
+                    }
                 }
             }
         }
@@ -111,28 +161,152 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
 
     /**
      * 开启所有映射的端口，用于处理用户的请求
+     * <p>
+     * 各端口、各 acceptor 的 bind 同时发出，不等待结果，不阻塞调用线程（控制连接所在的 EventLoop）；
+     * 全部完成后回调 listener，绑定失败的端口逐个报告，已经绑定成功的端口照常服务。
+     * 已经绑定的端口（包括代理客户端断开后保留的监听）直接复用，正在绑定的端口不会重复绑定
+     * </p>
      *
      * @param clientKey 代理客户端的key
+     * @param listener 全部端口绑定完成后的回调，可以为 null
      */
-    public static void startUserPort(String clientKey) {
+    public static void startUserPort(final String clientKey, final UserPortBindListener listener) {
         // 根据clientKey开启 代理指定代理客户端映射的端口
         List<Integer> ports = ProxyConfig.instance.getClientInetPorts(clientKey);
-        for (int port : ports) {
-            try {
-                ChannelFuture future = usersBootstrap.bind(port);
-                future.get();
-                Channel bindChannel = future.channel();
-                // 缓存 port:bindChannel
-                ProxyChannelManager.addBindChannel(port,bindChannel);
-                logger.info("bind user port {}, clientKey {}", port, clientKey);
-            } catch (Exception ex) {
-                // 该端口已经绑定过，直接忽略
-                // 如果不是 BindException，抛出异常
-                if (!(ex.getCause() instanceof BindException)) {
-                    throw new RuntimeException(ex);
+        int acceptors = TransportUtil.isReusePortSupported() ? Math.max(1, ProxyConfig.instance.getUserPortAcceptors()) : 1;
+        final List<Integer> bindPorts = new ArrayList<>();
+        synchronized (ProxyServerContainer.class) {
+            for (int port : ports) {
+                // 该端口已经绑定过或者正在绑定，直接复用；开启 SO_REUSEPORT 后重复绑定不会失败，需要提前判断
+                if (ProxyChannelManager.getBindChannels(port) != null || !BINDING_PORTS.add(port)) {
+                    continue;
+                }
+                bindPorts.add(port);
+            }
+        }
+        final Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        if (bindPorts.isEmpty()) {
+            onUserPortsBound(clientKey, failures, listener);
+            return;
+        }
+        final AtomicInteger remainingPorts = new AtomicInteger(bindPorts.size());
+        for (final int port : bindPorts) {
+            final List<ChannelFuture> futures = new ArrayList<>(acceptors);
+            final AtomicInteger remainingAcceptors = new AtomicInteger(acceptors);
+            ChannelFutureListener bindListener = new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (remainingAcceptors.decrementAndGet() > 0) {
+                        return;
+                    }
+                    Throwable cause = addBindChannels(clientKey, port, futures);
+                    if (cause != null) {
+                        failures.put(port, cause);
+                    }
+                    if (remainingPorts.decrementAndGet() == 0) {
+                        onUserPortsBound(clientKey, failures, listener);
+                    }
+                }
+            };
+            // 每次 bind 注册到 bossGroup 的下一个 EventLoop 上；先收集全部 future，再添加监听
+            for (int i = 0; i < acceptors; i++) {
+                futures.add(usersBootstrap.bind(port));
+            }
+            for (ChannelFuture future : futures) {
+                future.addListener(bindListener);
+            }
+        }
+    }
+
+    /**
+     * 一个端口的所有 acceptor 绑定完成后，缓存 port:bindChannels；
+     * 部分 acceptor 失败时关闭已经绑定的监听，整个端口视为失败
+     *
+     * @return 失败的原因；成功时返回 null
+     */
+    private static Throwable addBindChannels(String clientKey, int port, List<ChannelFuture> futures) {
+        Throwable cause = null;
+        List<Channel> bindChannels = new ArrayList<>(futures.size());
+        for (ChannelFuture future : futures) {
+            if (future.isSuccess()) {
+                bindChannels.add(future.channel());
+            } else if (cause == null) {
+                cause = future.cause();
+            }
+        }
+        synchronized (ProxyServerContainer.class) {
+            BINDING_PORTS.remove(port);
+            // 绑定期间代理客户端已经断开，不再保留监听
+            boolean owned = ProxyChannelManager.getCmdChannel(port) != null;
+            if (cause == null && owned) {
+                ProxyChannelManager.addBindChannels(port, bindChannels);
+                logger.info("bind user port {}, acceptors {}, clientKey {}", port, bindChannels.size(), clientKey);
+                return null;
+            }
+        }
+        for (Channel bindChannel : bindChannels) {
+            bindChannel.close();
+        }
+        return cause;
+    }
+
+    /**
+     * 所有端口绑定完成，逐个报告失败的端口
+     */
+    private static void onUserPortsBound(String clientKey, Map<Integer, Throwable> failures, UserPortBindListener listener) {
+        for (Map.Entry<Integer, Throwable> failure : failures.entrySet()) {
+            logger.error("bind user port {} failed, clientKey is {}, {}", failure.getKey(), clientKey, failure.getValue().toString());
+        }
+        if (listener != null) {
+            listener.operationComplete(failures);
+        }
+    }
+
+    /**
+     * 代理客户端断开后释放映射的端口：
+     * 保留 server.userPort.lingerSeconds 秒，期间重连的代理客户端直接使用原来的监听，不再关闭、重新绑定；
+     * 超时后仍然没有代理客户端的端口才关闭监听
+     *
+     * @param ports 代理客户端映射的端口
+     * @param executor 执行延迟关闭的 EventExecutor
+     */
+    public static void releaseUserPorts(final List<Integer> ports, EventExecutor executor) {
+        int lingerSeconds = ProxyConfig.instance.getUserPortLingerSeconds();
+        if (lingerSeconds <= 0) {
+            closeUnownedUserPorts(ports);
+            return;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeUnownedUserPorts(ports);
+            }
+        }, lingerSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 关闭没有代理客户端的端口的监听
+     */
+    private static void closeUnownedUserPorts(List<Integer> ports) {
+        List<Channel> bindChannels = new ArrayList<>();
+        synchronized (ProxyServerContainer.class) {
+            for (int port : ports) {
+                // 代理客户端已经重连，继续使用原来的监听
+                if (ProxyChannelManager.getCmdChannel(port) != null) {
+                    continue;
+                }
+                List<Channel> removed = ProxyChannelManager.removeBindChannels(port);
+                if (removed != null) {
+                    bindChannels.addAll(removed);
+                    // 端口的流量统计随监听一起释放，重新监听时从零开始
+                    MetricsCollector.removeCollector(port);
+                    LatencyCollector.removeCollector(port);
                 }
             }
         }
+        for (Channel bindChannel : bindChannels) {
+            bindChannel.close();
+        }
     }
 
     /**
@@ -144,7 +318,7 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
         for(ProxyConfig.Client c : clients){
             // 如果用户在线，端口更新
             if (c.getStatus() == 1){
-                startUserPort(c.getClientKey());
+                startUserPort(c.getClientKey(), null);
             }
         }
     }
@@ -162,5 +336,17 @@ public class ProxyServerContainer implements Container, ProxyConfig.ConfigChange
         serverBossGroup.shutdownGracefully();
         serverWorkerGroup.shutdownGracefully();
     }
-}
 
+    /**
+     * 用户端口绑定完成的监听器
+     */
+    public interface UserPortBindListener {
+
+        /**
+         * 代理客户端映射的所有端口绑定完成
+         *
+         * @param failures 绑定失败的端口和原因，全部成功时为空
+         */
+        void operationComplete(Map<Integer, Throwable> failures);
+    }
+}
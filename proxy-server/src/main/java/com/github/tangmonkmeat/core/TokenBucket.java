@@ -0,0 +1,89 @@
+package com.github.tangmonkmeat.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description:
+ * 字节限速的令牌桶，多个 EventLoop 共用，无锁
+ * <p>
+ * 以“令牌恢复满的时间点”表示桶的状态（GCRA）：每消耗 n 字节，时间点推后 n / rate 秒；
+ * 时间点超过 当前时间 + 突发时长 的部分，就是需要暂停的时长。
+ * 数据已经读入或者写出后才扣减，不会拒绝，超出的部分记为欠账，由之后的暂停偿还，长期速率不会超过限制。
+ * </p>
+ * rate 可以随时修改，用于配置热更新；rate 小于等于 0 表示不限速
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 上午10:10
+ */
+public class TokenBucket {
+
+    /**
+     * 允许的突发时长：空闲后可以立即通过 rate * 200ms 字节
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * 每秒允许通过的字节数
+     */
+    private volatile long rate;
+
+    /**
+     * 令牌恢复满的时间点，System.nanoTime()
+     */
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * 扣减 bytes 字节
+     *
+     * @param bytes 读入或者写出的字节数
+     * @param now System.nanoTime()
+     * @return 需要暂停的时长，单位纳秒；0 表示不需要暂停
+     */
+    public long acquire(long bytes, long now) {
+        long r = rate;
+        if (r <= 0 || bytes <= 0) {
+            return 0;
+        }
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / r;
+        for (;;) {
+            long old = fullAt.get();
+            long next = Math.max(old, now) + cost;
+            if (fullAt.compareAndSet(old, next)) {
+                return Math.max(0, next - now - BURST_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return 还需要暂停的时长，单位纳秒，不扣减
+     */
+    public long delay(long now) {
+        if (rate <= 0) {
+            return 0;
+        }
+        return Math.max(0, fullAt.get() - now - BURST_NANOS);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 修改速率；改为不限速时清除欠账
+     *
+     * @param rate 每秒允许通过的字节数
+     */
+    public void setRate(long rate) {
+        if (rate <= 0) {
+            fullAt.set(System.nanoTime());
+        }
+        this.rate = rate;
+    }
+}
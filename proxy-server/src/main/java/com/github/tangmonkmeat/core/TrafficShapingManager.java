@@ -0,0 +1,199 @@
+package com.github.tangmonkmeat.core;
+
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
+import com.github.tangmonkmeat.config.ProxyConfig;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description:
+ * 用户流量的限速管理：全局、每个代理客户端（clientKey）、每个端口，各有读、写两个令牌桶
+ * <p>
+ * 读：代理服务器读取用户请求的速率；写：代理服务器写给用户的速率。<br/>
+ * 全局限速读取 config.properties；clientKey、端口的限速读取 config.json，
+ * 通过 /config/update 更新后立即修改令牌桶的速率、重新组合每个端口的令牌桶，
+ * 用户连接每次读写时都重新获取，已经建立的用户连接同样生效。
+ * </p>
+ * 令牌桶创建后一直保留，数量不超过配置过的端口和代理客户端个数
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 上午10:40
+ */
+public class TrafficShapingManager {
+
+    /**
+     * 全局的读限速
+     */
+    private static final TokenBucket GLOBAL_READ_BUCKET = new TokenBucket(ProxyConfig.instance.getShapingReadLimit());
+
+    /**
+     * 全局的写限速
+     */
+    private static final TokenBucket GLOBAL_WRITE_BUCKET = new TokenBucket(ProxyConfig.instance.getShapingWriteLimit());
+
+    /**
+     * 每个端口的读限速
+     */
+    private static final ConcurrentIntObjectMap<TokenBucket> portReadBuckets = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 每个端口的写限速
+     */
+    private static final ConcurrentIntObjectMap<TokenBucket> portWriteBuckets = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 每个代理客户端的读限速
+     */
+    private static final Map<String, TokenBucket> clientReadBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * 每个代理客户端的写限速
+     */
+    private static final Map<String, TokenBucket> clientWriteBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * 端口所属的代理客户端
+     * key: 端口
+     * value: clientKey
+     */
+    private static final ConcurrentIntObjectMap<String> portClientKeys = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 每个端口的用户连接使用的读限速，配置更新时重新组合，读写时不再创建数组
+     */
+    private static final ConcurrentIntObjectMap<TokenBucket[]> portReadBucketArrays = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 每个端口的用户连接使用的写限速
+     */
+    private static final ConcurrentIntObjectMap<TokenBucket[]> portWriteBucketArrays = new ConcurrentIntObjectMap<>();
+
+    /**
+     * 没有配置过的端口只受全局限速
+     */
+    private static final TokenBucket[] GLOBAL_READ_BUCKETS = {GLOBAL_READ_BUCKET};
+
+    private static final TokenBucket[] GLOBAL_WRITE_BUCKETS = {GLOBAL_WRITE_BUCKET};
+
+    static {
+        reload();
+        // 代理客户端的配置更新后，修改令牌桶的速率
+        ProxyConfig.instance.addConfigChangedListener(new ProxyConfig.ConfigChangedListener() {
+            @Override
+            public void onChanged() {
+                reload();
+            }
+        });
+    }
+
+    /**
+     * 获取用户连接的读限速：全局、端口所属的代理客户端、端口
+     *
+     * @param port 用户连接的端口
+     * @return 令牌桶
+     */
+    public static TokenBucket[] getReadBuckets(int port) {
+        TokenBucket[] buckets = portReadBucketArrays.get(port);
+        return buckets == null ? GLOBAL_READ_BUCKETS : buckets;
+    }
+
+    /**
+     * 获取用户连接的写限速：全局、端口所属的代理客户端、端口
+     *
+     * @param port 用户连接的端口
+     * @return 令牌桶
+     */
+    public static TokenBucket[] getWriteBuckets(int port) {
+        TokenBucket[] buckets = portWriteBucketArrays.get(port);
+        return buckets == null ? GLOBAL_WRITE_BUCKETS : buckets;
+    }
+
+    /**
+     * 按照当前的配置修改令牌桶的速率；不再配置的端口、代理客户端改为不限速
+     */
+    static synchronized void reload() {
+        Set<String> clientKeys = new HashSet<>();
+        Set<Integer> ports = new HashSet<>();
+        List<ProxyConfig.Client> clients = ProxyConfig.instance.getClients();
+        for (ProxyConfig.Client client : clients == null ? new ArrayList<ProxyConfig.Client>() : clients) {
+            String clientKey = client.getClientKey();
+            clientKeys.add(clientKey);
+            bucket(clientReadBuckets, clientKey).setRate(limit(client.getReadLimit()));
+            bucket(clientWriteBuckets, clientKey).setRate(limit(client.getWriteLimit()));
+            if (client.getProxyMappings() == null) {
+                continue;
+            }
+            for (ProxyConfig.ClientProxyMapping mapping : client.getProxyMappings()) {
+                int port = mapping.getInetPort();
+                ports.add(port);
+                portClientKeys.put(port, clientKey);
+                bucket(portReadBuckets, port).setRate(limit(mapping.getReadLimit()));
+                bucket(portWriteBuckets, port).setRate(limit(mapping.getWriteLimit()));
+            }
+        }
+
+        for (Map.Entry<String, TokenBucket> entry : clientReadBuckets.entrySet()) {
+            if (!clientKeys.contains(entry.getKey())) {
+                entry.getValue().setRate(0);
+                clientWriteBuckets.get(entry.getKey()).setRate(0);
+            }
+        }
+        for (int port : portReadBuckets.keys()) {
+            if (!ports.contains(port)) {
+                portReadBuckets.get(port).setRate(0);
+                portWriteBuckets.get(port).setRate(0);
+                portClientKeys.remove(port);
+            }
+        }
+        // 端口所属的代理客户端可能变化，重新组合每个端口的令牌桶
+        for (int port : portReadBuckets.keys()) {
+            portReadBucketArrays.put(port, buckets(GLOBAL_READ_BUCKET, clientReadBuckets, portReadBuckets, port));
+            portWriteBucketArrays.put(port, buckets(GLOBAL_WRITE_BUCKET, clientWriteBuckets, portWriteBuckets, port));
+        }
+    }
+
+    private static TokenBucket[] buckets(TokenBucket global, Map<String, TokenBucket> clientBuckets,
+                                         ConcurrentIntObjectMap<TokenBucket> portBuckets, int port) {
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        buckets.add(global);
+        String clientKey = portClientKeys.get(port);
+        if (clientKey != null && clientBuckets.containsKey(clientKey)) {
+            buckets.add(clientBuckets.get(clientKey));
+        }
+        if (portBuckets.containsKey(port)) {
+            buckets.add(portBuckets.get(port));
+        }
+        return buckets.toArray(new TokenBucket[0]);
+    }
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String clientKey) {
+        TokenBucket bucket = buckets.get(clientKey);
+        if (bucket == null) {
+            bucket = new TokenBucket(0);
+            buckets.put(clientKey, bucket);
+        }
+        return bucket;
+    }
+
+    private static TokenBucket bucket(ConcurrentIntObjectMap<TokenBucket> buckets, int port) {
+        TokenBucket bucket = buckets.get(port);
+        if (bucket == null) {
+            bucket = new TokenBucket(0);
+            buckets.put(port, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * 未配置限速时返回 0，表示不限速
+     */
+    private static long limit(Long limit) {
+        return limit == null ? 0 : limit;
+    }
+}
@@ -1,18 +1,27 @@
 package com.github.tangmonkmeat.handler;
 
+import com.github.tangmonkmeat.common.util.SslContextUtil;
 import com.github.tangmonkmeat.config.ProxyConfig;
 import com.github.tangmonkmeat.core.ProxyChannelManager;
 import com.github.tangmonkmeat.core.ProxyServerContainer;
+import com.github.tangmonkmeat.web.handler.BytesMetricsHandler;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.FlushConsolidator;
+import com.github.tangmonkmeat.web.metrics.MetricsCollector;
 import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.ProxyMessageBatchCodec;
+import com.github.tangmonkmeat.web.metrics.RawTunnelHandler;
+import com.github.tangmonkmeat.web.metrics.StreamCompression;
+import com.github.tangmonkmeat.web.metrics.StreamWindow;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Description:
@@ -25,6 +34,17 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     private static final Logger logger = LoggerFactory.getLogger(ServerChannelHandler.class);
 
+    /**
+     * 独占隧道的 TYPE_CONNECT 中隧道令牌的偏移：clientIndex(4) + 耗时(4) + 提前数据字节数(4) + 原始字节流标志(1)
+     */
+    private static final int CONNECT_TOKEN_OFFSET = 13;
+
+    /**
+     * 隧道数据转发给用户时，合并 flush；flush 次数由用户连接上的 BytesMetricsHandler 统计
+     */
+    private final FlushConsolidator flushConsolidator = new FlushConsolidator(ProxyConfig.instance.getFlushConsolidate(),
+            ProxyConfig.instance.getFlushMaxPendingWrites(), null);
+
     /**
      * 根据代理客户端的消息类型，进行对应的处理
      *
@@ -54,6 +74,14 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
                 handleDisconnectMessage(ctx,msg);
                 break;
             }
+            case ProxyMessage.C_TYPE_MUX_BIND:{
+                handleMuxBindMessage(ctx,msg);
+                break;
+            }
+            case ProxyMessage.TYPE_WINDOW_UPDATE:{
+                handleWindowUpdateMessage(ctx,msg);
+                break;
+            }
             default:break;
         }
     }
@@ -62,11 +90,19 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      * 处理代理客户端的断开连接请求
      */
     private void handleDisconnectMessage(ChannelHandlerContext ctx,ProxyMessage msg){
-        String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
+        // 多路复用隧道：只关闭对应的逻辑流
+        if (ProxyChannelManager.isMuxChannel(ctx.channel())){
+            Channel userChannel = ProxyChannelManager.removeMuxStream(ctx.channel(), msg.getStreamId());
+            if (userChannel != null){
+                closeMuxUserChannel(ctx.channel(), userChannel);
+            }
+            return;
+        }
+
+        Integer clientIndex = ctx.channel().attr(Constants.CLIENT_INDEX).get();
         // 代理连接没有连上服务器，由 cmdChannel 通知 用户断开连接
-        if (clientKey == null){
-            String userId = msg.getUri();
-            Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(ctx.channel(), userId);
+        if (clientIndex == null){
+            Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(ctx.channel(), msg.getStreamId());
             if (userChannel != null) {
                 // 数据发送完成后，关闭连接
                 userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
@@ -74,21 +110,27 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             return;
         }
 
-        // 检查clientKey
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
-        // 错误的clientKey
+        // 检查clientIndex
+        Channel cmdChannel = ProxyChannelManager.getCmdChannelByIndex(clientIndex);
+        // 错误的clientIndex
         if (cmdChannel == null){
-            logger.warn("connect message:error clientKey {}", clientKey);
+            logger.warn("disconnect message: error clientIndex {}", clientIndex);
+            return;
+        }
+
+        // 上一个逻辑流迟到的断开通知，不能关闭隧道当前绑定的用户连接
+        if (!isBoundStream(ctx.channel(), msg.getStreamId())){
+            logger.debug("disconnect message: stream {} is unbound", msg.getStreamId());
             return;
         }
 
         // 如果代理客户端关闭或者真实服务器关闭，通知用户连接断开
-        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ctx.channel().attr(Constants.USER_ID).get());
+        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ProxyChannelManager.getUserChannelStreamId(ctx.channel()));
         if (userChannel != null) {
             // 解除绑定的关系
             ctx.channel().attr(Constants.NEXT_CHANNEL).set(null);
-            ctx.channel().attr(Constants.CLIENT_KEY).set(null);
-            ctx.channel().attr(Constants.USER_ID).set(null);
+            ctx.channel().attr(Constants.CLIENT_INDEX).set(null);
+            ctx.channel().attr(Constants.STREAM_ID).set(null);
             // 数据发送完成后, 关闭连接
             userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
         }
@@ -98,70 +140,235 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      * 转发代理客户端的请求给用户
      */
     private void handleTransferMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        // 多路复用隧道：根据 streamId 找到用户连接
+        if (ProxyChannelManager.isMuxChannel(ctx.channel())){
+            Channel userChannel = ProxyChannelManager.getMuxStream(ctx.channel(), msg.getStreamId());
+            // 逻辑流已经关闭，丢弃数据即可，不能关闭共享的隧道
+            if (userChannel == null || !userChannel.isActive() || msg.getData() == null){
+                logger.debug("stream {} is closed, drop transfer message", msg.getStreamId());
+                return;
+            }
+            int bytes = msg.getData().readableBytes();
+            recordDecompress(userChannel, msg);
+            flushConsolidator.write(userChannel, msg.getData().retain());
+            // 累计已经写给用户的数据，达到阈值后归还窗口给代理客户端
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null){
+                window.onDelivered(bytes, userChannel, ctx.channel());
+            }
+            return;
+        }
+
         Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        // 隧道已经解除绑定，或者被代理客户端再次借出：上一个逻辑流迟到的数据，丢弃即可，隧道还要继续使用
+        if (userChannel == null || !isBoundStream(ctx.channel(), msg.getStreamId())){
+            logger.debug("stream {} is unbound, drop transfer message", msg.getStreamId());
+            return;
+        }
         // 如果userChannel已经关闭了，关闭proxyChannel
-        if (userChannel == null || !userChannel.isActive()){
+        if (!userChannel.isActive()){
             logger.info("userChannel is close, userChannel=[{}]",userChannel);
             ctx.close();
             return;
         }
-        byte[] data = msg.getData();
-        ByteBuf buf = ctx.alloc().buffer(data.length);
-        buf.writeBytes(data);
-        userChannel.writeAndFlush(buf);
+        // 空消息没有数据可转发
+        if (msg.getData() == null){
+            return;
+        }
+        recordDecompress(userChannel, msg);
+        // msg 会被 SimpleChannelInboundHandler release，转发的数据需要 retain
+        flushConsolidator.write(userChannel, msg.getData().retain());
+    }
+
+    /**
+     * 统计代理客户端压缩发送的数据，解码器已经解压
+     */
+    private static void recordDecompress(Channel userChannel, ProxyMessage msg){
+        if (msg.getCompressedLength() > 0){
+            StreamCompression compression = userChannel.attr(Constants.STREAM_COMPRESSION).get();
+            if (compression != null){
+                compression.onDecompress(msg);
+            }
+        }
+    }
+
+    /**
+     * 一次读循环结束，flush 合并的数据
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushConsolidator.flush();
+        super.channelReadComplete(ctx);
     }
 
     /**
      * 处理代理客户端连接请求，
-     * 请求 uri=userId@clientKey
+     * streamId 为用户连接的逻辑流标识；独占隧道的 data 为 4 byte 的客户端编号（clientIndex），
+     * 多路复用隧道的 data 为 4 byte 的接收窗口，客户端编号在注册隧道时已经确定
      */
     private void handleConnectMessage(ChannelHandlerContext ctx,ProxyMessage msg){
-        String uri = msg.getUri();
-        // 如果没有携带uri，关闭连接
-        if (uri == null){
-            logger.warn("connect message: uri is null");
+        Channel proxyChannel = ctx.channel();
+        boolean mux = ProxyChannelManager.isMuxChannel(proxyChannel);
+        int clientIndex;
+        if (mux){
+            clientIndex = ProxyChannelManager.getMuxChannelClientIndex(proxyChannel);
+        }else {
+            ByteBuf data = msg.getData();
+            // 没有携带客户端编号、隧道令牌，关闭连接
+            if (data == null || data.readableBytes() < CONNECT_TOKEN_OFFSET + ProxyMessage.TUNNEL_TOKEN_LENGTH){
+                logger.warn("connect message: clientIndex or tunnel token is missing, {}", proxyChannel);
+                ctx.close();
+                return;
+            }
+            clientIndex = data.getInt(data.readerIndex());
+        }
+
+        Channel cmdChannel = ProxyChannelManager.getCmdChannelByIndex(clientIndex);
+        // clientIndex 错误，关闭连接
+        if (cmdChannel == null) {
+            logger.warn("connect message: error clientIndex={}", clientIndex);
             ctx.close();
             return;
         }
-
-        String[] tokens = uri.split("@");
-        // 非法的uri，关闭连接
-        if (tokens.length != 2){
-            logger.warn("connect message: error uri={}", Arrays.toString(tokens));
+        // 双向认证时，独占隧道的证书必须属于 clientIndex 对应的代理客户端
+        if (!mux && !isCertificateOf(proxyChannel, cmdChannel)){
+            logger.warn("connect message: certificate does not match clientIndex={}, {}", clientIndex, proxyChannel);
             ctx.close();
             return;
         }
-
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(tokens[1]);
-        // clientKey 错误，关闭连接
-        if (cmdChannel == null) {
-            logger.warn("connect message: error clientKey={}", tokens[1]);
+        // clientIndex、streamId 都是递增的，可以猜到；独占隧道必须携带控制连接认证时得到的隧道令牌
+        if (!mux && !ProxyChannelManager.isTunnelOf(cmdChannel, msg.getData(), CONNECT_TOKEN_OFFSET)){
+            logger.warn("connect message: error tunnel token, clientIndex={}, {}", clientIndex, proxyChannel);
             ctx.close();
             return;
         }
 
-        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, tokens[0]);
+        int streamId = msg.getStreamId();
+        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, streamId);
         if (userChannel == null){
-            logger.warn("not exist userChannel, uri={}",uri);
+            logger.warn("not exist userChannel, clientIndex={}, streamId={}", clientIndex, streamId);
+            // 多路复用隧道是共享的，只通知代理客户端关闭逻辑流
+            if (mux){
+                proxyChannel.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, null));
+            }else {
+                ctx.close();
+            }
+            return;
+        }
+        // 记录建立隧道各阶段的耗时
+        BytesMetricsHandler metricsHandler = userChannel.pipeline().get(BytesMetricsHandler.class);
+        if (metricsHandler != null){
+            metricsHandler.tunnelReady(readDialMicros(msg));
+        }
+        // 多路复用隧道：只登记逻辑流，隧道不被独占
+        if (mux){
+            int recvWindow = ProxyConfig.instance.getMuxWindowSize();
+            // 发送窗口为代理客户端通告的接收窗口
+            StreamWindow window = new StreamWindow(streamId, userChannel, StreamWindow.readWindow(msg, recvWindow), recvWindow,
+                    MetricsCollector.getCollector(((InetSocketAddress) userChannel.localAddress()).getPort()));
+            userChannel.attr(Constants.STREAM_WINDOW).set(window);
+            ProxyChannelManager.addMuxStream(proxyChannel, streamId, userChannel);
+            // 通告代理服务器的接收窗口，代理客户端收到后才开始转发真实服务器的数据
+            proxyChannel.writeAndFlush(StreamWindow.newWindowUpdate(proxyChannel, streamId, recvWindow));
+            userChannel.config().setOption(ChannelOption.AUTO_READ, proxyChannel.isWritable() && window.canSend());
+            // 转发建立隧道期间暂存的用户数据
+            userChannel.pipeline().fireUserEventTriggered(new UserChannelHandler.TunnelBoundEvent(readEarlyBytes(msg)));
+            return;
+        }
+
+        boolean raw = readRawRequested(msg);
+        // 代理客户端发出 TYPE_CONNECT 后已经切换为原始字节流，不能再按消息帧处理
+        if (raw && (!ProxyConfig.instance.getRawTunnelEnable() || userChannel.attr(Constants.STREAM_COMPRESSION).get() != null)){
+            logger.warn("connect message: raw tunnel is not allowed, streamId={}, {}", streamId, proxyChannel);
             ctx.close();
             return;
         }
+        Integer features = cmdChannel.attr(ProxyChannelManager.CHANNEL_FEATURES).get();
+        enableBatch(proxyChannel, features == null ? 0 : features);
         // 绑定proxyChannel和userChannel的关系
-        Channel proxyChannel = ctx.channel();
-        proxyChannel.attr(Constants.USER_ID).set(tokens[0]);
-        proxyChannel.attr(Constants.CLIENT_KEY).set(tokens[1]);
+        proxyChannel.attr(Constants.STREAM_ID).set(streamId);
+        proxyChannel.attr(Constants.CLIENT_INDEX).set(clientIndex);
         proxyChannel.attr(Constants.NEXT_CHANNEL).set(userChannel);
+        if (raw){
+            // TYPE_RAW 是隧道上最后一条消息，之后两端直接转发字节流；
+            // 先于用户连接的绑定完成切换，用户数据只会以原始字节写入隧道
+            proxyChannel.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_RAW, streamId, null, null));
+            RawTunnelHandler.switchOutbound(proxyChannel);
+            RawTunnelHandler.switchInbound(proxyChannel, new RawTunnelHandler(new FlushConsolidator(
+                    ProxyConfig.instance.getFlushConsolidate(), ProxyConfig.instance.getFlushMaxPendingWrites(), null)));
+        }
         userChannel.attr(Constants.NEXT_CHANNEL).set(ctx.channel());
         // 代理客户端与后端服务器连接成功，修改用户连接为可读状态
         userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+        // 转发建立隧道期间暂存的用户数据
+        userChannel.pipeline().fireUserEventTriggered(new UserChannelHandler.TunnelBoundEvent(readEarlyBytes(msg)));
+    }
+
+    /**
+     * TYPE_CONNECT 的 data 在连接真实服务器的耗时之后，携带 4 byte 的已经写入真实服务器的提前数据字节数；
+     * 旧版本的代理客户端不携带，视为没有收到
+     */
+    private static int readEarlyBytes(ProxyMessage msg){
+        ByteBuf data = msg.getData();
+        if (data == null || data.readableBytes() < 12){
+            return 0;
+        }
+        return data.getInt(data.readerIndex() + 8);
+    }
+
+    /**
+     * TYPE_CONNECT 的 data 在提前数据字节数之后，携带 1 byte，不为 0 表示代理客户端请求切换为原始字节流
+     */
+    private static boolean readRawRequested(ProxyMessage msg){
+        ByteBuf data = msg.getData();
+        return data != null && data.readableBytes() >= 13 && data.getByte(data.readerIndex() + 12) != 0;
+    }
+
+    /**
+     * 独占隧道当前是否绑定了指定的逻辑流
+     */
+    private static boolean isBoundStream(Channel proxyChannel, int streamId){
+        Integer boundStreamId = proxyChannel.attr(Constants.STREAM_ID).get();
+        return boundStreamId != null && boundStreamId == streamId;
+    }
+
+    /**
+     * TYPE_CONNECT 的 data 在客户端编号或者接收窗口之后，携带 4 byte 的连接真实服务器的耗时，单位微秒；
+     * 旧版本的代理客户端不携带
+     *
+     * @return 连接真实服务器的耗时，没有携带时返回 -1
+     */
+    private static long readDialMicros(ProxyMessage msg){
+        ByteBuf data = msg.getData();
+        if (data == null || data.readableBytes() < 8){
+            return -1;
+        }
+        return data.getInt(data.readerIndex() + 4);
+    }
+
+    /**
+     * 代理客户端的 clientKey：隧道开启双向认证时以证书的 CN 为准，否则为请求的 uri
+     */
+    private static String getClientKey(ChannelHandlerContext ctx, ProxyMessage msg){
+        String commonName = SslContextUtil.getPeerCommonName(ctx.channel());
+        return commonName != null ? commonName : msg.getUri();
+    }
+
+    /**
+     * 隧道的证书是否属于控制连接对应的代理客户端，没有开启双向认证时总是 true
+     */
+    private static boolean isCertificateOf(Channel proxyChannel, Channel cmdChannel){
+        String commonName = SslContextUtil.getPeerCommonName(proxyChannel);
+        return commonName == null || commonName.equals(cmdChannel.attr(ProxyChannelManager.CHANNEL_CLIENT_KEY).get());
     }
 
     /**
      * 处理代理客户端授权，
-     * 请求必 uri=clientKey（代理客户端秘钥）
+     * 请求必 uri=clientKey（代理客户端秘钥）；开启双向认证时 clientKey 为证书的 CN，忽略 uri；
+     * 携带的会话令牌和原来的 cmdChannel 一致时，恢复原来的会话，即使原来的 cmdChannel 还没有检测到断开
      */
     private void handleAuthMessage(ChannelHandlerContext ctx,ProxyMessage msg){
-        String clientKey = msg.getUri();
+        String clientKey = getClientKey(ctx, msg);
         // 获取该客户端下的映射端口
         List<Integer> ports = ProxyConfig.instance.getClientInetPorts(clientKey);
         // 授权失败，客户端秘钥错误
@@ -171,11 +378,17 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             return;
         }
 
+        // 代理客户端支持的压缩算法、扩展，旧版本的代理客户端不携带
+        ByteBuf authData = msg.getData();
+        int features = readUnsignedByte(authData, 1);
+        long sessionToken = authData != null && authData.readableBytes() >= 10 ? authData.getLong(authData.readerIndex() + 2) : 0;
+
         // 第一次建立连接 cmdChannel 应该为  null
         Channel cmdChannel0 = ProxyChannelManager.getCmdChannel(clientKey);
-        // 第二次试图在建立 cmdChannel
+        // 第二次试图在建立 cmdChannel，并且不是恢复原来的会话
         // 授权失败，cmdChannel 已经存在
-        if (cmdChannel0 != null){
+        boolean resumed = cmdChannel0 != null && ProxyChannelManager.isSessionOf(cmdChannel0, sessionToken);
+        if (cmdChannel0 != null && !resumed){
             logger.warn("exist channel for key {}, {}", clientKey, cmdChannel0);
             ctx.close();
             return;
@@ -183,31 +396,157 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
         logger.info("set port => channel, {}, {}, {}", clientKey, ports, ctx.channel());
         Channel cmdChannel = ctx.channel();
+        int clientIndex = ProxyChannelManager.internClientKey(clientKey);
+        cmdChannel.attr(ProxyChannelManager.CHANNEL_COMPRESSION_CODECS).set(readUnsignedByte(authData, 0));
+        cmdChannel.attr(ProxyChannelManager.CHANNEL_FEATURES).set(features);
+        enableBatch(cmdChannel, features);
+        boolean sessionResume = ProxyChannelManager.isSessionResumeEnabled(features);
+        if (sessionResume){
+            // 每次认证都分配新的令牌，原来的令牌随之失效
+            cmdChannel.attr(ProxyChannelManager.CHANNEL_SESSION_TOKEN).set(ProxyChannelManager.newSessionToken());
+        }
         // 授权成功，设置cmdChannel相关的映射关系，缓存cmdChannel
-        ProxyChannelManager.addCmdChannel(ports, clientKey, cmdChannel);
+        if (resumed){
+            // 恢复会话时沿用隧道令牌，代理客户端在断线期间发出的 TYPE_CONNECT 仍然有效
+            cmdChannel.attr(ProxyChannelManager.CHANNEL_TUNNEL_TOKEN).set(cmdChannel0.attr(ProxyChannelManager.CHANNEL_TUNNEL_TOKEN).get());
+            resumed = ProxyChannelManager.resumeCmdChannel(ports, clientKey, clientIndex, cmdChannel, cmdChannel0);
+            if (resumed){
+                logger.info("resume session, clientKey {}, {} => {}", clientKey, cmdChannel0, cmdChannel);
+            }else {
+                // 会话恰好在此之前超时，原来的用户连接已经关闭，按新的会话处理
+                logger.warn("session expired while resuming, clientKey {}, {}", clientKey, cmdChannel0);
+            }
+        }
+        if (!resumed){
+            cmdChannel.attr(ProxyChannelManager.CHANNEL_TUNNEL_TOKEN).set(ProxyChannelManager.newTunnelToken());
+            ProxyChannelManager.addCmdChannel(ports, clientKey, clientIndex, cmdChannel);
+        }
+        // 回复客户端编号，代理客户端建立隧道时以编号代替 clientKey；
+        // 先于用户端口监听发出，保证代理客户端收到 TYPE_CONNECT 之前已经拿到编号
+        int serverFeatures = ProxyMessageBatchCodec.FEATURE_BATCH
+                | (ProxyConfig.instance.getLoopAffinityEnable() ? ProxyMessage.FEATURE_LOOP_HINT : 0)
+                | (ProxyConfig.instance.getSessionGraceSeconds() > 0 ? ProxyMessage.FEATURE_SESSION_RESUME : 0)
+                | (ProxyConfig.instance.getRawTunnelEnable() ? ProxyMessage.FEATURE_RAW_TUNNEL : 0);
+        ByteBuf data = ctx.alloc().buffer(14 + ProxyMessage.TUNNEL_TOKEN_LENGTH).writeInt(clientIndex).writeByte(serverFeatures);
+        // 新的会话令牌，以及是否恢复了原来的会话；不支持会话恢复时为 0
+        data.writeLong(sessionResume ? cmdChannel.attr(ProxyChannelManager.CHANNEL_SESSION_TOKEN).get() : 0).writeBoolean(resumed);
+        // 隧道令牌，只发给已经认证的控制连接
+        data.writeBytes(cmdChannel.attr(ProxyChannelManager.CHANNEL_TUNNEL_TOKEN).get());
+        ctx.writeAndFlush(new ProxyMessage(ProxyMessage.C_TYPE_AUTH, 0, null, data));
 
-        try {
-            // 开启用户端口监听
-            ProxyServerContainer.startUserPort(clientKey);
-        } catch (Exception e){
-            logger.error("start user ports [{}] error, clientKey is [{}]",ports,clientKey);
+        // 开启用户端口监听：各端口并行绑定，不阻塞控制连接所在的 EventLoop；
+        // 绑定失败的端口逐个报告，其他端口照常服务
+        ProxyServerContainer.startUserPort(clientKey, new ProxyServerContainer.UserPortBindListener() {
+            @Override
+            public void operationComplete(Map<Integer, Throwable> failures) {
+                logger.info("auth complete, clientKey {}, ports {}, failed ports {}", clientKey, ports, failures.keySet());
+            }
+        });
+    }
+
+    /**
+     * 处理多路复用隧道的注册，
+     * 请求 uri=clientKey（代理客户端秘钥）；开启双向认证时 clientKey 为证书的 CN；
+     * 代理客户端认证成功后才注册隧道，data 中的隧道令牌必须和该代理客户端的控制连接一致，
+     * 只知道 clientKey 的连接不能注册隧道、接管用户连接
+     */
+    private void handleMuxBindMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        String clientKey = getClientKey(ctx, msg);
+        Channel cmdChannel = clientKey == null ? null : ProxyChannelManager.getCmdChannel(clientKey);
+        if (cmdChannel == null){
+            logger.info("mux bind: not authenticated clientKey {}, {}", clientKey, ctx.channel());
             ctx.close();
-            ProxyChannelManager.removeCmdChannel(cmdChannel);
+            return;
+        }
+        // data 为 1 byte 支持的扩展 + 隧道令牌
+        if (!ProxyChannelManager.isTunnelOf(cmdChannel, msg.getData(), 1)){
+            logger.warn("mux bind: error tunnel token, clientKey {}, {}", clientKey, ctx.channel());
+            ctx.close();
+            return;
+        }
+        ProxyChannelManager.addMuxChannel(ctx.channel(), clientKey, cmdChannel.attr(ProxyChannelManager.CHANNEL_CLIENT_INDEX).get());
+        enableBatch(ctx.channel(), readUnsignedByte(msg.getData(), 0));
+        logger.info("bind mux channel, {}, {}", clientKey, ctx.channel());
+    }
+
+    /**
+     * 代理客户端支持并且配置开启时，隧道上的小消息合并为批量数据帧发送
+     *
+     * @param tunnel 控制连接或者隧道
+     * @param features 代理客户端支持的扩展
+     */
+    private static void enableBatch(Channel tunnel, int features){
+        if (ProxyConfig.instance.getBatchEnable() && (features & ProxyMessageBatchCodec.FEATURE_BATCH) != 0){
+            ProxyMessageBatchCodec.setEnabled(tunnel, true);
         }
     }
 
+    /**
+     * 读取消息 data 中的 1 byte，旧版本没有携带时返回 0
+     */
+    private static int readUnsignedByte(ByteBuf data, int offset){
+        return data != null && data.readableBytes() > offset ? data.getUnsignedByte(data.readerIndex() + offset) : 0;
+    }
+
+    /**
+     * 处理多路复用隧道上逻辑流的窗口更新，
+     * 扩大发送窗口，窗口由耗尽变为可用时恢复用户连接的读事件
+     */
+    private void handleWindowUpdateMessage(ChannelHandlerContext ctx,ProxyMessage msg){
+        // 只有多路复用隧道上有逻辑流的窗口，控制连接、独占隧道、未认证的连接上收到时忽略
+        if (!ProxyChannelManager.isMuxChannel(ctx.channel())){
+            return;
+        }
+        Channel userChannel = ProxyChannelManager.getMuxStream(ctx.channel(), msg.getStreamId());
+        if (userChannel == null){
+            return;
+        }
+        StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null){
+            window.expand(StreamWindow.readWindow(msg, 0));
+        }
+    }
+
+    /**
+     * 关闭多路复用隧道上的一个用户连接，同时解除和 cmdChannel 的关系
+     *
+     * @param muxChannel 多路复用隧道
+     * @param userChannel 用户连接
+     */
+    private void closeMuxUserChannel(Channel muxChannel, Channel userChannel){
+        Channel cmdChannel = ProxyChannelManager.getCmdChannelByIndex(ProxyChannelManager.getMuxChannelClientIndex(muxChannel));
+        if (cmdChannel != null){
+            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ProxyChannelManager.getUserChannelStreamId(userChannel));
+        }
+        // 数据发送完成后，关闭连接
+        userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
     /**
      * 处理代理客户端的心跳信息
      */
     private void handleHeartbeatMessage(ChannelHandlerContext ctx,ProxyMessage msg){
         ProxyMessage heartbeatMessage = new ProxyMessage();
-        heartbeatMessage.setSerialNumber(heartbeatMessage.getSerialNumber());
         heartbeatMessage.setType(ProxyMessage.TYPE_HEARTBEAT);
         logger.debug("response heartbeat message {}", ctx.channel());
         ctx.writeAndFlush(heartbeatMessage);
         //ctx.channel().writeAndFlush(heartbeatMessage);
     }
 
+    /**
+     * 代理客户端建立连接，用于统计连接数；
+     * 同时告知代理客户端此连接所在的 EventLoop，代理客户端据此选择和用户连接同一个 EventLoop 的隧道
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ProxyChannelManager.incrementProxyChannels();
+        int loopIndex = ProxyChannelManager.getLoopIndex(ctx.channel());
+        if (ProxyConfig.instance.getLoopAffinityEnable() && loopIndex >= 0){
+            ctx.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_LOOP_HINT, 0, null, ctx.alloc().buffer(4).writeInt(loopIndex)));
+        }
+        super.channelActive(ctx);
+    }
+
     /**
      * 如果代理客户端断开连接：
      * 1 如果此channel有对应的userChannel；
@@ -218,15 +557,24 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ProxyChannelManager.decrementProxyChannels();
+        // 多路复用隧道断开，关闭承载的所有用户连接
+        if (ProxyChannelManager.isMuxChannel(ctx.channel())){
+            for (Channel userChannel : ProxyChannelManager.removeMuxStreams(ctx.channel())) {
+                closeMuxUserChannel(ctx.channel(), userChannel);
+            }
+            super.channelInactive(ctx);
+            return;
+        }
+
         Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (userChannel != null && userChannel.isActive()) {
-            String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
-            String userId = ctx.channel().attr(Constants.USER_ID).get();
-            Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
+            Integer clientIndex = ctx.channel().attr(Constants.CLIENT_INDEX).get();
+            Channel cmdChannel = clientIndex == null ? null : ProxyChannelManager.getCmdChannelByIndex(clientIndex);
             if (cmdChannel != null) {
-                ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
+                ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ProxyChannelManager.getUserChannelStreamId(ctx.channel()));
             } else {
-                logger.warn("null cmdChannel, clientKey is {}", clientKey);
+                logger.warn("null cmdChannel, clientIndex is {}", clientIndex);
             }
 
             // 数据发送完成后，关闭连接
@@ -246,6 +594,17 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
      */
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 多路复用隧道，同步所有逻辑流的用户连接；发送窗口耗尽的逻辑流保持不可读
+        if (ProxyChannelManager.isMuxChannel(ctx.channel())){
+            for (Channel channel : ProxyChannelManager.getMuxStreams(ctx.channel())) {
+                StreamWindow window = channel.attr(Constants.STREAM_WINDOW).get();
+                boolean canSend = window == null || window.canSend();
+                channel.config().setOption(ChannelOption.AUTO_READ,ctx.channel().isWritable() && canSend);
+            }
+            super.channelWritabilityChanged(ctx);
+            return;
+        }
+
         Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (userChannel != null){
             userChannel.config().setOption(ChannelOption.AUTO_READ,ctx.channel().isWritable());
@@ -0,0 +1,197 @@
+package com.github.tangmonkmeat.handler;
+
+import com.github.tangmonkmeat.core.TokenBucket;
+import com.github.tangmonkmeat.core.TrafficShapingManager;
+import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.StreamWindow;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:
+ * 用户连接的限速处理器，每个用户连接一个实例，令牌桶见 {@link TrafficShapingManager}；
+ * 每次读写时按端口重新获取令牌桶，配置更新后已经建立的用户连接同样生效
+ * <p>
+ * 不缓存数据，超速时通过已有的背压机制暂停数据来源：<br/>
+ * 1 读超速：注销用户连接的读事件（AUTO_READ），到时后按隧道的可写状态、发送窗口恢复；
+ * 暂停期间拦截读请求，隧道恢复可写等其他地方重新开启 AUTO_READ 时也不会提前读取；<br/>
+ * 2 写超速：把用户连接标记为不可写（自定义可写位），由 UserChannelHandler 暂停独占隧道的读，
+ * 或者在多路复用隧道上暂缓归还窗口，到时后恢复可写。
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 上午11:20
+ */
+public class TrafficShapingHandler extends ChannelDuplexHandler {
+
+    /**
+     * 写限速使用的自定义可写位
+     */
+    private static final int WRITABILITY_INDEX = 1;
+
+    /**
+     * 小于此时长的暂停忽略，避免频繁切换
+     */
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 用户连接的端口
+     */
+    private int port;
+
+    /**
+     * 是否因为读超速暂停了读
+     */
+    private boolean readSuspended;
+
+    /**
+     * 是否因为写超速标记了不可写
+     */
+    private boolean writeSuspended;
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        port = ((InetSocketAddress) ctx.channel().localAddress()).getPort();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            long delay = acquire(TrafficShapingManager.getReadBuckets(port), ((ByteBuf) msg).readableBytes());
+            if (delay >= MIN_DELAY_NANOS) {
+                suspendRead(ctx, delay);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * 读超速暂停期间不向下传递读请求，由 {@link #resumeRead(ChannelHandlerContext)} 重新发起
+     */
+    @Override
+    public void read(ChannelHandlerContext ctx) throws Exception {
+        if (!readSuspended) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long delay = 0;
+        if (msg instanceof ByteBuf) {
+            delay = acquire(TrafficShapingManager.getWriteBuckets(port), ((ByteBuf) msg).readableBytes());
+        }
+        ctx.write(msg, promise);
+        if (delay >= MIN_DELAY_NANOS) {
+            suspendWrite(ctx, delay);
+        }
+    }
+
+    /**
+     * 注销读事件，到时前拦截读请求
+     */
+    private void suspendRead(final ChannelHandlerContext ctx, long delay) {
+        ctx.channel().config().setOption(ChannelOption.AUTO_READ, false);
+        if (readSuspended) {
+            return;
+        }
+        readSuspended = true;
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                resumeRead(ctx);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 欠账偿还后恢复读事件；和隧道的背压一致，隧道不可写或者发送窗口耗尽时保持暂停
+     */
+    private void resumeRead(ChannelHandlerContext ctx) {
+        readSuspended = false;
+        Channel userChannel = ctx.channel();
+        if (!userChannel.isActive()) {
+            return;
+        }
+        long delay = delay(TrafficShapingManager.getReadBuckets(port));
+        if (delay >= MIN_DELAY_NANOS) {
+            suspendRead(ctx, delay);
+            return;
+        }
+        Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
+        StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+        if (proxyChannel != null && proxyChannel.isWritable() && (window == null || window.canSend())) {
+            userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+            // 暂停期间 AUTO_READ 可能已经被重新开启，被拦截的读请求需要重新发起
+            ctx.read();
+        }
+    }
+
+    private void suspendWrite(final ChannelHandlerContext ctx, long delay) {
+        if (writeSuspended) {
+            return;
+        }
+        writeSuspended = true;
+        setUserDefinedWritability(ctx, false);
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                resumeWrite(ctx);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void resumeWrite(final ChannelHandlerContext ctx) {
+        long delay = delay(TrafficShapingManager.getWriteBuckets(port));
+        if (delay >= MIN_DELAY_NANOS && ctx.channel().isActive()) {
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resumeWrite(ctx);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+            return;
+        }
+        writeSuspended = false;
+        setUserDefinedWritability(ctx, true);
+    }
+
+    private static void setUserDefinedWritability(ChannelHandlerContext ctx, boolean writable) {
+        ChannelOutboundBuffer outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+        // 连接关闭后为 null
+        if (outboundBuffer != null) {
+            outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+        }
+    }
+
+    /**
+     * 扣减所有令牌桶，返回最长的暂停时长
+     */
+    private static long acquire(TokenBucket[] buckets, int bytes) {
+        long now = System.nanoTime();
+        long delay = 0;
+        for (TokenBucket bucket : buckets) {
+            delay = Math.max(delay, bucket.acquire(bytes, now));
+        }
+        return delay;
+    }
+
+    private static long delay(TokenBucket[] buckets) {
+        long now = System.nanoTime();
+        long delay = 0;
+        for (TokenBucket bucket : buckets) {
+            delay = Math.max(delay, bucket.delay(now));
+        }
+        return delay;
+    }
+}
@@ -3,8 +3,15 @@ package com.github.tangmonkmeat.handler;
 import com.github.tangmonkmeat.config.ProxyConfig;
 import com.github.tangmonkmeat.core.ProxyChannelManager;
 import com.github.tangmonkmeat.web.metrics.Constants;
+import com.github.tangmonkmeat.web.metrics.FlushConsolidator;
+import com.github.tangmonkmeat.web.metrics.MetricsCollector;
 import com.github.tangmonkmeat.web.metrics.ProxyMessage;
+import com.github.tangmonkmeat.web.metrics.RawTunnelHandler;
+import com.github.tangmonkmeat.web.metrics.StreamCompression;
+import com.github.tangmonkmeat.web.metrics.StreamWindow;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
@@ -13,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -20,6 +28,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * 主要处理用户的请求：
  * 1 处理用户的连接请求
  * 2 转发用户的请求
+ * <p>
+ * 开启 server.earlyData.maxBytes 后，建立隧道期间不暂停读取用户连接：
+ * 第一批读到的数据（不超过上限）紧跟 TYPE_CONNECT 经控制连接转发，代理客户端连上真实服务器后立即写入，
+ * 例如 TLS ClientHello、HTTP 请求，节省建立隧道的一次往返；之后暂停读取，直到隧道打通。<br/>
+ * 隧道打通时（{@link TunnelBoundEvent}），代理客户端上报已经写入真实服务器的提前数据字节数，
+ * 没有收到（提前数据晚于隧道到达、旧版本的代理客户端）时，经隧道重新发送，代理客户端丢弃迟到的那一份；
+ * 打通之前读到的其他数据随后经隧道转发，保证顺序
+ * </p>
  * @author zwl
  * @version 1.0
  * @date 2021/2/27 下午3:52
@@ -29,9 +45,29 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     private static final Logger logger = LoggerFactory.getLogger(UserChannelHandler.class);
 
     /**
-     * 用户唯一标识 生成器
+     * 逻辑流标识 生成器
      */
-    private static final AtomicInteger userIdProducer = new AtomicInteger(0);
+    private static final AtomicInteger streamIdProducer = new AtomicInteger(0);
+
+    /**
+     * 用户数据转发给隧道时，合并 flush
+     */
+    private FlushConsolidator flushConsolidator;
+
+    /**
+     * 建立隧道期间读到的用户数据；不为 null 表示开启了提前转发、并且隧道还未打通
+     */
+    private CompositeByteBuf earlyData;
+
+    /**
+     * 已经经控制连接提前转发的数据，保留到隧道打通，用于重发
+     */
+    private ByteBuf earlySentData;
+
+    /**
+     * 用户连接是否异常中断
+     */
+    private boolean aborted;
 
     /**
      * 建立用户和代理服务器的channel后，通知代理客户端，建立和代理服务器的channel，
@@ -44,19 +80,39 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
         InetSocketAddress localAddress = (InetSocketAddress)userChannel.localAddress();
         // 和代理客户端的channel
         Channel cmdChannel = ProxyChannelManager.getCmdChannel(localAddress.getPort());
-        if (cmdChannel == null){
-            // 该端口没有代理客户端，直接断开连接
+        if (cmdChannel == null || !cmdChannel.isActive()){
+            // 该端口没有代理客户端，或者控制连接断开、正在等待代理客户端恢复会话，直接断开连接
             ctx.close();
         }else {
-            String userId = newUserId();
+            flushConsolidator = new FlushConsolidator(ProxyConfig.instance.getFlushConsolidate(),
+                    ProxyConfig.instance.getFlushMaxPendingWrites(), MetricsCollector.getCollector(localAddress.getPort()));
+            int streamId = newStreamId();
             // 内网服务信息 ip:port
             String lanInfo = ProxyConfig.instance.getLanInfo(localAddress.getPort());
-            // 用户连接到代理服务器时，设置用户连接不可读，等待代理后端服务器连接成功后再改变为可读状态
-            userChannel.config().setOption(ChannelOption.AUTO_READ, false);
+            if (ProxyConfig.instance.getEarlyDataMaxBytes() > 0){
+                // 提前转发：建立隧道期间继续读取，暂存用户数据
+                earlyData = ctx.alloc().compositeBuffer();
+            }else {
+                // 用户连接到代理服务器时，设置用户连接不可读，等待代理后端服务器连接成功后再改变为可读状态
+                userChannel.config().setOption(ChannelOption.AUTO_READ, false);
+            }
+            // 端口开启了压缩、并且代理客户端支持该算法时，逻辑流上传输的数据压缩
+            byte codec = ProxyConfig.instance.getCompression(localAddress.getPort());
+            Integer codecs = cmdChannel.attr(ProxyChannelManager.CHANNEL_COMPRESSION_CODECS).get();
+            if (codecs == null || !StreamCompression.isSupported(codecs, codec)){
+                codec = StreamCompression.NONE;
+            }else {
+                userChannel.attr(Constants.STREAM_COMPRESSION).set(new StreamCompression(codec, MetricsCollector.getCollector(localAddress.getPort())));
+            }
             // 给 cmdChannel 添加和客户端连接关系
-            ProxyChannelManager.addUserChannelToCmdChannel(cmdChannel,userId,userChannel);
-            // 通知代理客户端，可以连接代理端口了
-            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_CONNECT, userId, lanInfo.getBytes());
+            ProxyChannelManager.addUserChannelToCmdChannel(cmdChannel,streamId,userChannel);
+            // 通知代理客户端，可以连接代理端口了；uri 为压缩算法
+            ByteBuf lan = Unpooled.wrappedBuffer(lanInfo.getBytes(StandardCharsets.UTF_8));
+            if (ProxyChannelManager.isLoopAffinityEnabled(cmdChannel)){
+                // 携带用户连接所在的 EventLoop，代理客户端优先使用同一个 EventLoop 上的隧道
+                lan = Unpooled.wrappedBuffer(Unpooled.copyInt(ProxyChannelManager.getLoopIndex(userChannel)), lan);
+            }
+            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_CONNECT, streamId, StreamCompression.name(codec), lan);
             cmdChannel.writeAndFlush(proxyMessage);
         }
         super.channelActive(ctx);
@@ -67,25 +123,142 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
      */
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        // 隧道还未打通，暂存；达到上限后暂停读取
+        if (earlyData != null){
+            earlyData.addComponent(true, msg.retain());
+            if (earlyData.readableBytes() >= ProxyConfig.instance.getEarlyDataMaxBytes()){
+                ctx.channel().config().setOption(ChannelOption.AUTO_READ, false);
+            }
+            return;
+        }
         Channel userChannel = ctx.channel();
         Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
         if (proxyChannel == null){
             // 如果没有对应的代理客户端，直接关闭连接
             ctx.close();
         }else {
-            byte[] data = new byte[msg.readableBytes()];
-            msg.readBytes(data);
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
-            ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, userId, data);
-            proxyChannel.writeAndFlush(proxyMessage);
+            // 零拷贝：直接转发读到的 ByteBuf，SimpleChannelInboundHandler 会 release 一次，所以先 retain
+            forward(userChannel, proxyChannel, msg.retain());
         }
     }
 
+    /**
+     * 用户数据转发给隧道
+     *
+     * @param data 转发的数据，由隧道释放
+     */
+    private void forward(Channel userChannel, Channel proxyChannel, ByteBuf data){
+        // 原始字节流隧道：直接写入，不再封装为消息
+        if (RawTunnelHandler.isRaw(proxyChannel)){
+            flushConsolidator.write(proxyChannel, data);
+            return;
+        }
+        int streamId = ProxyChannelManager.getUserChannelStreamId(userChannel);
+        int bytes = data.readableBytes();
+        ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, streamId, null, data);
+        proxyMessage.setCompression(userChannel.attr(Constants.STREAM_COMPRESSION).get());
+        flushConsolidator.write(proxyChannel, proxyMessage);
+        // 多路复用隧道：扣减逻辑流的发送窗口，窗口耗尽时只暂停当前用户连接
+        StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null){
+            window.consume(bytes);
+        }
+    }
+
+    /**
+     * 第一批提前读到的数据经控制连接转发给代理客户端，之后暂停读取，直到隧道打通
+     */
+    private void sendEarlyData(ChannelHandlerContext ctx){
+        if (earlySentData != null || !earlyData.isReadable()){
+            return;
+        }
+        Channel userChannel = ctx.channel();
+        ctx.channel().config().setOption(ChannelOption.AUTO_READ, false);
+        Channel cmdChannel = ProxyChannelManager.getCmdChannel(((InetSocketAddress) userChannel.localAddress()).getPort());
+        // 隧道已经打通，打通事件随后到达，经隧道转发即可
+        if (cmdChannel == null || userChannel.attr(Constants.NEXT_CHANNEL).get() != null){
+            return;
+        }
+        // 已经发送的部分不再修改，之后读到的数据另外暂存
+        earlySentData = earlyData;
+        earlyData = ctx.alloc().compositeBuffer();
+        int streamId = ProxyChannelManager.getUserChannelStreamId(userChannel);
+        ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.P_TYPE_TRANSFER, streamId, null, earlySentData.retainedDuplicate());
+        proxyMessage.setCompression(userChannel.attr(Constants.STREAM_COMPRESSION).get());
+        cmdChannel.writeAndFlush(proxyMessage);
+    }
+
+    /**
+     * 隧道打通，在用户连接的 EventLoop 上处理：
+     * 代理客户端没有收到提前转发的数据时重发，然后转发建立隧道期间暂存的其他数据，恢复读取
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (!(evt instanceof TunnelBoundEvent)){
+            super.userEventTriggered(ctx, evt);
+            return;
+        }
+        if (earlyData == null){
+            return;
+        }
+        Channel userChannel = ctx.channel();
+        Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
+        ByteBuf sent = earlySentData;
+        ByteBuf pending = earlyData;
+        earlySentData = null;
+        earlyData = null;
+        if (proxyChannel == null){
+            releaseEarlyData(sent, pending);
+            return;
+        }
+        if (sent != null){
+            if (((TunnelBoundEvent) evt).getEarlyBytes() >= sent.readableBytes()){
+                sent.release();
+            }else {
+                logger.debug("early data not delivered, resend through tunnel, {}", userChannel);
+                forward(userChannel, proxyChannel, sent);
+            }
+        }
+        if (pending.isReadable()){
+            forward(userChannel, proxyChannel, pending);
+        }else {
+            pending.release();
+        }
+        flushConsolidator.flush();
+        StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+        userChannel.config().setOption(ChannelOption.AUTO_READ, proxyChannel.isWritable() && (window == null || window.canSend()));
+    }
+
+    private static void releaseEarlyData(ByteBuf sent, ByteBuf pending){
+        if (sent != null){
+            sent.release();
+        }
+        if (pending != null){
+            pending.release();
+        }
+    }
+
+    /**
+     * 一次读循环结束，flush 合并的数据
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (earlyData != null){
+            sendEarlyData(ctx);
+        }else if (flushConsolidator != null){
+            flushConsolidator.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
     /**
      * 通知代理客户端断开指定的连接，清理缓存
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseEarlyData(earlySentData, earlyData);
+        earlySentData = null;
+        earlyData = null;
         Channel userChannel = ctx.channel();
         InetSocketAddress localAddress = (InetSocketAddress)userChannel.localAddress();
         Channel cmdChannel = ProxyChannelManager.getCmdChannel(localAddress.getPort());
@@ -94,20 +267,37 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
             ctx.close();
         }else {
             // 通知代理客户端断开指定的连接，清理缓存
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
-            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel,userId);
+            int streamId = ProxyChannelManager.getUserChannelStreamId(userChannel);
+            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel,streamId);
             Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-            if (proxyChannel != null && proxyChannel.isActive()){
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).getAndSet(null);
+            if (window != null){
+                window.close();
+            }
+            if (proxyChannel != null && ProxyChannelManager.isMuxChannel(proxyChannel)){
+                // 多路复用隧道：只移除逻辑流，隧道继续承载其他用户连接；
+                // 如果逻辑流已被代理客户端关闭，不再重复通知
+                if (ProxyChannelManager.removeMuxStream(proxyChannel, streamId) != null && proxyChannel.isActive()){
+                    proxyChannel.writeAndFlush(new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, abortFlag()));
+                }
+            } else if (proxyChannel != null && proxyChannel.isActive()){
                 // 清理绑定关系
                 proxyChannel.attr(Constants.NEXT_CHANNEL).set(null);
-                proxyChannel.attr(Constants.CLIENT_KEY).set(null);
-                proxyChannel.attr(Constants.USER_ID).set(null);
+                proxyChannel.attr(Constants.CLIENT_INDEX).set(null);
+                proxyChannel.attr(Constants.STREAM_ID).set(null);
+                // 隧道被暂停读取，说明还有数据没有写给用户
+                aborted |= !proxyChannel.config().isAutoRead();
 
                 // 设置可读
                 proxyChannel.config().setOption(ChannelOption.AUTO_READ, true);
-                // 通知客户端，用户连接已经断开
-                ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT,userId);
-                proxyChannel.writeAndFlush(proxyMessage);
+                if (RawTunnelHandler.isRaw(proxyChannel)){
+                    // 原始字节流隧道：数据写完后半关闭，代理客户端读到 EOF 即断开
+                    RawTunnelHandler.shutdownOutput(proxyChannel);
+                }else {
+                    // 通知客户端，用户连接已经断开
+                    ProxyMessage proxyMessage = new ProxyMessage(ProxyMessage.TYPE_DISCONNECT, streamId, null, abortFlag());
+                    proxyChannel.writeAndFlush(proxyMessage);
+                }
             }
         }
         super.channelInactive(ctx);
@@ -130,7 +320,11 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
             ctx.close();
         } else {
             Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-            if (proxyChannel != null) {
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null && proxyChannel != null) {
+                // 多路复用隧道：不能暂停共享的隧道，用户连接恢复可写后再归还窗口，由代理客户端限速
+                window.onWritabilityChanged(userChannel, proxyChannel);
+            } else if (proxyChannel != null) {
                 proxyChannel.config().setOption(ChannelOption.AUTO_READ, userChannel.isWritable());
             }
         }
@@ -143,13 +337,42 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.error("exception caught", cause);
+        aborted = true;
         ctx.close();
     }
 
     /**
-     * 生成用户连接的唯一标示
+     * 用户连接异常中断时，TYPE_DISCONNECT 带上标记，代理客户端不再复用真实服务器连接
+     */
+    private ByteBuf abortFlag() {
+        return aborted ? Unpooled.wrappedBuffer(new byte[]{1}) : null;
+    }
+
+    /**
+     * 隧道打通的事件，由代理服务器收到隧道的 TYPE_CONNECT 后触发
+     */
+    public static final class TunnelBoundEvent {
+
+        /**
+         * 代理客户端已经写入真实服务器的提前数据字节数
+         */
+        private final int earlyBytes;
+
+        public TunnelBoundEvent(int earlyBytes) {
+            this.earlyBytes = earlyBytes;
+        }
+
+        public int getEarlyBytes() {
+            return earlyBytes;
+        }
+    }
+
+    /**
+     * 生成用户连接的唯一标示，同时作为多路复用隧道上的逻辑流标识；
+     * 0 表示没有绑定逻辑流，溢出回绕时跳过
      */
-    private String newUserId(){
-        return String.valueOf(userIdProducer.incrementAndGet());
+    private int newStreamId(){
+        int streamId = streamIdProducer.incrementAndGet();
+        return streamId != 0 ? streamId : streamIdProducer.incrementAndGet();
     }
 }
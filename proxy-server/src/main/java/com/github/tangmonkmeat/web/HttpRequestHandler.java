@@ -2,6 +2,9 @@ package com.github.tangmonkmeat.web;
 
 import com.anji.captcha.model.common.ResponseModel;
 import com.github.tangmonkmeat.common.util.JsonUtil;
+import com.github.tangmonkmeat.config.ProxyConfig;
+import com.github.tangmonkmeat.web.metrics.PrometheusExporter;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
@@ -57,6 +60,12 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
 
         // GET请求
         if (request.method() != HttpMethod.POST) {
+            // Prometheus 抓取运行指标，不需要登录
+            if (ProxyConfig.instance.getPrometheusEnabled() && PrometheusExporter.PATH.equals(new URI(request.uri()).getPath())) {
+                outputContent(ctx, request, HttpResponseStatus.OK.code(), PrometheusExporter.render(ctx.alloc()),
+                        PrometheusExporter.CONTENT_TYPE);
+                return;
+            }
             outputPages(ctx, request);
             return;
         }
@@ -92,10 +101,23 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
      */
     private void outputContent(ChannelHandlerContext ctx, FullHttpRequest request,
                                int code, String body, String mimeType){
+        // 零拷贝
+        outputContent(ctx, request, code, Unpooled.wrappedBuffer(body.getBytes(StandardCharsets.UTF_8)), mimeType);
+    }
+
+    /**
+     * 响应请求，响应体为 ByteBuf
+     *
+     * @param ctx {@link ChannelHandlerContext}
+     * @param request {@link FullHttpRequest}
+     * @param code 响应状态码
+     * @param body 响应体，写出后释放
+     * @param mimeType 响应的MIME类型
+     */
+    private void outputContent(ChannelHandlerContext ctx, FullHttpRequest request,
+                               int code, ByteBuf body, String mimeType){
 
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(code),
-                // 零拷贝
-                Unpooled.wrappedBuffer(body.getBytes(StandardCharsets.UTF_8)));
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(code), body);
         // 响应头
         response.headers().set(HttpHeaderNames .CONTENT_TYPE, mimeType);
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
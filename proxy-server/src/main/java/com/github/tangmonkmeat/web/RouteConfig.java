@@ -8,11 +8,13 @@ import com.github.tangmonkmeat.common.util.JsonUtil;
 import com.github.tangmonkmeat.config.ProxyConfig;
 import com.github.tangmonkmeat.core.ProxyChannelManager;
 import com.github.tangmonkmeat.web.exception.ContextException;
+import com.github.tangmonkmeat.web.metrics.LatencyCollector;
 import com.github.tangmonkmeat.web.metrics.MetricsCollector;
 import com.google.gson.reflect.TypeToken;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -261,6 +263,75 @@ public class RouteConfig {
                 return ResponseInfo.build(MetricsCollector.getAndResetAllMetrics());
             }
         });
+
+        // 流量统计的历史采样，不会重置计数器
+        ApiRoute.addRoute("/metrics/range", new RequestHandler() {
+
+            /**
+             * 查询参数：
+             * port：端口，不传返回所有端口；
+             * from、to：时间范围，单位毫秒，默认最近 1 小时；
+             * resolution：second / minute，不传时时间范围不超过秒级采样的保留时长就返回秒级采样
+             */
+            @Override
+            public ResponseInfo doService(FullHttpRequest request) {
+                Map<String, List<String>> params = new QueryStringDecoder(request.uri()).parameters();
+                long to;
+                long from;
+                Integer port;
+                try {
+                    to = params.containsKey("to") ? Long.parseLong(params.get("to").get(0)) : System.currentTimeMillis();
+                    from = params.containsKey("from") ? Long.parseLong(params.get("from").get(0)) : to - 60 * MetricsCollector.MINUTE_RESOLUTION;
+                    port = params.containsKey("port") ? Integer.valueOf(params.get("port").get(0)) : null;
+                } catch (NumberFormatException ex) {
+                    return ResponseInfo.build(ResponseInfo.CODE_INVILID_PARAMS, "Error range params");
+                }
+                if (from > to) {
+                    return ResponseInfo.build(ResponseInfo.CODE_INVILID_PARAMS, "Error range params");
+                }
+
+                long resolution;
+                String resolutionParam = params.containsKey("resolution") ? params.get("resolution").get(0) : null;
+                if ("second".equals(resolutionParam)) {
+                    resolution = MetricsCollector.SECOND_RESOLUTION;
+                } else if ("minute".equals(resolutionParam)) {
+                    resolution = MetricsCollector.MINUTE_RESOLUTION;
+                } else if (resolutionParam == null) {
+                    long secondSpan = ProxyConfig.instance.getMetricsSecondSamples() * MetricsCollector.SECOND_RESOLUTION;
+                    resolution = to - from <= secondSpan ? MetricsCollector.SECOND_RESOLUTION : MetricsCollector.MINUTE_RESOLUTION;
+                } else {
+                    return ResponseInfo.build(ResponseInfo.CODE_INVILID_PARAMS, "Error resolution");
+                }
+
+                if (port == null) {
+                    return ResponseInfo.build(MetricsCollector.getAllHistory(from, to, resolution));
+                }
+                return ResponseInfo.build(MetricsCollector.getHistory(port, from, to, resolution));
+            }
+        });
+
+        // 建立隧道各阶段的耗时分布，从启动开始累计，单位微秒
+        ApiRoute.addRoute("/metrics/latency", new RequestHandler() {
+
+            /**
+             * 查询参数：
+             * port：端口，不传返回所有端口
+             */
+            @Override
+            public ResponseInfo doService(FullHttpRequest request) {
+                Map<String, List<String>> params = new QueryStringDecoder(request.uri()).parameters();
+                if (!params.containsKey("port")) {
+                    return ResponseInfo.build(LatencyCollector.getAllLatencyMetrics());
+                }
+                int port;
+                try {
+                    port = Integer.parseInt(params.get("port").get(0));
+                } catch (NumberFormatException ex) {
+                    return ResponseInfo.build(ResponseInfo.CODE_INVILID_PARAMS, "Error port");
+                }
+                return ResponseInfo.build(LatencyCollector.getLatencyMetrics(port));
+            }
+        });
     }
 
 }
@@ -1,19 +1,24 @@
 package com.github.tangmonkmeat.web;
 
 import com.github.tangmonkmeat.common.Container.Container;
+import com.github.tangmonkmeat.common.util.TransportUtil;
 import com.github.tangmonkmeat.config.ProxyConfig;
+import com.github.tangmonkmeat.web.metrics.MetricsCollector;
+import com.github.tangmonkmeat.web.metrics.PrometheusExporter;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Description:
  * web 控制台容器
@@ -24,22 +29,28 @@ import org.slf4j.LoggerFactory;
 public class WebConfigContainer implements Container {
     private static final Logger logger = LoggerFactory.getLogger(WebConfigContainer.class);
 
-    private final NioEventLoopGroup serverWorkerGroup;
+    private final EventLoopGroup serverWorkerGroup;
+
+    private final EventLoopGroup serverBossGroup;
 
-    private final NioEventLoopGroup serverBossGroup;
+    /**
+     * 流量统计的采样任务
+     */
+    private ScheduledFuture<?> metricsSampler;
 
     public WebConfigContainer() {
 
         // 配置管理，并发处理很小，使用单线程处理网络事件
-        serverBossGroup = new NioEventLoopGroup(1);
-        serverWorkerGroup = new NioEventLoopGroup(1);
+        serverBossGroup = TransportUtil.newEventLoopGroup(1);
+        serverWorkerGroup = TransportUtil.newEventLoopGroup(1);
+        PrometheusExporter.registerEventLoopGroup("web_worker", serverWorkerGroup);
 
     }
 
     @Override
     public void start() {
         ServerBootstrap httpServerBootstrap = new ServerBootstrap();
-        httpServerBootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class)
+        httpServerBootstrap.group(serverBossGroup, serverWorkerGroup).channel(TransportUtil.serverChannelClass())
                 .childHandler(new ChannelInitializer<SocketChannel>() {
 
                     @Override
@@ -65,10 +76,26 @@ public class WebConfigContainer implements Container {
 
         // 初始化 拦截器和接口处理器
         RouteConfig.init();
+
+        // 每秒采样一次流量统计，和 web 控制台的请求在同一个 EventLoop 上执行
+        metricsSampler = serverWorkerGroup.next().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MetricsCollector.sampleAll(System.currentTimeMillis());
+                } catch (Exception ex) {
+                    // 异常会终止周期任务，只记录日志
+                    logger.error("sample metrics error", ex);
+                }
+            }
+        }, MetricsCollector.SECOND_RESOLUTION, MetricsCollector.SECOND_RESOLUTION, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void stop() {
+        if (metricsSampler != null) {
+            metricsSampler.cancel(false);
+        }
         serverBossGroup.shutdownGracefully();
         serverWorkerGroup.shutdownGracefully();
     }
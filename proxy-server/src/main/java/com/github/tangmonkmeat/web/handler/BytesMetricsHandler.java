@@ -1,10 +1,12 @@
 package com.github.tangmonkmeat.web.handler;
 
+import com.github.tangmonkmeat.web.metrics.LatencyCollector;
 import com.github.tangmonkmeat.web.metrics.MetricsCollector;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
 
 import java.net.InetSocketAddress;
 
@@ -12,6 +14,13 @@ import java.net.InetSocketAddress;
  * Description:
  * 流量统计处理器，
  * ChannelDuplexHandler实现了ChannelInboundHandlerAdapter和ChannelOutboundHandler两个接口，同时可以处理入站和出站事件
+ * <p>
+ * 每个用户连接一个实例；端口对应的 MetricsCollector 在 channelActive 时查找一次并缓存，
+ * 读写时直接累加，不再每次解析本地地址、查找 map
+ * </p>
+ * <p>
+ * 同时记录用户连接建立的时间、隧道打通的时间，统计连接各阶段的耗时，见 {@link LatencyCollector}
+ * </p>
  *
  * @author zwl
  * @version 1.0
@@ -19,13 +28,43 @@ import java.net.InetSocketAddress;
  */
 public class BytesMetricsHandler extends ChannelDuplexHandler {
 
+    /**
+     * 用户连接所在端口的流量计数器
+     */
+    private MetricsCollector collector;
+
+    /**
+     * 用户连接所在端口的耗时统计
+     */
+    private LatencyCollector latencyCollector;
+
+    /**
+     * 用户连接的 EventLoop，隧道打通的事件转到这里处理
+     */
+    private EventExecutor executor;
+
+    /**
+     * 用户连接建立的时间，System.nanoTime()
+     */
+    private long activeNanos;
+
+    /**
+     * 隧道打通的时间，System.nanoTime()；0 表示未打通或者已经记录过首包耗时
+     */
+    private long tunnelReadyNanos;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        executor = ctx.executor();
+        super.handlerAdded(ctx);
+    }
+
     /**
      * 统计入站的流量
      */
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
+        MetricsCollector metricsCollector = collector(ctx);
         // 字节叠加
         metricsCollector.incrementReadBytes(((ByteBuf) msg).readableBytes());
         // 读取次数叠加
@@ -38,33 +77,95 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
      */
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
+        MetricsCollector metricsCollector = collector(ctx);
         // 字节叠加
         metricsCollector.incrementWroteBytes(((ByteBuf) msg).readableBytes());
         // 写出次数叠加
         metricsCollector.incrementWroteMsgs(1);
+        long readyNanos = tunnelReadyNanos;
+        if (readyNanos != 0) {
+            // 只记录第一次写给用户的数据
+            tunnelReadyNanos = 0;
+            latencyCollector.record(LatencyCollector.PHASE_FIRST_BYTE, System.nanoTime() - readyNanos);
+        }
         super.write(ctx, msg, promise);
     }
 
     /**
-     * 有新用户连接，创建并且缓存 此连接的流量计数器
+     * 统计写给用户的 flush 次数
+     */
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        collector(ctx).incrementFlushes(1);
+        super.flush(ctx);
+    }
+
+    /**
+     * 有新用户连接，查找并且缓存 此连接所在端口的流量计数器
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().incrementAndGet();
+        activeNanos = System.nanoTime();
+        collector(ctx).getChannels().incrementAndGet();
+        latencyCollector = LatencyCollector.getCollector(collector.getPort());
         super.channelActive(ctx);
     }
 
     /**
-     * 用户连接断开，清理 此连接的流量计数器
+     * 用户连接断开，更新 此连接所在端口的连接数
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().decrementAndGet();
+        collector(ctx).getChannels().decrementAndGet();
         super.channelInactive(ctx);
     }
 
+    /**
+     * 代理服务器收到隧道的 TYPE_CONNECT，用户连接和真实服务器之间的隧道已经打通；
+     * 在隧道的 EventLoop 上调用，记录时间后转到用户连接的 EventLoop 统计。
+     * 隧道随后转发给用户的数据也是在用户连接的 EventLoop 上写出，排在此任务之后，首包耗时不会漏记
+     *
+     * @param dialMicros 代理客户端上报的连接真实服务器的耗时，单位微秒；小于 0 表示没有上报
+     */
+    public void tunnelReady(final long dialMicros) {
+        final long now = System.nanoTime();
+        if (executor.inEventLoop()) {
+            tunnelReady(now, dialMicros);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    tunnelReady(now, dialMicros);
+                }
+            });
+        }
+    }
+
+    /**
+     * 在用户连接的 EventLoop 上统计打通隧道的耗时
+     *
+     * @param now 隧道打通的时间，System.nanoTime()
+     * @param dialMicros 代理客户端上报的连接真实服务器的耗时，单位微秒；小于 0 表示没有上报
+     */
+    private void tunnelReady(long now, long dialMicros) {
+        long connectNanos = now - activeNanos;
+        latencyCollector.record(LatencyCollector.PHASE_CONNECT, connectNanos);
+        if (dialMicros >= 0) {
+            latencyCollector.recordMicros(LatencyCollector.PHASE_DIAL, dialMicros);
+            latencyCollector.recordMicros(LatencyCollector.PHASE_TUNNEL, Math.max(0, connectNanos / 1000 - dialMicros));
+        }
+        tunnelReadyNanos = now;
+    }
+
+    /**
+     * 所有事件都在用户连接的 EventLoop 上触发（{@link #tunnelReady(long)} 也转到这里处理），不需要同步
+     */
+    private MetricsCollector collector(ChannelHandlerContext ctx) {
+        if (collector == null) {
+            InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
+            collector = MetricsCollector.getCollector(sa.getPort());
+        }
+        return collector;
+    }
+
 }
@@ -0,0 +1,73 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description:
+ * 隧道上批量数据帧（TYPE_BATCH）的统计，所有隧道共用一个实例
+ * <p>
+ * 合并的消息条数 - 批量数据帧个数，即节省的消息头和解码次数
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/14 下午4:10
+ */
+public class BatchCollector implements ProxyMessageBatchCodec.BatchListener {
+
+    private static final BatchCollector INSTANCE = new BatchCollector();
+
+    /**
+     * 发送的批量数据帧个数
+     */
+    private final LongAdder sentBatches = new LongAdder();
+
+    /**
+     * 发送的批量数据帧合并的消息条数
+     */
+    private final LongAdder sentMessages = new LongAdder();
+
+    /**
+     * 收到的批量数据帧个数
+     */
+    private final LongAdder receivedBatches = new LongAdder();
+
+    /**
+     * 收到的批量数据帧拆分出的消息条数
+     */
+    private final LongAdder receivedMessages = new LongAdder();
+
+    private BatchCollector() {}
+
+    public static BatchCollector getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void onBatchSent(int messages) {
+        sentBatches.increment();
+        sentMessages.add(messages);
+    }
+
+    @Override
+    public void onBatchReceived(int messages) {
+        receivedBatches.increment();
+        receivedMessages.add(messages);
+    }
+
+    public long getSentBatches() {
+        return sentBatches.sum();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.sum();
+    }
+
+    public long getReceivedBatches() {
+        return receivedBatches.sum();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.sum();
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Description:
+ * 用户连接建立过程中各阶段的耗时统计，每个端口一个实例，每个阶段一个直方图，单位微秒
+ * <p>
+ * 阶段：<br/>
+ * 1 connect：用户连接建立 → 代理服务器收到隧道的 TYPE_CONNECT，即整个建立隧道的往返；<br/>
+ * 2 dial：代理客户端连接真实服务器的耗时，由代理客户端在 TYPE_CONNECT 中上报；<br/>
+ * 3 tunnel：connect - dial，即指令下发、借用或者打开隧道、隧道排队的耗时；<br/>
+ * 4 firstByte：隧道打通 → 第一次写给用户数据，即经过隧道的首包往返。
+ * </p>
+ * <p>
+ * 记录使用 HdrHistogram 的 Recorder，无锁、不分配内存，可以在生产环境一直开启；
+ * 读取时把区间直方图累加到累计直方图，区间直方图回收重复使用
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 下午3:10
+ */
+public class LatencyCollector {
+
+    public static final int PHASE_CONNECT = 0;
+
+    public static final int PHASE_DIAL = 1;
+
+    public static final int PHASE_TUNNEL = 2;
+
+    public static final int PHASE_FIRST_BYTE = 3;
+
+    private static final String[] PHASE_NAMES = {"connect", "dial", "tunnel", "firstByte"};
+
+    /**
+     * 可记录的最大耗时 60s，超出的按最大值记录
+     */
+    private static final long HIGHEST_TRACKABLE_MICROS = 60 * 1000 * 1000;
+
+    /**
+     * 有效数字位数，误差 1%
+     */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * key: port;
+     * value: LatencyCollector
+     */
+    private static final ConcurrentIntObjectMap<LatencyCollector> LATENCY_COLLECTORS = new ConcurrentIntObjectMap<>();
+
+    private final int port;
+
+    /**
+     * 每个阶段的记录器，多个 EventLoop 并发记录
+     */
+    private final Recorder[] recorders = new Recorder[PHASE_NAMES.length];
+
+    /**
+     * 每个阶段从启动以来的累计直方图，只在持有锁时访问
+     */
+    private final Histogram[] totals = new Histogram[PHASE_NAMES.length];
+
+    /**
+     * 回收的区间直方图，只在持有锁时访问
+     */
+    private final Histogram[] intervals = new Histogram[PHASE_NAMES.length];
+
+    private LatencyCollector(int port) {
+        this.port = port;
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            recorders[i] = new Recorder(1, HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+            totals[i] = new Histogram(1, HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /**
+     * 根据端口获取耗时统计，不存在时创建
+     *
+     * @param port 代理服务器的端口
+     * @return LatencyCollector
+     */
+    public static LatencyCollector getCollector(int port) {
+        LatencyCollector collector = LATENCY_COLLECTORS.get(port);
+        if (collector == null) {
+            collector = new LatencyCollector(port);
+            // 并发创建时，以先放入的为准，保证单例
+            LatencyCollector exist = LATENCY_COLLECTORS.putIfAbsent(port, collector);
+            if (exist != null) {
+                collector = exist;
+            }
+        }
+        return collector;
+    }
+
+    /**
+     * 端口不再监听时，移除耗时统计
+     *
+     * @param port 代理服务器的端口
+     */
+    public static void removeCollector(int port) {
+        LATENCY_COLLECTORS.remove(port);
+    }
+
+    /**
+     * 返回所有端口、所有阶段从启动以来的耗时统计，按端口、阶段排列
+     *
+     * @return LatencyMetrics 列表
+     */
+    public static List<LatencyMetrics> getAllLatencyMetrics() {
+        List<LatencyCollector> collectors = LATENCY_COLLECTORS.values();
+        collectors.sort(new Comparator<LatencyCollector>() {
+            @Override
+            public int compare(LatencyCollector o1, LatencyCollector o2) {
+                return Integer.compare(o1.port, o2.port);
+            }
+        });
+        List<LatencyMetrics> allMetrics = new ArrayList<>();
+        for (LatencyCollector collector : collectors) {
+            allMetrics.addAll(collector.getLatencyMetrics());
+        }
+        return allMetrics;
+    }
+
+    /**
+     * 返回指定端口各阶段从启动以来的耗时统计
+     *
+     * @param port 代理服务器的端口
+     * @return LatencyMetrics 列表，端口没有记录过时为空
+     */
+    public static List<LatencyMetrics> getLatencyMetrics(int port) {
+        LatencyCollector collector = LATENCY_COLLECTORS.get(port);
+        return collector == null ? new ArrayList<LatencyMetrics>() : collector.getLatencyMetrics();
+    }
+
+    /**
+     * 记录一次耗时，不分配内存
+     *
+     * @param phase 阶段，PHASE_*
+     * @param nanos 耗时，单位纳秒；小于 0 的忽略
+     */
+    public void record(int phase, long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        recordMicros(phase, nanos / 1000);
+    }
+
+    /**
+     * 记录一次耗时，不分配内存
+     *
+     * @param phase 阶段，PHASE_*
+     * @param micros 耗时，单位微秒；小于 0 的忽略
+     */
+    public void recordMicros(int phase, long micros) {
+        if (micros < 0) {
+            return;
+        }
+        recorders[phase].recordValue(Math.min(Math.max(micros, 1), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    /**
+     * 把各阶段新记录的区间直方图累加到累计直方图，返回各阶段的统计
+     */
+    public synchronized List<LatencyMetrics> getLatencyMetrics() {
+        List<LatencyMetrics> allMetrics = new ArrayList<>(PHASE_NAMES.length);
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            intervals[i] = recorders[i].getIntervalHistogram(intervals[i]);
+            totals[i].add(intervals[i]);
+            allMetrics.add(toMetrics(PHASE_NAMES[i], totals[i]));
+        }
+        return allMetrics;
+    }
+
+    private LatencyMetrics toMetrics(String phase, Histogram histogram) {
+        LatencyMetrics metrics = new LatencyMetrics();
+        metrics.setPort(port);
+        metrics.setPhase(phase);
+        metrics.setCount(histogram.getTotalCount());
+        if (histogram.getTotalCount() > 0) {
+            metrics.setMean(histogram.getMean());
+            metrics.setP50(histogram.getValueAtPercentile(50));
+            metrics.setP90(histogram.getValueAtPercentile(90));
+            metrics.setP99(histogram.getValueAtPercentile(99));
+            metrics.setP999(histogram.getValueAtPercentile(99.9));
+            metrics.setMax(histogram.getMaxValue());
+        }
+        return metrics;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
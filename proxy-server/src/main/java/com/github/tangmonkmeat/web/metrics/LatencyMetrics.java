@@ -0,0 +1,118 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import java.io.Serializable;
+
+/**
+ * Description:
+ * 代理服务器指定端口、指定阶段的耗时统计实体，单位微秒，见 {@link LatencyCollector}
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/12 下午3:05
+ */
+public class LatencyMetrics implements Serializable {
+
+    /**
+     * 统计耗时的端口
+     */
+    private int port;
+
+    /**
+     * 阶段：connect、dial、tunnel、firstByte
+     */
+    private String phase;
+
+    /**
+     * 记录的次数
+     */
+    private long count;
+
+    /**
+     * 平均耗时
+     */
+    private double mean;
+
+    private long p50;
+
+    private long p90;
+
+    private long p99;
+
+    private long p999;
+
+    /**
+     * 最大耗时
+     */
+    private long max;
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public void setMean(double mean) {
+        this.mean = mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public void setP50(long p50) {
+        this.p50 = p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public void setP90(long p90) {
+        this.p90 = p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public void setP99(long p99) {
+        this.p99 = p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public void setP999(long p999) {
+        this.p999 = p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+}
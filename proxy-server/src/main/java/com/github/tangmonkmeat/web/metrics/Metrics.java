@@ -41,6 +41,66 @@ public class Metrics implements Serializable {
      */
     private int channels;
 
+    /**
+     * 多路复用隧道上，当前发送窗口耗尽（停滞）的逻辑流个数
+     */
+    private int stalledStreams;
+
+    /**
+     * 多路复用隧道上，逻辑流发送窗口耗尽的次数
+     */
+    private long streamStalls;
+
+    /**
+     * 写给用户的 flush 次数；wroteMsgs / flushes 即写给用户时 flush 的合并比例
+     */
+    private long flushes;
+
+    /**
+     * 用户数据转发给隧道的 write 次数
+     */
+    private long tunnelWrites;
+
+    /**
+     * 用户数据转发给隧道的 flush 次数；tunnelWrites / tunnelFlushes 即转发给隧道时 flush 的合并比例
+     */
+    private long tunnelFlushes;
+
+    /**
+     * 压缩传输的数据压缩前的字节数，包括压缩发送给代理客户端的和代理客户端压缩发送来的
+     */
+    private long compressionRawBytes;
+
+    /**
+     * 压缩传输的数据压缩后的字节数；compressionWireBytes / compressionRawBytes 即压缩率
+     */
+    private long compressionWireBytes;
+
+    /**
+     * 压缩、解压的耗时，单位纳秒
+     */
+    private long compressionNanos;
+
+    /**
+     * 尝试压缩但是没有效果、按原样发送的次数
+     */
+    private long compressionSkips;
+
+    /**
+     * 压缩率，压缩后的字节数 / 压缩前的字节数
+     */
+    private double compressionRatio;
+
+    /**
+     * 写给用户时 flush 的合并比例，平均每次 flush 写出的次数
+     */
+    private double flushBatchRatio;
+
+    /**
+     * 转发给隧道时 flush 的合并比例，平均每次 flush 写出的次数
+     */
+    private double tunnelFlushBatchRatio;
+
     /**
      * 时间戳
      */
@@ -86,6 +146,102 @@ public class Metrics implements Serializable {
         this.channels = channels;
     }
 
+    public int getStalledStreams() {
+        return stalledStreams;
+    }
+
+    public void setStalledStreams(int stalledStreams) {
+        this.stalledStreams = stalledStreams;
+    }
+
+    public long getStreamStalls() {
+        return streamStalls;
+    }
+
+    public void setStreamStalls(long streamStalls) {
+        this.streamStalls = streamStalls;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public void setFlushes(long flushes) {
+        this.flushes = flushes;
+    }
+
+    public long getTunnelWrites() {
+        return tunnelWrites;
+    }
+
+    public void setTunnelWrites(long tunnelWrites) {
+        this.tunnelWrites = tunnelWrites;
+    }
+
+    public long getTunnelFlushes() {
+        return tunnelFlushes;
+    }
+
+    public void setTunnelFlushes(long tunnelFlushes) {
+        this.tunnelFlushes = tunnelFlushes;
+    }
+
+    public long getCompressionRawBytes() {
+        return compressionRawBytes;
+    }
+
+    public void setCompressionRawBytes(long compressionRawBytes) {
+        this.compressionRawBytes = compressionRawBytes;
+    }
+
+    public long getCompressionWireBytes() {
+        return compressionWireBytes;
+    }
+
+    public void setCompressionWireBytes(long compressionWireBytes) {
+        this.compressionWireBytes = compressionWireBytes;
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    public void setCompressionNanos(long compressionNanos) {
+        this.compressionNanos = compressionNanos;
+    }
+
+    public long getCompressionSkips() {
+        return compressionSkips;
+    }
+
+    public void setCompressionSkips(long compressionSkips) {
+        this.compressionSkips = compressionSkips;
+    }
+
+    public double getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    public void setCompressionRatio(double compressionRatio) {
+        this.compressionRatio = compressionRatio;
+    }
+
+    public double getFlushBatchRatio() {
+        return flushBatchRatio;
+    }
+
+    public void setFlushBatchRatio(double flushBatchRatio) {
+        this.flushBatchRatio = flushBatchRatio;
+    }
+
+    public double getTunnelFlushBatchRatio() {
+        return tunnelFlushBatchRatio;
+    }
+
+    public void setTunnelFlushBatchRatio(double tunnelFlushBatchRatio) {
+        this.tunnelFlushBatchRatio = tunnelFlushBatchRatio;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
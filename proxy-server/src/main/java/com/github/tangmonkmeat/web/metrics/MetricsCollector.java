@@ -1,55 +1,153 @@
 package com.github.tangmonkmeat.web.metrics;
 
+import com.github.tangmonkmeat.common.util.ConcurrentIntObjectMap;
+import com.github.tangmonkmeat.config.ProxyConfig;
+
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Description:
- * 代理服务器的流量统计计数器
+ * 代理服务器的流量统计计数器，
+ * 同时统计多路复用隧道上，因发送窗口耗尽而停滞的逻辑流，转发时 flush 的合并情况，以及隧道数据的压缩情况
+ * <p>
+ * 同一个端口的所有用户连接，分布在所有 EventLoop 上并发累加，计数器使用 LongAdder 分散竞争；
+ * 重置时不清零计数器，而是记录已经上报的累计值，下次返回与它的差值，并发累加的数据不会丢失；
+ * 每个计数器只读取一次，保存在快照 {@link #total()} 中，差值的所有字段都来自同一个快照
+ * </p>
+ * <p>
+ * 历史数据：采样器每秒调用一次 {@link #sampleAll(long)}，把每秒、每分钟的增量写入固定大小的环形缓冲区 {@link MetricsRing}，
+ * 采样同样只记录累计值，不会重置计数器，也不受 {@link #getAndResetAllMetrics()} 影响
+ * </p>
  * @author zwl
  * @version 1.0
  * @date 2021/3/1 下午8:23
  */
-public class MetricsCollector {
+public class MetricsCollector implements StreamWindow.StallListener, FlushConsolidator.FlushListener,
+        StreamCompression.CompressionListener {
+
+    /**
+     * 秒级采样的时间间隔，单位毫秒
+     */
+    public static final long SECOND_RESOLUTION = 1000;
+
+    /**
+     * 分钟级采样的时间间隔，单位毫秒
+     */
+    public static final long MINUTE_RESOLUTION = 60 * 1000;
 
     /**
      * 缓存代理服务器每个端口的流量数据
      * key: port;
      * value: MetricsCollector
      */
-    private static final Map<Integer, MetricsCollector> METRICS_COLLECTORS = new ConcurrentHashMap<>();
+    private static final ConcurrentIntObjectMap<MetricsCollector> METRICS_COLLECTORS = new ConcurrentIntObjectMap<>();
 
-    private Integer port;
+    private int port;
 
     /**
      * 读入字节计数器
      */
-    private final AtomicLong readBytes = new AtomicLong();
+    private final LongAdder readBytes = new LongAdder();
 
     /**
      * 写出字节计数器
      */
-    private final AtomicLong wroteBytes = new AtomicLong();
+    private final LongAdder wroteBytes = new LongAdder();
 
     /**
      * 读入次数计数器
      */
-    private final AtomicLong readMsgs = new AtomicLong();
+    private final LongAdder readMsgs = new LongAdder();
 
     /**
      * 写出次数计数器
      */
-    private final AtomicLong wroteMsgs = new AtomicLong();
+    private final LongAdder wroteMsgs = new LongAdder();
 
     /**
      * port 关联 channel 计数器
      */
     private final AtomicInteger channels = new AtomicInteger();
 
+    /**
+     * 当前发送窗口耗尽（停滞）的逻辑流个数
+     */
+    private final AtomicInteger stalledStreams = new AtomicInteger();
+
+    /**
+     * 逻辑流发送窗口耗尽的次数计数器
+     */
+    private final LongAdder streamStalls = new LongAdder();
+
+    /**
+     * 写给用户的 flush 次数计数器
+     */
+    private final LongAdder flushes = new LongAdder();
+
+    /**
+     * 用户数据转发给隧道的 write 次数计数器
+     */
+    private final LongAdder tunnelWrites = new LongAdder();
+
+    /**
+     * 用户数据转发给隧道的 flush 次数计数器
+     */
+    private final LongAdder tunnelFlushes = new LongAdder();
+
+    /**
+     * 压缩传输的数据压缩前的字节数计数器
+     */
+    private final LongAdder compressionRawBytes = new LongAdder();
+
+    /**
+     * 压缩传输的数据压缩后的字节数计数器
+     */
+    private final LongAdder compressionWireBytes = new LongAdder();
+
+    /**
+     * 压缩、解压耗时计数器，单位纳秒
+     */
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /**
+     * 压缩无效次数计数器
+     */
+    private final LongAdder compressionSkips = new LongAdder();
+
+    /**
+     * 上次重置时的累计值
+     */
+    private volatile Metrics reported = new Metrics();
+
+    /**
+     * 秒级历史采样，第一次采样时创建，从未采样的端口不占用内存；写入时按需扩容
+     */
+    private volatile MetricsRing secondSamples;
+
+    /**
+     * 分钟级历史采样，第一次采样时创建
+     */
+    private volatile MetricsRing minuteSamples;
+
+    /**
+     * 上一次秒级采样时的累计值，只在采样器的 EventLoop 上访问
+     */
+    private Metrics secondSampled = new Metrics();
+
+    /**
+     * 上一次分钟级采样时的累计值，只在采样器的 EventLoop 上访问
+     */
+    private Metrics minuteSampled = new Metrics();
+
+    /**
+     * 当前分钟的开始时间
+     */
+    private long minuteStart;
+
     private MetricsCollector() {}
 
     /**
@@ -60,22 +158,29 @@ public class MetricsCollector {
      * @param port 代理服务器的端口
      * @return 流量统计数据 MetricsCollector
      */
-    public static MetricsCollector getCollector(Integer port) {
+    public static MetricsCollector getCollector(int port) {
         MetricsCollector collector = METRICS_COLLECTORS.get(port);
-        // 双重校验锁，保证单例
         if (collector == null) {
-            synchronized (METRICS_COLLECTORS) {
-                collector = METRICS_COLLECTORS.get(port);
-                if (collector == null) {
-                    collector = new MetricsCollector();
-                    collector.setPort(port);
-                    METRICS_COLLECTORS.put(port, collector);
-                }
+            collector = new MetricsCollector();
+            collector.setPort(port);
+            // 并发创建时，以先放入的为准，保证单例
+            MetricsCollector exist = METRICS_COLLECTORS.putIfAbsent(port, collector);
+            if (exist != null) {
+                collector = exist;
             }
         }
         return collector;
     }
 
+    /**
+     * 端口不再监听时，移除流量统计数据和历史采样
+     *
+     * @param port 代理服务器的端口
+     */
+    public static void removeCollector(int port) {
+        METRICS_COLLECTORS.remove(port);
+    }
+
     /**
      * 返回所有端口的流量统计数据（使用自旋锁，保证线程安全）
      * 
@@ -83,8 +188,8 @@ public class MetricsCollector {
      */
     public static List<Metrics> getAndResetAllMetrics() {
         List<Metrics> allMetrics = new ArrayList<>();
-        for (Map.Entry<Integer, MetricsCollector> integerMetricsCollectorEntry : METRICS_COLLECTORS.entrySet()) {
-            allMetrics.add(integerMetricsCollectorEntry.getValue().getAndResetMetrics());
+        for (MetricsCollector collector : METRICS_COLLECTORS.values()) {
+            allMetrics.add(collector.getAndResetMetrics());
         }
 
         return allMetrics;
@@ -97,64 +202,258 @@ public class MetricsCollector {
      */
     public static List<Metrics> getAllMetrics() {
         List<Metrics> allMetrics = new ArrayList<>();
-        for (Map.Entry<Integer, MetricsCollector> integerMetricsCollectorEntry : METRICS_COLLECTORS.entrySet()) {
-            allMetrics.add(integerMetricsCollectorEntry.getValue().getMetrics());
+        for (MetricsCollector collector : METRICS_COLLECTORS.values()) {
+            allMetrics.add(collector.getMetrics());
         }
 
         return allMetrics;
     }
 
-    public Metrics getAndResetMetrics() {
-        Metrics metrics = new Metrics();
-        metrics.setChannels(channels.get());
-        metrics.setPort(port);
-        metrics.setReadBytes(readBytes.getAndSet(0));
-        metrics.setWroteBytes(wroteBytes.getAndSet(0));
-        metrics.setTimestamp(System.currentTimeMillis());
-        metrics.setReadMsgs(readMsgs.getAndSet(0));
-        metrics.setWroteMsgs(wroteMsgs.getAndSet(0));
+    /**
+     * 所有端口采样一次，由采样器每秒调用一次
+     *
+     * @param now 当前时间，单位毫秒
+     */
+    public static void sampleAll(long now) {
+        for (MetricsCollector collector : METRICS_COLLECTORS.values()) {
+            collector.sample(now);
+        }
+    }
 
+    /**
+     * 返回所有端口 [from, to] 之间的历史采样
+     *
+     * @param from 开始时间，单位毫秒
+     * @param to 结束时间，单位毫秒
+     * @param resolution 采样间隔：{@link #SECOND_RESOLUTION} 或 {@link #MINUTE_RESOLUTION}
+     * @return 按端口、时间排列的采样列表
+     */
+    public static List<Metrics> getAllHistory(long from, long to, long resolution) {
+        List<MetricsCollector> collectors = METRICS_COLLECTORS.values();
+        collectors.sort(new Comparator<MetricsCollector>() {
+            @Override
+            public int compare(MetricsCollector o1, MetricsCollector o2) {
+                return Integer.compare(o1.port, o2.port);
+            }
+        });
+        List<Metrics> history = new ArrayList<>();
+        for (MetricsCollector collector : collectors) {
+            history.addAll(collector.getHistory(from, to, resolution));
+        }
+        return history;
+    }
+
+    /**
+     * 返回指定端口 [from, to] 之间的历史采样；端口没有流量统计时返回空列表
+     *
+     * @param port 代理服务器的端口
+     * @param from 开始时间，单位毫秒
+     * @param to 结束时间，单位毫秒
+     * @param resolution 采样间隔：{@link #SECOND_RESOLUTION} 或 {@link #MINUTE_RESOLUTION}
+     * @return 按时间排列的采样列表
+     */
+    public static List<Metrics> getHistory(int port, long from, long to, long resolution) {
+        MetricsCollector collector = METRICS_COLLECTORS.get(port);
+        return collector == null ? new ArrayList<Metrics>() : collector.getHistory(from, to, resolution);
+    }
+
+    public List<Metrics> getHistory(long from, long to, long resolution) {
+        MetricsRing ring = resolution == MINUTE_RESOLUTION ? minuteSamples : secondSamples;
+        return ring == null ? new ArrayList<Metrics>() : ring.range(port, from, to);
+    }
+
+    /**
+     * 写入上一秒的增量；跨过分钟边界时，同时写入上一分钟的增量
+     */
+    private void sample(long now) {
+        if (secondSamples == null) {
+            minuteStart = now - now % MINUTE_RESOLUTION;
+            minuteSamples = new MetricsRing(ProxyConfig.instance.getMetricsMinuteSamples());
+            secondSamples = new MetricsRing(ProxyConfig.instance.getMetricsSecondSamples());
+        }
+        Metrics total = total();
+        secondSamples.add(now - now % SECOND_RESOLUTION - SECOND_RESOLUTION, since(total, secondSampled));
+        secondSampled = total;
+        if (now - minuteStart >= MINUTE_RESOLUTION) {
+            minuteSamples.add(minuteStart, since(total, minuteSampled));
+            minuteSampled = total;
+            minuteStart = now - now % MINUTE_RESOLUTION;
+        }
+    }
+
+    /**
+     * 返回上次重置以来的流量统计数据，并重置
+     */
+    public synchronized Metrics getAndResetMetrics() {
+        Metrics total = total();
+        Metrics metrics = since(total, reported);
+        reported = total;
         return metrics;
     }
 
+    /**
+     * 返回上次重置以来的流量统计数据
+     */
     public Metrics getMetrics() {
+        // 先读取上次重置时的累计值，再读取计数器：并发重置时差值不会小于 0
+        Metrics base = reported;
+        return since(total(), base);
+    }
+
+    /**
+     * 返回所有端口从启动以来的累计流量，按端口排列，不会重置计数器
+     *
+     * @return Metrics 列表
+     */
+    public static List<Metrics> getAllTotalMetrics() {
+        List<Metrics> allMetrics = new ArrayList<>();
+        for (MetricsCollector collector : METRICS_COLLECTORS.values()) {
+            allMetrics.add(collector.total());
+        }
+        allMetrics.sort(new Comparator<Metrics>() {
+            @Override
+            public int compare(Metrics o1, Metrics o2) {
+                return Integer.compare(o1.getPort(), o2.getPort());
+            }
+        });
+        return allMetrics;
+    }
+
+    /**
+     * 计数器的累计值，以及当前的连接数、停滞的逻辑流个数
+     */
+    private Metrics total() {
         Metrics metrics = new Metrics();
-        metrics.setChannels(channels.get());
         metrics.setPort(port);
-        metrics.setReadBytes(readBytes.get());
-        metrics.setWroteBytes(wroteBytes.get());
+        metrics.setChannels(channels.get());
+        metrics.setStalledStreams(stalledStreams.get());
         metrics.setTimestamp(System.currentTimeMillis());
-        metrics.setReadMsgs(readMsgs.get());
-        metrics.setWroteMsgs(wroteMsgs.get());
+        metrics.setReadBytes(readBytes.sum());
+        metrics.setWroteBytes(wroteBytes.sum());
+        metrics.setReadMsgs(readMsgs.sum());
+        metrics.setWroteMsgs(wroteMsgs.sum());
+        metrics.setStreamStalls(streamStalls.sum());
+        metrics.setFlushes(flushes.sum());
+        metrics.setTunnelWrites(tunnelWrites.sum());
+        metrics.setTunnelFlushes(tunnelFlushes.sum());
+        metrics.setCompressionRawBytes(compressionRawBytes.sum());
+        metrics.setCompressionWireBytes(compressionWireBytes.sum());
+        metrics.setCompressionNanos(compressionNanos.sum());
+        metrics.setCompressionSkips(compressionSkips.sum());
+        return metrics;
+    }
+
+    /**
+     * 两次累计值的差值；连接数等当前状态直接取快照中的值，不再读取计数器
+     */
+    private Metrics since(Metrics total, Metrics base) {
+        Metrics metrics = new Metrics();
+        metrics.setChannels(total.getChannels());
+        metrics.setPort(port);
+        metrics.setReadBytes(total.getReadBytes() - base.getReadBytes());
+        metrics.setWroteBytes(total.getWroteBytes() - base.getWroteBytes());
+        metrics.setTimestamp(total.getTimestamp());
+        metrics.setReadMsgs(total.getReadMsgs() - base.getReadMsgs());
+        metrics.setWroteMsgs(total.getWroteMsgs() - base.getWroteMsgs());
+        metrics.setStalledStreams(total.getStalledStreams());
+        metrics.setStreamStalls(total.getStreamStalls() - base.getStreamStalls());
+        metrics.setFlushes(total.getFlushes() - base.getFlushes());
+        metrics.setTunnelWrites(total.getTunnelWrites() - base.getTunnelWrites());
+        metrics.setTunnelFlushes(total.getTunnelFlushes() - base.getTunnelFlushes());
+        metrics.setCompressionRawBytes(total.getCompressionRawBytes() - base.getCompressionRawBytes());
+        metrics.setCompressionWireBytes(total.getCompressionWireBytes() - base.getCompressionWireBytes());
+        metrics.setCompressionNanos(total.getCompressionNanos() - base.getCompressionNanos());
+        metrics.setCompressionSkips(total.getCompressionSkips() - base.getCompressionSkips());
+        setBatchRatios(metrics);
 
         return metrics;
     }
 
+    /**
+     * 计算 flush 的合并比例：平均每次 flush 写出的次数
+     */
+    private static void setBatchRatios(Metrics metrics) {
+        metrics.setFlushBatchRatio(metrics.getFlushes() == 0 ? 0 : (double) metrics.getWroteMsgs() / metrics.getFlushes());
+        metrics.setTunnelFlushBatchRatio(metrics.getTunnelFlushes() == 0 ? 0 : (double) metrics.getTunnelWrites() / metrics.getTunnelFlushes());
+        metrics.setCompressionRatio(metrics.getCompressionRawBytes() == 0 ? 0 : (double) metrics.getCompressionWireBytes() / metrics.getCompressionRawBytes());
+    }
+
     public void incrementReadBytes(long bytes) {
-        readBytes.addAndGet(bytes);
+        readBytes.add(bytes);
     }
 
     public void incrementWroteBytes(long bytes) {
-        wroteBytes.addAndGet(bytes);
+        wroteBytes.add(bytes);
     }
 
     public void incrementReadMsgs(long msgs) {
-        readMsgs.addAndGet(msgs);
+        readMsgs.add(msgs);
     }
 
     public void incrementWroteMsgs(long msgs) {
-        wroteMsgs.addAndGet(msgs);
+        wroteMsgs.add(msgs);
+    }
+
+    public void incrementFlushes(long count) {
+        flushes.add(count);
+    }
+
+    /**
+     * 用户数据转发给隧道时的一次 flush
+     *
+     * @param writes 本次 flush 合并的 write 次数
+     */
+    @Override
+    public void onFlush(int writes) {
+        tunnelFlushes.increment();
+        tunnelWrites.add(writes);
+    }
+
+    @Override
+    public void onCompressed(int rawBytes, int wireBytes, long nanos) {
+        compressionRawBytes.add(rawBytes);
+        compressionWireBytes.add(wireBytes);
+        compressionNanos.add(nanos);
+    }
+
+    /**
+     * 压缩无效时，原始数据按原样发送，压缩前后的字节数都按原始长度累加
+     */
+    @Override
+    public void onCompressSkipped(int rawBytes, long nanos) {
+        compressionRawBytes.add(rawBytes);
+        compressionWireBytes.add(rawBytes);
+        compressionNanos.add(nanos);
+        compressionSkips.increment();
+    }
+
+    @Override
+    public void onDecompressed(int wireBytes, int rawBytes, long nanos) {
+        compressionRawBytes.add(rawBytes);
+        compressionWireBytes.add(wireBytes);
+        compressionNanos.add(nanos);
+    }
+
+    @Override
+    public void onStall() {
+        stalledStreams.incrementAndGet();
+        streamStalls.increment();
+    }
+
+    @Override
+    public void onResume() {
+        stalledStreams.decrementAndGet();
     }
 
     public AtomicInteger getChannels() {
         return channels;
     }
 
-    public Integer getPort() {
+    public int getPort() {
         return port;
     }
 
-    public void setPort(Integer port) {
+    public void setPort(int port) {
         this.port = port;
     }
 }
@@ -0,0 +1,133 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Description:
+ * 固定容量的流量采样环形缓冲区，保存一个端口最近 capacity 个采样，写满后覆盖最旧的采样
+ * <p>
+ * 每个字段一个基本类型数组，从 {@link #INITIAL_LENGTH} 开始按需翻倍扩容，直到 capacity，之后占用的内存和运行时间无关；
+ * 短时间存在的端口只占用和采样个数相当的内存。
+ * 采样器每秒写入一次，web 控制台按时间范围读取，读写都很少，直接加锁
+ * </p>
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/11 上午10:20
+ */
+public class MetricsRing {
+
+    /**
+     * 数组的初始长度
+     */
+    private static final int INITIAL_LENGTH = 64;
+
+    /**
+     * 最多保存的采样个数
+     */
+    private final int capacity;
+
+    /**
+     * 采样的时间戳，单位毫秒
+     */
+    private long[] timestamps;
+
+    private long[] readBytes;
+
+    private long[] wroteBytes;
+
+    private long[] readMsgs;
+
+    private long[] wroteMsgs;
+
+    /**
+     * 采样时的连接数
+     */
+    private int[] channels;
+
+    /**
+     * 下一个写入的位置
+     */
+    private int next;
+
+    /**
+     * 已经写入的采样个数，最大为容量
+     */
+    private int size;
+
+    public MetricsRing(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        resize(Math.min(this.capacity, INITIAL_LENGTH));
+    }
+
+    /**
+     * 写入一个采样，采样的字段为采样周期内的增量
+     *
+     * @param timestamp 采样周期的开始时间
+     * @param sample 采样周期内的流量
+     */
+    public synchronized void add(long timestamp, Metrics sample) {
+        // 数组第一次写满时采样从开头连续存放，直接复制扩容，接着写在已有采样之后
+        if (size == timestamps.length && timestamps.length < capacity) {
+            resize(Math.min(capacity, timestamps.length * 2));
+            next = size;
+        }
+        timestamps[next] = timestamp;
+        readBytes[next] = sample.getReadBytes();
+        wroteBytes[next] = sample.getWroteBytes();
+        readMsgs[next] = sample.getReadMsgs();
+        wroteMsgs[next] = sample.getWroteMsgs();
+        channels[next] = sample.getChannels();
+        next = (next + 1) % timestamps.length;
+        if (size < timestamps.length) {
+            size++;
+        }
+    }
+
+    /**
+     * 按时间顺序返回 [from, to] 之间的采样
+     *
+     * @param port 采样所属的端口
+     * @param from 开始时间，单位毫秒
+     * @param to 结束时间，单位毫秒
+     * @return 采样列表
+     */
+    public synchronized List<Metrics> range(int port, long from, long to) {
+        List<Metrics> samples = new ArrayList<>();
+        int oldest = (next - size + timestamps.length) % timestamps.length;
+        for (int i = 0; i < size; i++) {
+            int index = (oldest + i) % timestamps.length;
+            if (timestamps[index] < from || timestamps[index] > to) {
+                continue;
+            }
+            Metrics metrics = new Metrics();
+            metrics.setPort(port);
+            metrics.setTimestamp(timestamps[index]);
+            metrics.setReadBytes(readBytes[index]);
+            metrics.setWroteBytes(wroteBytes[index]);
+            metrics.setReadMsgs(readMsgs[index]);
+            metrics.setWroteMsgs(wroteMsgs[index]);
+            metrics.setChannels(channels[index]);
+            samples.add(metrics);
+        }
+        return samples;
+    }
+
+    /**
+     * @return 能保存的采样个数
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    private void resize(int length) {
+        timestamps = timestamps == null ? new long[length] : Arrays.copyOf(timestamps, length);
+        readBytes = readBytes == null ? new long[length] : Arrays.copyOf(readBytes, length);
+        wroteBytes = wroteBytes == null ? new long[length] : Arrays.copyOf(wroteBytes, length);
+        readMsgs = readMsgs == null ? new long[length] : Arrays.copyOf(readMsgs, length);
+        wroteMsgs = wroteMsgs == null ? new long[length] : Arrays.copyOf(wroteMsgs, length);
+        channels = channels == null ? new int[length] : Arrays.copyOf(channels, length);
+    }
+}
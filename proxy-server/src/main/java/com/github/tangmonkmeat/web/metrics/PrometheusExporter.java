@@ -0,0 +1,252 @@
+package com.github.tangmonkmeat.web.metrics;
+
+import com.github.tangmonkmeat.core.ProxyChannelManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Description:
+ * 以 Prometheus 文本格式（version 0.0.4）导出代理服务器的运行指标，供 GET /metrics 抓取
+ * <p>
+ * 导出内容：<br/>
+ * 1 每个端口的流量累计值（计数器从启动开始累加，不会被 /metrics/getandreset 重置）和当前连接数；<br/>
+ * 2 在线的代理客户端（cmdChannel）个数，代理客户端连接到代理服务器的隧道个数，隧道上批量数据帧的个数和合并的消息条数；<br/>
+ * 3 各个 EventLoop 等待执行的任务数；<br/>
+ * 4 默认内存分配器已使用的直接内存、堆内存。
+ * </p>
+ * 抓取频繁，直接拼接文本，不经过 Gson；拼接用的 StringBuilder 重复使用，只在最后复制一次到响应的 ByteBuf
+ *
+ * @author zwl
+ * @version 1.0
+ * @date 2021/3/11 下午3:40
+ */
+public class PrometheusExporter {
+
+    /**
+     * 抓取的路径
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * 响应的 MIME 类型
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String COUNTER = "counter";
+
+    private static final String GAUGE = "gauge";
+
+    /**
+     * 需要导出待执行任务数的 EventLoopGroup，按名称排序
+     * key: 名称，导出为 group 标签
+     * value: EventLoopGroup
+     */
+    private static final Map<String, EventLoopGroup> EVENT_LOOP_GROUPS = new ConcurrentSkipListMap<>();
+
+    /**
+     * 每个端口导出的指标
+     */
+    private static final PortMetric[] PORT_METRICS = {
+            new PortMetric("proxy_read_bytes_total", COUNTER, "Bytes read from users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getReadBytes();
+                }
+            },
+            new PortMetric("proxy_wrote_bytes_total", COUNTER, "Bytes written to users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getWroteBytes();
+                }
+            },
+            new PortMetric("proxy_read_messages_total", COUNTER, "Reads from users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getReadMsgs();
+                }
+            },
+            new PortMetric("proxy_wrote_messages_total", COUNTER, "Writes to users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getWroteMsgs();
+                }
+            },
+            new PortMetric("proxy_user_flushes_total", COUNTER, "Flushes to users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getFlushes();
+                }
+            },
+            new PortMetric("proxy_tunnel_writes_total", COUNTER, "User data writes forwarded to tunnels.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getTunnelWrites();
+                }
+            },
+            new PortMetric("proxy_tunnel_flushes_total", COUNTER, "Flushes of user data forwarded to tunnels.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getTunnelFlushes();
+                }
+            },
+            new PortMetric("proxy_stream_stalls_total", COUNTER, "Times a multiplexed stream ran out of send window.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getStreamStalls();
+                }
+            },
+            new PortMetric("proxy_compression_raw_bytes_total", COUNTER, "Tunnel payload bytes before compression, both directions.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getCompressionRawBytes();
+                }
+            },
+            new PortMetric("proxy_compression_wire_bytes_total", COUNTER, "Tunnel payload bytes after compression, both directions.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getCompressionWireBytes();
+                }
+            },
+            new PortMetric("proxy_compression_cpu_nanoseconds_total", COUNTER, "Time spent compressing and decompressing tunnel payloads.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getCompressionNanos();
+                }
+            },
+            new PortMetric("proxy_compression_skipped_total", COUNTER, "Tunnel payloads sent uncompressed because compression did not pay off.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getCompressionSkips();
+                }
+            },
+            new PortMetric("proxy_user_channels", GAUGE, "Connected users.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getChannels();
+                }
+            },
+            new PortMetric("proxy_stalled_streams", GAUGE, "Multiplexed streams currently out of send window.") {
+                @Override
+                long value(Metrics metrics) {
+                    return metrics.getStalledStreams();
+                }
+            }
+    };
+
+    /**
+     * 重复使用的文本缓冲区，只在持有类锁时访问
+     */
+    private static final StringBuilder BUFFER = new StringBuilder(16 * 1024);
+
+    private PrometheusExporter() {}
+
+    /**
+     * 登记需要导出待执行任务数的 EventLoopGroup
+     *
+     * @param name 名称
+     * @param group EventLoopGroup
+     */
+    public static void registerEventLoopGroup(String name, EventLoopGroup group) {
+        EVENT_LOOP_GROUPS.put(name, group);
+    }
+
+    /**
+     * 生成一次抓取的响应内容
+     *
+     * @param alloc 响应 ByteBuf 的分配器
+     * @return 响应内容，由调用者写出或者释放
+     */
+    public static synchronized ByteBuf render(ByteBufAllocator alloc) {
+        StringBuilder sb = BUFFER;
+        sb.setLength(0);
+
+        List<Metrics> allMetrics = MetricsCollector.getAllTotalMetrics();
+        for (PortMetric portMetric : PORT_METRICS) {
+            family(sb, portMetric.name, portMetric.type, portMetric.help);
+            for (Metrics metrics : allMetrics) {
+                sb.append(portMetric.name).append("{port=\"").append(metrics.getPort()).append("\"} ")
+                        .append(portMetric.value(metrics)).append('\n');
+            }
+        }
+
+        family(sb, "proxy_cmd_channels", GAUGE, "Connected proxy clients (cmd channels).");
+        sb.append("proxy_cmd_channels ").append(ProxyChannelManager.getCmdChannelCount()).append('\n');
+        family(sb, "proxy_tunnel_channels", GAUGE, "Tunnel connections from proxy clients, pooled, in use or multiplexed.");
+        sb.append("proxy_tunnel_channels ")
+                .append(Math.max(0, ProxyChannelManager.getProxyChannelCount() - ProxyChannelManager.getCmdChannelCount()))
+                .append('\n');
+
+        BatchCollector batches = BatchCollector.getInstance();
+        family(sb, "proxy_tunnel_batch_frames_total", COUNTER, "Batch frames on tunnels, each packing several small transfers.");
+        sb.append("proxy_tunnel_batch_frames_total{direction=\"sent\"} ").append(batches.getSentBatches()).append('\n');
+        sb.append("proxy_tunnel_batch_frames_total{direction=\"received\"} ").append(batches.getReceivedBatches()).append('\n');
+        family(sb, "proxy_tunnel_batched_messages_total", COUNTER, "Transfer messages packed into batch frames on tunnels.");
+        sb.append("proxy_tunnel_batched_messages_total{direction=\"sent\"} ").append(batches.getSentMessages()).append('\n');
+        sb.append("proxy_tunnel_batched_messages_total{direction=\"received\"} ").append(batches.getReceivedMessages()).append('\n');
+
+        family(sb, "netty_event_loop_pending_tasks", GAUGE, "Tasks waiting to run on each event loop.");
+        for (Map.Entry<String, EventLoopGroup> entry : EVENT_LOOP_GROUPS.entrySet()) {
+            int index = 0;
+            for (EventExecutor executor : entry.getValue()) {
+                if (executor instanceof SingleThreadEventExecutor) {
+                    sb.append("netty_event_loop_pending_tasks{group=\"").append(entry.getKey())
+                            .append("\",loop=\"").append(index).append("\"} ")
+                            .append(((SingleThreadEventExecutor) executor).pendingTasks()).append('\n');
+                }
+                index++;
+            }
+        }
+
+        ByteBufAllocator defaultAllocator = ByteBufAllocator.DEFAULT;
+        if (defaultAllocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) defaultAllocator).metric();
+            String allocator = defaultAllocator instanceof PooledByteBufAllocator ? "pooled" : "unpooled";
+            family(sb, "netty_allocator_used_direct_bytes", GAUGE, "Direct memory used by the default allocator.");
+            sb.append("netty_allocator_used_direct_bytes{allocator=\"").append(allocator).append("\"} ")
+                    .append(metric.usedDirectMemory()).append('\n');
+            family(sb, "netty_allocator_used_heap_bytes", GAUGE, "Heap memory used by the default allocator.");
+            sb.append("netty_allocator_used_heap_bytes{allocator=\"").append(allocator).append("\"} ")
+                    .append(metric.usedHeapMemory()).append('\n');
+        }
+
+        ByteBuf content = alloc.buffer(sb.length());
+        ByteBufUtil.writeAscii(content, sb);
+        return content;
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * 按端口导出的一个指标
+     */
+    private abstract static class PortMetric {
+
+        private final String name;
+
+        private final String type;
+
+        private final String help;
+
+        PortMetric(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        abstract long value(Metrics metrics);
+    }
+}